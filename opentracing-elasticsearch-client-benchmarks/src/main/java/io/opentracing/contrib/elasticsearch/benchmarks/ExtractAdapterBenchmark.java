@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.benchmarks;
+
+import io.opentracing.SpanContext;
+import io.opentracing.contrib.elasticsearch.common.HttpTextMapExtractAdapter;
+import io.opentracing.contrib.elasticsearch.common.PropagationHeaders;
+import io.opentracing.propagation.Format;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of building an {@link HttpTextMapExtractAdapter} and of extracting from it, for requests
+ * which carry no trace headers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExtractAdapterBenchmark {
+
+  @Param({"2", "8"})
+  public int headerCount;
+
+  private HttpRequest request;
+  private final Set<String> propagationKeys = HttpTextMapExtractAdapter
+      .keys(Arrays.asList("traceid", "spanid"));
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    request = new BasicHttpRequest("GET", "/twitter/_search");
+    for (int i = 0; i < headerCount; i++) {
+      request.addHeader("X-Header-" + i, "value-" + i);
+    }
+  }
+
+  @Benchmark
+  public HttpTextMapExtractAdapter construct() {
+    return new HttpTextMapExtractAdapter(request);
+  }
+
+  @Benchmark
+  public SpanContext extract(TracerState tracerState) {
+    return tracerState.tracer.extract(Format.Builtin.HTTP_HEADERS,
+        new HttpTextMapExtractAdapter(request));
+  }
+
+  @Benchmark
+  public SpanContext extractPropagationKeys(TracerState tracerState) {
+    return tracerState.tracer.extract(Format.Builtin.HTTP_HEADERS,
+        new HttpTextMapExtractAdapter(request, propagationKeys));
+  }
+
+  /**
+   * As the TracingHttpClientConfigCallback extracts with propagation headers configured
+   */
+  @Benchmark
+  public SpanContext extractPropagationHeaders(TracerState tracerState) {
+    return tracerState.tracer.extract(Format.Builtin.HTTP_HEADERS,
+        new HttpTextMapExtractAdapter(request, PropagationHeaders.KNOWN));
+  }
+}
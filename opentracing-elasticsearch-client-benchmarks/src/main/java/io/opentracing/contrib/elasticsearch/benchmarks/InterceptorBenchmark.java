@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.benchmarks;
+
+import io.opentracing.contrib.elasticsearch.common.ClientSpanNameProvider;
+import io.opentracing.contrib.elasticsearch.common.TracingHttpClientConfigCallback;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.ImmutableHttpProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the interceptors installed by
+ * {@link TracingHttpClientConfigCallback#customizeHttpClient(HttpAsyncClientBuilder)}: they are
+ * called directly on an in-process request, response and context, the way the http client calls
+ * them, without any I/O. The baseline only creates the request, response and context, so the
+ * difference between both (in time and allocations) is the cost of the interceptors.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterceptorBenchmark {
+
+  private static final HttpHost TARGET = new HttpHost("localhost", 9200, "http");
+
+  @State(Scope.Thread)
+  public static class Interceptors {
+
+    HttpProcessor processor;
+
+    @Setup(Level.Trial)
+    public void setUp(TracerState tracerState) throws Exception {
+      // the interceptors are added to the given builder, which keeps them in private fields
+      HttpAsyncClientBuilder builder = HttpAsyncClientBuilder.create();
+      new TracingHttpClientConfigCallback(tracerState.tracer,
+          ClientSpanNameProvider.REQUEST_METHOD_TARGET_NAME)
+          .customizeHttpClient(builder);
+      processor = new ImmutableHttpProcessor(
+          interceptors(builder, "requestFirst", "requestLast"),
+          interceptors(builder, "responseFirst", "responseLast"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> interceptors(HttpAsyncClientBuilder builder, String... fieldNames)
+        throws Exception {
+      final List<T> interceptors = new ArrayList<>();
+      for (String fieldName : fieldNames) {
+        Field field = HttpAsyncClientBuilder.class.getDeclaredField(fieldName);
+        field.setAccessible(true);
+        List<T> list = (List<T>) field.get(builder);
+        if (list != null) {
+          interceptors.addAll(list);
+        }
+      }
+      return interceptors;
+    }
+  }
+
+  @Benchmark
+  public HttpClientContext baseline() {
+    HttpClientContext context = context();
+    context.setAttribute(HttpClientContext.HTTP_REQUEST, request());
+    context.setAttribute(HttpClientContext.HTTP_RESPONSE, response());
+    return context;
+  }
+
+  @Benchmark
+  public HttpClientContext interceptors(Interceptors interceptors, TracerState tracerState)
+      throws Exception {
+    HttpClientContext context = context();
+    HttpRequest request = request();
+    context.setAttribute(HttpClientContext.HTTP_REQUEST, request);
+    interceptors.processor.process(request, context);
+    HttpResponse response = response();
+    context.setAttribute(HttpClientContext.HTTP_RESPONSE, response);
+    interceptors.processor.process(response, context);
+    tracerState.operationDone();
+    return context;
+  }
+
+  private static HttpClientContext context() {
+    HttpClientContext context = HttpClientContext.create();
+    context.setTargetHost(TARGET);
+    return context;
+  }
+
+  private static HttpRequest request() {
+    return new BasicHttpRequest("GET", "/twitter/tweet/1?routing=user1");
+  }
+
+  private static HttpResponse response() {
+    return new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.benchmarks;
+
+import io.opentracing.Span;
+import io.opentracing.contrib.elasticsearch.common.SpanDecorator;
+import io.opentracing.contrib.elasticsearch.common.StackTraceCapture;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link SpanDecorator#onError(Throwable, Span, StackTraceCapture)} for exceptions of
+ * different stack depths.
+ * {@link #baseline(TracerState)} only starts and finishes the span.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SpanDecoratorBenchmark {
+
+  @Param({"10", "100"})
+  public int stackDepth;
+
+  @Param({"full", "truncated", "none"})
+  public String stackTraceCapture;
+
+  private Exception exception;
+  private StackTraceCapture capture;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    exception = exceptionAt(stackDepth);
+    switch (stackTraceCapture) {
+      case "truncated":
+        capture = StackTraceCapture.truncated(20);
+        break;
+      case "none":
+        capture = StackTraceCapture.NONE;
+        break;
+      default:
+        capture = StackTraceCapture.FULL;
+    }
+  }
+
+  private static Exception exceptionAt(int depth) {
+    return (depth <= 1) ? new SocketTimeoutException("Read timed out")
+        : exceptionAt(depth - 1);
+  }
+
+  @Benchmark
+  public Span baseline(TracerState tracerState) {
+    Span span = tracerState.tracer.buildSpan("GET").start();
+    span.finish();
+    tracerState.operationDone();
+    return span;
+  }
+
+  @Benchmark
+  public Span onError(TracerState tracerState) {
+    Span span = tracerState.tracer.buildSpan("GET").start();
+    SpanDecorator.onError(exception, span, capture);
+    span.finish();
+    tracerState.operationDone();
+    return span;
+  }
+}
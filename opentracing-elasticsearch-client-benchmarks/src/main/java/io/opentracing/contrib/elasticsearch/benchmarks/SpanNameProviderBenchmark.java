@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.benchmarks;
+
+import io.opentracing.contrib.elasticsearch.common.CachingSpanNameProvider;
+import io.opentracing.contrib.elasticsearch.common.ClientSpanNameProvider;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.apache.http.HttpRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the predefined span name providers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SpanNameProviderBenchmark {
+
+  @Param({"/_bulk", "/twitter/tweet/1?routing=user1", "/_tasks/task_id:1/_cancel"})
+  public String uri;
+
+  private HttpRequest request;
+  private final Function<HttpRequest, String> cachedRequestMethodTargetName =
+      new CachingSpanNameProvider(ClientSpanNameProvider.REQUEST_METHOD_TARGET_NAME);
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    request = new BasicHttpRequest("GET", uri);
+  }
+
+  @Benchmark
+  public String requestMethodName() {
+    return ClientSpanNameProvider.REQUEST_METHOD_NAME.apply(request);
+  }
+
+  @Benchmark
+  public String requestTargetName() {
+    return ClientSpanNameProvider.REQUEST_TARGET_NAME.apply(request);
+  }
+
+  @Benchmark
+  public String requestMethodTargetName() {
+    return ClientSpanNameProvider.REQUEST_METHOD_TARGET_NAME.apply(request);
+  }
+
+  @Benchmark
+  public String cachedRequestMethodTargetName() {
+    return cachedRequestMethodTargetName.apply(request);
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.benchmarks;
+
+import io.opentracing.Tracer;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.noop.NoopTracerFactory;
+import io.opentracing.util.ThreadLocalScopeManager;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The tracer the instrumentation reports to, either a MockTracer or the NoopTracer.
+ */
+@State(Scope.Thread)
+public class TracerState {
+
+  // MockTracer keeps every finished span, drop them regularly to keep the heap flat
+  private static final int RESET_INTERVAL = 1 << 14;
+
+  @Param({"mock", "noop"})
+  public String tracerType;
+
+  public Tracer tracer;
+
+  private MockTracer mockTracer;
+  private int operations;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    if ("mock".equals(tracerType)) {
+      mockTracer = new MockTracer(new ThreadLocalScopeManager(), MockTracer.Propagator.TEXT_MAP);
+      tracer = mockTracer;
+    } else {
+      tracer = NoopTracerFactory.create();
+    }
+  }
+
+  /**
+   * To be called once per benchmark operation
+   */
+  public void operationDone() {
+    if (mockTracer != null && ++operations == RESET_INTERVAL) {
+      operations = 0;
+      mockTracer.reset();
+    }
+  }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.benchmarks;
+
+import io.opentracing.contrib.elasticsearch7.TracingPreBuiltTransportClient;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.elasticsearch.Version;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.node.liveness.LivenessResponse;
+import org.elasticsearch.action.admin.cluster.node.liveness.TransportLivenessAction;
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.network.NetworkService;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.BoundTransportAddress;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.util.PageCacheRecycler;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.plugins.NetworkPlugin;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.ActionNotFoundTransportException;
+import org.elasticsearch.transport.ConnectionProfile;
+import org.elasticsearch.transport.RequestHandlerRegistry;
+import org.elasticsearch.transport.Transport;
+import org.elasticsearch.transport.TransportMessageListener;
+import org.elasticsearch.transport.TransportRequest;
+import org.elasticsearch.transport.TransportRequestOptions;
+import org.elasticsearch.transport.TransportResponse;
+import org.elasticsearch.transport.TransportResponseHandler;
+import org.elasticsearch.transport.TransportService;
+import org.elasticsearch.transport.TransportStats;
+import org.elasticsearch.transport.client.PreBuiltTransportClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A get request through a plain {@link PreBuiltTransportClient} and through a
+ * {@link TracingPreBuiltTransportClient}, whose transport answers in the calling thread without
+ * any network. The difference between both is the cost of the doExecute wrapping.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportClientBenchmark {
+
+  private static final String STUB_TRANSPORT = "stub";
+  private static final Settings SETTINGS = Settings.builder()
+      .put("transport.type", STUB_TRANSPORT)
+      .build();
+
+  @State(Scope.Thread)
+  public static class Clients {
+
+    TransportClient plainClient;
+    TransportClient tracingClient;
+    final GetRequest request = new GetRequest("twitter", "1");
+
+    @Setup(Level.Trial)
+    public void setUp(TracerState tracerState) throws Exception {
+      plainClient = client(new PreBuiltTransportClient(SETTINGS, StubTransportPlugin.class));
+      tracingClient = client(new TracingPreBuiltTransportClient(tracerState.tracer, SETTINGS,
+          StubTransportPlugin.class));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      plainClient.close();
+      tracingClient.close();
+    }
+  }
+
+  private static TransportClient client(TransportClient client) {
+    return client.addTransportAddress(new TransportAddress(InetAddress.getLoopbackAddress(), 9300));
+  }
+
+  @Benchmark
+  public GetResponse plainClient(Clients clients) {
+    return clients.plainClient.get(clients.request).actionGet();
+  }
+
+  @Benchmark
+  public GetResponse tracingClient(Clients clients, TracerState tracerState) {
+    GetResponse response = clients.tracingClient.get(clients.request).actionGet();
+    tracerState.operationDone();
+    return response;
+  }
+
+  /**
+   * Provides the STUB_TRANSPORT
+   */
+  public static class StubTransportPlugin extends Plugin implements NetworkPlugin {
+
+    @Override
+    public Map<String, Supplier<Transport>> getTransports(Settings settings,
+        ThreadPool threadPool, PageCacheRecycler pageCacheRecycler,
+        CircuitBreakerService circuitBreakerService,
+        NamedWriteableRegistry namedWriteableRegistry, NetworkService networkService) {
+      return Collections.singletonMap(STUB_TRANSPORT,
+          () -> new StubTransport(ClusterName.CLUSTER_NAME_SETTING.get(settings)));
+    }
+  }
+
+  /**
+   * Answers the handshake and liveness requests of the client and get requests, as soon as they
+   * are sent
+   */
+  private static class StubTransport extends AbstractLifecycleComponent implements Transport {
+
+    private static final GetResponse GET_RESPONSE = new GetResponse(new GetResult("twitter",
+        "_doc", "1", 0, 1, 1, true, new BytesArray("{\"user\":\"kimchy\"}"),
+        Collections.emptyMap(), Collections.emptyMap()));
+
+    private final ClusterName clusterName;
+    private final TransportAddress address = new TransportAddress(
+        InetAddress.getLoopbackAddress(), 9300);
+    private final Map<String, RequestHandlerRegistry<? extends TransportRequest>> requestHandlers =
+        new ConcurrentHashMap<>();
+    private final ResponseHandlers responseHandlers = new ResponseHandlers();
+    private volatile TransportMessageListener messageListener =
+        TransportMessageListener.NOOP_LISTENER;
+
+    StubTransport(ClusterName clusterName) {
+      this.clusterName = clusterName;
+    }
+
+    @Override
+    public <Request extends TransportRequest> void registerRequestHandler(
+        RequestHandlerRegistry<Request> reg) {
+      requestHandlers.put(reg.getAction(), reg);
+    }
+
+    @Override
+    public RequestHandlerRegistry<? extends TransportRequest> getRequestHandler(String action) {
+      return requestHandlers.get(action);
+    }
+
+    @Override
+    public void setMessageListener(TransportMessageListener listener) {
+      this.messageListener = listener;
+    }
+
+    @Override
+    public BoundTransportAddress boundAddress() {
+      return new BoundTransportAddress(new TransportAddress[] {address}, address);
+    }
+
+    @Override
+    public Map<String, BoundTransportAddress> profileBoundAddresses() {
+      return Collections.emptyMap();
+    }
+
+    @Override
+    public TransportAddress[] addressesFromString(String address) {
+      return new TransportAddress[] {this.address};
+    }
+
+    @Override
+    public List<String> getDefaultSeedAddresses() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public void openConnection(DiscoveryNode node, ConnectionProfile profile,
+        ActionListener<Connection> listener) {
+      listener.onResponse(new StubConnection(node));
+    }
+
+    @Override
+    public TransportStats getStats() {
+      return new TransportStats(0, 0, 0, 0, 0);
+    }
+
+    @Override
+    public ResponseHandlers getResponseHandlers() {
+      return responseHandlers;
+    }
+
+    @Override
+    protected void doStart() {
+    }
+
+    @Override
+    protected void doStop() {
+    }
+
+    @Override
+    protected void doClose() {
+    }
+
+    private TransportResponse respond(DiscoveryNode node, String action) {
+      if (GetAction.NAME.equals(action)) {
+        return GET_RESPONSE;
+      }
+      if (TransportLivenessAction.NAME.equals(action)) {
+        return new LivenessResponse(clusterName, node);
+      }
+      if (TransportService.HANDSHAKE_ACTION_NAME.equals(action)) {
+        return new TransportService.HandshakeResponse(node, clusterName, Version.CURRENT);
+      }
+      throw new ActionNotFoundTransportException(action);
+    }
+
+    private final class StubConnection implements Connection {
+
+      private final DiscoveryNode node;
+      private final List<ActionListener<Void>> closeListeners = new CopyOnWriteArrayList<>();
+      private volatile boolean closed;
+
+      StubConnection(DiscoveryNode node) {
+        this.node = node;
+      }
+
+      @Override
+      public DiscoveryNode getNode() {
+        return node;
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public void sendRequest(long requestId, String action, TransportRequest request,
+          TransportRequestOptions options) {
+        final TransportResponse response = respond(node, action);
+        final TransportResponseHandler<TransportResponse> handler =
+            (TransportResponseHandler<TransportResponse>) responseHandlers
+                .onResponseReceived(requestId, messageListener);
+        if (handler != null) {
+          handler.handleResponse(response);
+        }
+      }
+
+      @Override
+      public void addCloseListener(ActionListener<Void> listener) {
+        closeListeners.add(listener);
+      }
+
+      @Override
+      public boolean isClosed() {
+        return closed;
+      }
+
+      @Override
+      public void close() {
+        closed = true;
+        for (ActionListener<Void> listener : closeListeners) {
+          listener.onResponse(null);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.apache.http.HttpRequest;
+
+/**
+ * Samples each endpoint independently, so noisy endpoints like _bulk don't crowd out rare ones.
+ * Every interval the sampling probability of an endpoint is adapted to its request rate of the
+ * previous interval, aiming at targetSpansPerSecond spans per endpoint. The first
+ * minSamplesPerInterval requests of each endpoint in an interval are always sampled.
+ *
+ * <p>Endpoints are named by a span name provider, ClientSpanNameProvider.REQUEST_METHOD_API_NAME by
+ * default. Each endpoint keeps its own counters, there is no lock or shared counter between
+ * endpoints. Beyond maxEndpoints distinct endpoints the remaining ones share a single state.
+ */
+public class AdaptiveSampler implements Sampler {
+
+  public static final int DEFAULT_MAX_ENDPOINTS = 256;
+
+  private final Function<HttpRequest, String> endpointProvider;
+  private final double targetSpansPerSecond;
+  private final int minSamplesPerInterval;
+  private final long intervalNanos;
+  private final int maxSamplesPerInterval;
+  private final int maxEndpoints;
+
+  private final ConcurrentMap<String, EndpointState> endpoints = new ConcurrentHashMap<>();
+  private final EndpointState otherEndpoints;
+
+  /**
+   * @param endpointProvider names the endpoint of a request, should mask ids and index names
+   * @param targetSpansPerSecond spans per second aimed at for each endpoint
+   * @param minSamplesPerInterval requests sampled per endpoint and interval regardless of the rate
+   * @param interval length of the interval
+   * @param unit unit of the interval
+   * @param maxEndpoints number of endpoints sampled independently
+   */
+  public AdaptiveSampler(Function<HttpRequest, String> endpointProvider,
+      double targetSpansPerSecond, int minSamplesPerInterval, long interval, TimeUnit unit,
+      int maxEndpoints) {
+    if (targetSpansPerSecond <= 0) {
+      throw new IllegalArgumentException("targetSpansPerSecond must be positive");
+    }
+    if (minSamplesPerInterval < 0) {
+      throw new IllegalArgumentException("minSamplesPerInterval must not be negative");
+    }
+    if (interval <= 0) {
+      throw new IllegalArgumentException("interval must be positive");
+    }
+    this.endpointProvider = endpointProvider;
+    this.targetSpansPerSecond = targetSpansPerSecond;
+    this.minSamplesPerInterval = minSamplesPerInterval;
+    this.intervalNanos = unit.toNanos(interval);
+    this.maxSamplesPerInterval = (int) Math.min(Integer.MAX_VALUE, Math.max(minSamplesPerInterval,
+        Math.ceil(targetSpansPerSecond * intervalNanos / TimeUnit.SECONDS.toNanos(1))));
+    this.maxEndpoints = maxEndpoints;
+    this.otherEndpoints = new EndpointState(System.nanoTime());
+  }
+
+  /**
+   * Endpoints are named by ClientSpanNameProvider.REQUEST_METHOD_API_NAME, the interval is 10
+   * seconds and at most DEFAULT_MAX_ENDPOINTS endpoints are sampled independently
+   */
+  public AdaptiveSampler(double targetSpansPerSecond, int minSamplesPerInterval) {
+    this(ClientSpanNameProvider.REQUEST_METHOD_API_NAME, targetSpansPerSecond,
+        minSamplesPerInterval, 10, TimeUnit.SECONDS, DEFAULT_MAX_ENDPOINTS);
+  }
+
+  @Override
+  public boolean isSampled(HttpRequest request) {
+    final long now = System.nanoTime();
+    return endpointState(endpointProvider.apply(request), now).isSampled(now);
+  }
+
+  private EndpointState endpointState(String endpoint, long now) {
+    if (endpoint == null) {
+      return otherEndpoints;
+    }
+    EndpointState state = endpoints.get(endpoint);
+    if (state != null) {
+      return state;
+    }
+    if (endpoints.size() >= maxEndpoints) {
+      return otherEndpoints;
+    }
+    state = new EndpointState(now);
+    EndpointState existing = endpoints.putIfAbsent(endpoint, state);
+    return (existing == null) ? state : existing;
+  }
+
+  public double getTargetSpansPerSecond() {
+    return targetSpansPerSecond;
+  }
+
+  /**
+   * @return current sampling probability of each endpoint, beyond the guaranteed samples
+   */
+  public Map<String, Double> getSamplingProbabilities() {
+    Map<String, Double> probabilities = new HashMap<>();
+    for (Map.Entry<String, EndpointState> entry : endpoints.entrySet()) {
+      probabilities.put(entry.getKey(), entry.getValue().probability);
+    }
+    return probabilities;
+  }
+
+  private final class EndpointState {
+
+    private final AtomicLong intervalStart;
+    private final LongAdder requests = new LongAdder();
+    private final AtomicInteger sampled = new AtomicInteger();
+    private volatile double probability = 1.0;
+
+    EndpointState(long now) {
+      this.intervalStart = new AtomicLong(now);
+    }
+
+    boolean isSampled(long now) {
+      final long start = intervalStart.get();
+      final long elapsed = now - start;
+      if (elapsed >= intervalNanos && intervalStart.compareAndSet(start, now)) {
+        adapt(requests.sumThenReset(), elapsed);
+        sampled.set(0);
+      }
+      requests.increment();
+
+      final int sampledCount = sampled.get();
+      if (sampledCount >= maxSamplesPerInterval) {
+        return false;
+      }
+      if (sampledCount < minSamplesPerInterval
+          || ThreadLocalRandom.current().nextDouble() < probability) {
+        return sampled.incrementAndGet() <= maxSamplesPerInterval;
+      }
+      return false;
+    }
+
+    /**
+     * Sets the probability which would have sampled the target number of spans in the previous
+     * interval, on top of the guaranteed ones
+     */
+    private void adapt(long previousRequests, long elapsed) {
+      final double requestsPerInterval = previousRequests * (double) intervalNanos / elapsed;
+      if (requestsPerInterval <= maxSamplesPerInterval) {
+        probability = 1.0;
+      } else {
+        probability = (maxSamplesPerInterval - minSamplesPerInterval)
+            / (requestsPerInterval - minSamplesPerInterval);
+      }
+    }
+  }
+}
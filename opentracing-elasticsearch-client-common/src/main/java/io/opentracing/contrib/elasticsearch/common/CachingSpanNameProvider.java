@@ -0,0 +1,226 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.apache.http.HttpRequest;
+import org.apache.http.RequestLine;
+
+/**
+ * Wraps a span name provider and caches the names it returns, keyed by the HTTP method and the raw
+ * uri of the request. The wrapped provider must therefore only depend on the method and the uri.
+ *
+ * <p>Lookups never lock. The cache holds at most {@code maxSize} names; when it is full the
+ * {@link EvictionPolicy} decides how to make room. If more than {@code maxInsertsPerSecond} new
+ * names show up within a second (for example because the uris contain ids which are not masked)
+ * caching of new names is suspended for a second and names are computed without being cached.
+ */
+public class CachingSpanNameProvider implements Function<HttpRequest, String> {
+
+  public static final int DEFAULT_MAX_SIZE = 1024;
+
+  private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final Function<HttpRequest, String> spanNameProvider;
+  private final int maxSize;
+  private final int maxInsertsPerSecond;
+  private final EvictionPolicy evictionPolicy;
+
+  // method -> raw uri -> span name
+  private final ConcurrentMap<String, ConcurrentMap<String, String>> names =
+      new ConcurrentHashMap<>();
+  private final AtomicInteger size = new AtomicInteger();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+  private final AtomicInteger windowInserts = new AtomicInteger();
+  private volatile long suspendedUntil = System.nanoTime();
+
+  public CachingSpanNameProvider(Function<HttpRequest, String> spanNameProvider, int maxSize,
+      int maxInsertsPerSecond, EvictionPolicy evictionPolicy) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive");
+    }
+    if (maxInsertsPerSecond <= 0) {
+      throw new IllegalArgumentException("maxInsertsPerSecond must be positive");
+    }
+    this.spanNameProvider = spanNameProvider;
+    this.maxSize = maxSize;
+    this.maxInsertsPerSecond = maxInsertsPerSecond;
+    this.evictionPolicy = evictionPolicy;
+  }
+
+  /**
+   * At most maxSize new names are cached per second, {@link EvictionPolicy#EVICT_ONE} is used
+   */
+  public CachingSpanNameProvider(Function<HttpRequest, String> spanNameProvider, int maxSize) {
+    this(spanNameProvider, maxSize, maxSize, EvictionPolicy.EVICT_ONE);
+  }
+
+  /**
+   * Default max size (DEFAULT_MAX_SIZE) and {@link EvictionPolicy#EVICT_ONE} are used
+   */
+  public CachingSpanNameProvider(Function<HttpRequest, String> spanNameProvider) {
+    this(spanNameProvider, DEFAULT_MAX_SIZE);
+  }
+
+  @Override
+  public String apply(HttpRequest request) {
+    final RequestLine requestLine = request.getRequestLine();
+    final String method = requestLine.getMethod();
+    final String uri = requestLine.getUri();
+    if (method == null || uri == null) {
+      return spanNameProvider.apply(request);
+    }
+
+    ConcurrentMap<String, String> namesByUri = names.get(method);
+    if (namesByUri != null) {
+      final String name = namesByUri.get(uri);
+      if (name != null) {
+        hits.increment();
+        return name;
+      }
+    }
+
+    misses.increment();
+    final String name = spanNameProvider.apply(request);
+    if (name != null && admit()) {
+      if (namesByUri == null) {
+        namesByUri = names.computeIfAbsent(method, key -> new ConcurrentHashMap<>());
+      }
+      if (namesByUri.putIfAbsent(uri, name) == null) {
+        size.incrementAndGet();
+      }
+    }
+    return name;
+  }
+
+  /**
+   * Decides whether a freshly computed name may be cached, making room for it if necessary.
+   */
+  private boolean admit() {
+    final long now = System.nanoTime();
+    if (now - suspendedUntil < 0) {
+      return false;
+    }
+
+    final long start = windowStart.get();
+    if (now - start >= WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+      windowInserts.set(0);
+    }
+    if (windowInserts.incrementAndGet() > maxInsertsPerSecond) {
+      // high cardinality uris: stop churning the cache and keep the names it already has
+      suspendedUntil = now + WINDOW_NANOS;
+      return false;
+    }
+
+    return size.get() < maxSize || evictionPolicy.makeRoom(this);
+  }
+
+  /**
+   * @return number of names served from the cache
+   */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * @return number of names computed by the wrapped span name provider
+   */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * @return number of cached names
+   */
+  public int size() {
+    return size.get();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Removes up to count arbitrary names from the cache
+   *
+   * @param count number of names to remove
+   * @return number of names actually removed
+   */
+  public int evict(int count) {
+    int evicted = 0;
+    for (Map<String, String> namesByUri : names.values()) {
+      final Iterator<String> uris = namesByUri.keySet().iterator();
+      while (evicted < count && uris.hasNext()) {
+        if (namesByUri.remove(uris.next()) != null) {
+          size.decrementAndGet();
+          evicted++;
+        }
+      }
+      if (evicted >= count) {
+        break;
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Removes all cached names. Hit and miss counts are kept.
+   */
+  public void clear() {
+    evict(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Decides what happens when a new name should be cached but the cache is full.
+   */
+  public interface EvictionPolicy {
+
+    /**
+     * Removes one arbitrary name to make room for the new one.
+     */
+    EvictionPolicy EVICT_ONE = cache -> cache.evict(1) > 0;
+
+    /**
+     * Drops every cached name, the names in use are cached again on their next request.
+     */
+    EvictionPolicy CLEAR = cache -> {
+      cache.clear();
+      return true;
+    };
+
+    /**
+     * Keeps the cached names and does not cache the new one.
+     */
+    EvictionPolicy REJECT = cache -> false;
+
+    /**
+     * @param cache the full cache, names can be removed from it with
+     * {@link CachingSpanNameProvider#evict(int)} or {@link CachingSpanNameProvider#clear()}
+     * @return true if the new name should be cached
+     */
+    boolean makeRoom(CachingSpanNameProvider cache);
+  }
+}
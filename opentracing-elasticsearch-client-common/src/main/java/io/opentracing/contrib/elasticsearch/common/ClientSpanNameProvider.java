@@ -15,7 +15,6 @@
 package io.opentracing.contrib.elasticsearch.common;
 
 import java.util.function.Function;
-import java.util.regex.Pattern;
 import org.apache.http.HttpRequest;
 
 /**
@@ -25,15 +24,11 @@ import org.apache.http.HttpRequest;
 public class ClientSpanNameProvider {
 
   /**
-   * The following patterns are derived from the Elasticsearch http API found here:
+   * The following tokens are derived from the Elasticsearch http API found here:
    * https://www.elastic.co/guide/en/elasticsearch/reference/5.6/docs.html
    */
-  // Matches the parameters of the request
-  private static final Pattern regexParameterPattern = Pattern.compile("\\?.+$");
-  // Matches task IDs
-  private static final Pattern regexTaskIDPattern = Pattern.compile("task_id:\\d+");
-  // Matches other IDs
-  private static final Pattern regexIDPattern = Pattern.compile("/\\d+((/)|($))");
+  // Prefix of task IDs
+  private static final String TASK_ID_PREFIX = "task_id:";
 
   /**
    * A Function that returns the HTTP Method of the request as the name.
@@ -93,6 +88,16 @@ public class ClientSpanNameProvider {
         + " " + replaceIfNull(standardizeUri(request.getRequestLine().getUri()), "unknown");
   }
 
+  /**
+   * A Function that returns a concatenation of the HTTP Method of the request and the Elasticsearch
+   * API it calls as the name. Path segments which don't start with '_' (indices, types, ids, ...)
+   * are replaced with '?', so the number of names is bounded by the number of APIs, unlike with
+   * REQUEST_METHOD_TARGET_NAME. Used to name the endpoints of metrics and samplers.
+   */
+  public static Function<HttpRequest, String> REQUEST_METHOD_API_NAME =
+      (request) -> replaceIfNull(request.getRequestLine().getMethod(), "unknown")
+          + " " + replaceIfNull(apiPath(request.getRequestLine().getUri()), "unknown");
+
   /**
    * Replaces String input with String replacement if input is null
    *
@@ -105,19 +110,124 @@ public class ClientSpanNameProvider {
   }
 
   /**
-   * Using regexes derived from the Elasticsearch 5.6 HTTP API, this method removes additional
-   * parameters in the request and replaces numerical IDs with '?' to reduce granularity.
+   * Derived from the Elasticsearch 5.6 HTTP API, this method removes additional parameters in the
+   * request and replaces numerical IDs with '?' to reduce granularity. The uri is scanned once and
+   * a new String is only created when something has to be stripped or replaced.
    *
    * @param uri The uri of the HttpRequest that is calling out to Elasticsearch
    * @return A standardized version of the uri that reduces granularity.
    */
-  private static String standardizeUri(String uri) {
-    return (uri == null) ? null : regexIDPattern.matcher(
-        regexTaskIDPattern.matcher(
-            regexParameterPattern.matcher(
-                uri
-            ).replaceFirst("")
-        ).replaceAll("task_id:\\?")
-    ).replaceAll("/\\?$1");
+  static String standardizeUri(String uri) {
+    if (uri == null) {
+      return null;
+    }
+
+    final int length = uri.length();
+    // parameters are only removed when the '?' is followed by at least one character
+    int end = uri.indexOf('?');
+    if (end < 0 || end == length - 1) {
+      end = length;
+    }
+
+    // replacements never make the uri longer, so 'end' chars are always enough
+    char[] standardized = null;
+    int size = 0;
+    int i = 0;
+    while (i < end) {
+      final char c = uri.charAt(i);
+      if (c == '/') {
+        // other IDs: '/' followed by digits up to the next '/' or the end of the uri
+        final int digitsEnd = skipDigits(uri, i + 1, end);
+        if (digitsEnd > i + 1 && (digitsEnd == end || uri.charAt(digitsEnd) == '/')) {
+          if (standardized == null) {
+            standardized = copyOf(uri, i, end);
+            size = i;
+          }
+          standardized[size++] = '/';
+          standardized[size++] = '?';
+          if (digitsEnd < end) {
+            // the trailing '/' belongs to this ID and can't start the next one
+            standardized[size++] = '/';
+            i = digitsEnd + 1;
+          } else {
+            i = digitsEnd;
+          }
+          continue;
+        }
+      } else if (c == 't' && uri.startsWith(TASK_ID_PREFIX, i)) {
+        final int digitsStart = i + TASK_ID_PREFIX.length();
+        final int digitsEnd = skipDigits(uri, digitsStart, end);
+        if (digitsEnd > digitsStart) {
+          if (standardized == null) {
+            standardized = copyOf(uri, i, end);
+            size = i;
+          }
+          TASK_ID_PREFIX.getChars(0, TASK_ID_PREFIX.length(), standardized, size);
+          size += TASK_ID_PREFIX.length();
+          standardized[size++] = '?';
+          i = digitsEnd;
+          continue;
+        }
+      }
+
+      if (standardized != null) {
+        standardized[size++] = c;
+      }
+      i++;
+    }
+
+    if (standardized != null) {
+      return new String(standardized, 0, size);
+    }
+    return (end == length) ? uri : uri.substring(0, end);
+  }
+
+  /**
+   * @param uri The uri of the HttpRequest that is calling out to Elasticsearch
+   * @return The path of the uri, with every segment which doesn't start with '_' replaced by '?'
+   */
+  static String apiPath(String uri) {
+    if (uri == null) {
+      return null;
+    }
+
+    int end = uri.indexOf('?');
+    if (end < 0) {
+      end = uri.length();
+    }
+    final StringBuilder path = new StringBuilder(end);
+    int i = 0;
+    while (i < end) {
+      int next = uri.indexOf('/', i);
+      if (next < 0 || next > end) {
+        next = end;
+      }
+      if (next > i) {
+        if (uri.charAt(i) == '_') {
+          path.append(uri, i, next);
+        } else {
+          path.append('?');
+        }
+      }
+      if (next < end) {
+        path.append('/');
+      }
+      i = next + 1;
+    }
+    return path.toString();
+  }
+
+  private static int skipDigits(String uri, int from, int end) {
+    int i = from;
+    while (i < end && uri.charAt(i) >= '0' && uri.charAt(i) <= '9') {
+      i++;
+    }
+    return i;
+  }
+
+  private static char[] copyOf(String uri, int prefixLength, int capacity) {
+    final char[] chars = new char[capacity];
+    uri.getChars(0, prefixLength, chars, 0);
+    return chars;
   }
 }
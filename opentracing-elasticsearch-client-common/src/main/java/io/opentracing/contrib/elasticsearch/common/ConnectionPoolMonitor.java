@@ -0,0 +1,325 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import io.opentracing.Span;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * Observes the connection pools of http clients, to tell waiting for a pooled connection apart
+ * from waiting for Elasticsearch. The TracingHttpClientConfigCallback registers the
+ * PoolingNHttpClientConnectionManager of every client it configures here, either one it is given
+ * or one of its own it sets on the client, so one monitor can observe several clients.
+ *
+ * <p>Spans are tagged with the state of the pool of their client and route when the request is
+ * sent. If created with a period, the pool state of every route (summed over all clients) is
+ * sampled into histograms, see getGauges().
+ */
+public class ConnectionPoolMonitor implements Closeable {
+
+  public static final String POOL_LEASED = "pool.leased";
+  public static final String POOL_PENDING = "pool.pending";
+  public static final String POOL_AVAILABLE = "pool.available";
+  public static final String POOL_MAX = "pool.max";
+  public static final String TOTAL = "total";
+
+  private final ScheduledExecutorService executor;
+  private final ConcurrentMap<String, PoolGauges> gauges = new ConcurrentHashMap<>();
+  private final Set<PoolingNHttpClientConnectionManager> connectionManagers =
+      Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+  /**
+   * Only tags spans, the pool state isn't sampled
+   */
+  public ConnectionPoolMonitor() {
+    this.executor = null;
+  }
+
+  /**
+   * @param period sampling period of the pool state
+   * @param unit unit of the period
+   */
+  public ConnectionPoolMonitor(long period, TimeUnit unit) {
+    this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "elasticsearch-pool-monitor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleAtFixedRate(this::sample, period, period, unit);
+  }
+
+  /**
+   * Creates a pool for http and https (with the SSL settings of the system properties), for
+   * instance with the limits of the RestClientBuilder, 30 connections in total and 10 per route.
+   *
+   * @param maxTotal maximum number of connections
+   * @param maxPerRoute maximum number of connections per route
+   */
+  public static PoolingNHttpClientConnectionManager createConnectionManager(int maxTotal,
+      int maxPerRoute) {
+    final PoolingNHttpClientConnectionManager connectionManager;
+    try {
+      connectionManager = new PoolingNHttpClientConnectionManager(
+          new DefaultConnectingIOReactor(),
+          RegistryBuilder.<SchemeIOSessionStrategy>create()
+              .register("http", NoopIOSessionStrategy.INSTANCE)
+              .register("https", SSLIOSessionStrategy.getSystemDefaultStrategy())
+              .build());
+    } catch (IOReactorException e) {
+      throw new IllegalStateException(e);
+    }
+    connectionManager.setMaxTotal(maxTotal);
+    connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+    return connectionManager;
+  }
+
+  /**
+   * Throws if settings were made on the builder which are ignored once the connection manager
+   * replaces the one it would create: SSL settings other than the system default SSLContext, a
+   * connection manager, an IO reactor config, and pool limits which differ from those of the
+   * connection manager. The connection manager is shut down then. RestClientBuilder sets the
+   * system default SSLContext and its pool limits on every builder, those are fine.
+   */
+  static void checkReplaceable(HttpAsyncClientBuilder builder,
+      PoolingNHttpClientConnectionManager connectionManager) {
+    final String ignored;
+    if (field(builder, "connManager") != null) {
+      ignored = "setConnectionManager";
+    } else if (field(builder, "sslStrategy") != null) {
+      ignored = "setSSLStrategy";
+    } else if (field(builder, "hostnameVerifier") != null) {
+      ignored = "setSSLHostnameVerifier";
+    } else if (!isSystemDefault((SSLContext) field(builder, "sslcontext"))) {
+      ignored = "setSSLContext";
+    } else if (field(builder, "defaultIOReactorConfig") != null) {
+      ignored = "setDefaultIOReactorConfig";
+    } else if (!isLimit(field(builder, "maxConnTotal"), connectionManager.getMaxTotal())) {
+      ignored = "setMaxConnTotal";
+    } else if (!isLimit(field(builder, "maxConnPerRoute"),
+        connectionManager.getDefaultMaxPerRoute())) {
+      ignored = "setMaxConnPerRoute";
+    } else {
+      return;
+    }
+    try {
+      connectionManager.shutdown();
+    } catch (IOException ignore) {
+    }
+    throw new IllegalStateException("HttpAsyncClientBuilder." + ignored + "() doesn't apply to"
+        + " the connection manager replacing the one of the builder. Set the connection manager on"
+        + " the builder in the callback and have the ConnectionPoolMonitor observe it instead.");
+  }
+
+  /**
+   * @return the value of a field of the builder, null if it can't be read
+   */
+  private static Object field(HttpAsyncClientBuilder builder, String name) {
+    try {
+      final Field field = HttpAsyncClientBuilder.class.getDeclaredField(name);
+      field.setAccessible(true);
+      return field.get(builder);
+    } catch (Exception ignore) {
+      return null;
+    }
+  }
+
+  private static boolean isSystemDefault(SSLContext sslContext) {
+    try {
+      return sslContext == null || sslContext == SSLContext.getDefault();
+    } catch (NoSuchAlgorithmException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @param limit limit set on the builder, 0 if not set
+   */
+  private static boolean isLimit(Object limit, int max) {
+    return !(limit instanceof Integer) || (Integer) limit <= 0 || (Integer) limit == max;
+  }
+
+  /**
+   * Observes the pool of a client until the pool is garbage collected
+   */
+  void observe(PoolingNHttpClientConnectionManager connectionManager) {
+    connectionManagers.add(connectionManager);
+  }
+
+  private List<PoolingNHttpClientConnectionManager> connectionManagers() {
+    synchronized (connectionManagers) {
+      return new ArrayList<>(connectionManagers);
+    }
+  }
+
+  /**
+   * @return state of the pools of all clients, null if no pool is observed (yet)
+   */
+  public PoolStats getTotalStats() {
+    PoolStats total = null;
+    for (PoolingNHttpClientConnectionManager connectionManager : connectionManagers()) {
+      total = add(total, connectionManager.getTotalStats());
+    }
+    return total;
+  }
+
+  /**
+   * @param route route of a request
+   * @return state of the pools of the route of all clients, null if no pool is observed (yet)
+   */
+  public PoolStats getStats(HttpRoute route) {
+    PoolStats total = null;
+    for (PoolingNHttpClientConnectionManager connectionManager : connectionManagers()) {
+      total = add(total, connectionManager.getStats(route));
+    }
+    return total;
+  }
+
+  private static PoolStats add(PoolStats total, PoolStats stats) {
+    if (total == null) {
+      return stats;
+    }
+    return new PoolStats(total.getLeased() + stats.getLeased(),
+        total.getPending() + stats.getPending(),
+        total.getAvailable() + stats.getAvailable(),
+        total.getMax() + stats.getMax());
+  }
+
+  static void onRequest(PoolingNHttpClientConnectionManager connectionManager, HttpRoute route,
+      Span span) {
+    PoolStats stats = (route != null) ? connectionManager.getStats(route) : null;
+    if (stats != null) {
+      span.setTag(POOL_LEASED, stats.getLeased());
+      span.setTag(POOL_PENDING, stats.getPending());
+      span.setTag(POOL_AVAILABLE, stats.getAvailable());
+      span.setTag(POOL_MAX, stats.getMax());
+    }
+  }
+
+  /**
+   * Records the current state of the pool of every route and of the whole pool (as TOTAL), each
+   * summed over all clients
+   */
+  public void sample() {
+    List<PoolingNHttpClientConnectionManager> connectionManagers = connectionManagers();
+    if (connectionManagers.isEmpty()) {
+      return;
+    }
+    Map<String, PoolStats> routes = new HashMap<>();
+    PoolStats total = null;
+    for (PoolingNHttpClientConnectionManager connectionManager : connectionManagers) {
+      for (HttpRoute route : connectionManager.getRoutes()) {
+        routes.merge(route.getTargetHost().toURI(), connectionManager.getStats(route),
+            ConnectionPoolMonitor::add);
+      }
+      total = add(total, connectionManager.getTotalStats());
+    }
+    for (Entry<String, PoolStats> route : routes.entrySet()) {
+      record(route.getKey(), route.getValue());
+    }
+    record(TOTAL, total);
+  }
+
+  private void record(String route, PoolStats stats) {
+    PoolGauges routeGauges = gauges.get(route);
+    if (routeGauges == null) {
+      routeGauges = gauges.computeIfAbsent(route, key -> new PoolGauges(stats.getMax()));
+    }
+    routeGauges.leased.record(stats.getLeased());
+    routeGauges.pending.record(stats.getPending());
+    routeGauges.available.record(stats.getAvailable());
+  }
+
+  /**
+   * @return sampled pool state per route (target host uri) and of the whole pool (TOTAL)
+   */
+  public Map<String, PoolGauges> getGauges() {
+    return Collections.unmodifiableMap(gauges);
+  }
+
+  /**
+   * Stops sampling
+   */
+  @Override
+  public void close() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Samples of the connection counts of a pool. The histograms are linear up to the max of the
+   * pool (exact below 32), higher counts only count towards their max.
+   */
+  public static class PoolGauges {
+
+    private final Histogram leased;
+    private final Histogram pending;
+    private final Histogram available;
+
+    PoolGauges(int maxConnections) {
+      final long highestTrackableValue = Math.max(1, maxConnections);
+      this.leased = new Histogram(highestTrackableValue);
+      this.pending = new Histogram(highestTrackableValue);
+      this.available = new Histogram(highestTrackableValue);
+    }
+
+    /**
+     * @return connections in use
+     */
+    public Histogram getLeased() {
+      return leased;
+    }
+
+    /**
+     * @return requests waiting for a connection
+     */
+    public Histogram getPending() {
+      return pending;
+    }
+
+    /**
+     * @return idle connections
+     */
+    public Histogram getAvailable() {
+      return available;
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import io.opentracing.Span;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Decides how the "description" tag of TracingPreBuiltTransportClient spans is computed. The
+ * description of a request (ActionRequest.getDescription()) may contain a whole search source or
+ * every item of a bulk request, building it can cost more than tracing the request.
+ *
+ * <p>The description is only computed for spans it is enabled for: not for disabled actions, and
+ * only for sampled spans if a sampled predicate is given (OpenTracing doesn't expose sampling, the
+ * predicate has to ask the tracer). In SUMMARY mode only the indices, the type and the source size
+ * are described, without building the description.
+ */
+public class DescriptionPolicy {
+
+  public enum Mode {
+    /**
+     * ActionRequest.getDescription()
+     */
+    FULL,
+    /**
+     * Indices, type and source size of the request
+     */
+    SUMMARY,
+    /**
+     * No description
+     */
+    NONE
+  }
+
+  /**
+   * The full description of every request, without limit
+   */
+  public static final DescriptionPolicy FULL = new Builder().build();
+
+  static final String TRUNCATED = "...";
+
+  private final Mode mode;
+  private final int maxLength;
+  private final Set<String> disabledActions;
+  private final Predicate<Span> sampled;
+
+  private DescriptionPolicy(Builder builder) {
+    this.mode = builder.mode;
+    this.maxLength = builder.maxLength;
+    this.disabledActions = builder.disabledActions.isEmpty() ? Collections.emptySet()
+        : new HashSet<>(builder.disabledActions);
+    this.sampled = builder.sampled;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  /**
+   * @param action name of the action, e.g. "indices:data/read/search"
+   * @param span span of the request
+   * @return true if the span of the request should be tagged with a description
+   */
+  public boolean isEnabled(String action, Span span) {
+    return mode != Mode.NONE && !disabledActions.contains(action)
+        && (sampled == null || sampled.test(span));
+  }
+
+  /**
+   * @return the description, cut to maxLength (including a trailing "...")
+   */
+  public String truncate(String description) {
+    if (description == null || description.length() <= maxLength) {
+      return description;
+    }
+    if (maxLength <= TRUNCATED.length()) {
+      return description.substring(0, maxLength);
+    }
+    return description.substring(0, maxLength - TRUNCATED.length()) + TRUNCATED;
+  }
+
+  public static class Builder {
+
+    private Mode mode = Mode.FULL;
+    private int maxLength = Integer.MAX_VALUE;
+    private final Set<String> disabledActions = new HashSet<>();
+    private Predicate<Span> sampled;
+
+    /**
+     * @param mode FULL by default
+     */
+    public Builder withMode(Mode mode) {
+      this.mode = mode;
+      return this;
+    }
+
+    /**
+     * @param maxLength longer descriptions are truncated, unlimited by default
+     */
+    public Builder withMaxLength(int maxLength) {
+      if (maxLength <= 0) {
+        throw new IllegalArgumentException("maxLength must be positive");
+      }
+      this.maxLength = maxLength;
+      return this;
+    }
+
+    /**
+     * @param actions names of the actions whose requests aren't described, e.g.
+     * BulkAction.NAME
+     */
+    public Builder disable(String... actions) {
+      disabledActions.addAll(Arrays.asList(actions));
+      return this;
+    }
+
+    /**
+     * @param sampled tells whether the tracer samples a span, only sampled spans are described.
+     * By default every span is.
+     */
+    public Builder withSampled(Predicate<Span> sampled) {
+      this.sampled = sampled;
+      return this;
+    }
+
+    public DescriptionPolicy build() {
+      return new DescriptionPolicy(this);
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative long values with log-linear buckets: values below 32 are
+ * counted exactly, larger values in 32 buckets per power of two, i.e. with a relative error of at
+ * most 1/32.
+ *
+ * <p>Recording doesn't allocate. The bucket counts start with a single stripe, which is split
+ * (like a LongAdder) when threads contend on it, up to one stripe per processor (at most 8).
+ *
+ * <p>A stripe has the buckets up to the highest trackable value, 1888 of them (15 KB) for any
+ * long. Values above it share one more bucket, whose percentiles are the max. A highest
+ * trackable value below 32 makes a linear histogram of exact values.
+ */
+public class Histogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  static final int MAX_STRIPES = Math.min(8,
+      Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+  private final int buckets;
+  private volatile AtomicLongArray[] stripes;
+  private final AtomicBoolean growing = new AtomicBoolean();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * @param highestTrackableValue highest value counted in a bucket of its own, at least 1
+   */
+  public Histogram(long highestTrackableValue) {
+    if (highestTrackableValue < 1) {
+      throw new IllegalArgumentException("highestTrackableValue must be positive");
+    }
+    // plus one bucket for the values above it
+    this.buckets = Math.min(bucket(highestTrackableValue) + 2, BUCKETS);
+    this.stripes = new AtomicLongArray[] {new AtomicLongArray(buckets)};
+  }
+
+  /**
+   * Tracks any value
+   */
+  public Histogram() {
+    this(Long.MAX_VALUE);
+  }
+
+  /**
+   * @param value the value, negative values are recorded as 0
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    final int bucket = Math.min(bucket(value), buckets - 1);
+    final AtomicLongArray[] stripes = this.stripes;
+    final AtomicLongArray counts = stripes[stripe() & (stripes.length - 1)];
+    final long count = counts.get(bucket);
+    if (!counts.compareAndSet(bucket, count, count + 1)) {
+      counts.incrementAndGet(bucket);
+      grow(stripes);
+    }
+    sum.add(value);
+    long currentMax = max.get();
+    while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+      currentMax = max.get();
+    }
+  }
+
+  private static int stripe() {
+    final long id = Thread.currentThread().getId();
+    return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32);
+  }
+
+  private void grow(AtomicLongArray[] current) {
+    if (current.length >= MAX_STRIPES || !growing.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      if (stripes == current) {
+        AtomicLongArray[] grown = new AtomicLongArray[current.length * 2];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        for (int i = current.length; i < grown.length; i++) {
+          grown[i] = new AtomicLongArray(buckets);
+        }
+        stripes = grown;
+      }
+    } finally {
+      growing.set(false);
+    }
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (AtomicLongArray counts : stripes) {
+      for (int bucket = 0; bucket < buckets; bucket++) {
+        count += counts.get(bucket);
+      }
+    }
+    return count;
+  }
+
+  public long getSum() {
+    return sum.sum();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @param percentile percentile between 0 and 100
+   * @return see HistogramSnapshot.getValueAtPercentile(double)
+   */
+  public long getValueAtPercentile(double percentile) {
+    return snapshot().getValueAtPercentile(percentile);
+  }
+
+  /**
+   * @return the values recorded so far
+   */
+  public HistogramSnapshot snapshot() {
+    return snapshot(false);
+  }
+
+  /**
+   * Takes a snapshot and starts over. Each value recorded concurrently ends up in either this or
+   * the next snapshot, only the sum and max of the two may be off by the concurrent values.
+   *
+   * @return the values recorded since the last reset
+   */
+  public HistogramSnapshot snapshotAndReset() {
+    return snapshot(true);
+  }
+
+  /**
+   * Drops all recorded values
+   */
+  public void reset() {
+    snapshot(true);
+  }
+
+  private HistogramSnapshot snapshot(boolean reset) {
+    final long[] counts = new long[buckets];
+    long count = 0;
+    for (AtomicLongArray stripe : stripes) {
+      for (int bucket = 0; bucket < buckets; bucket++) {
+        final long bucketCount = reset ? stripe.getAndSet(bucket, 0) : stripe.get(bucket);
+        counts[bucket] += bucketCount;
+        count += bucketCount;
+      }
+    }
+    return new HistogramSnapshot(counts, count, reset ? sum.sumThenReset() : sum.sum(),
+        reset ? max.getAndSet(0) : max.get());
+  }
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    final int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+    return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+
+  static long lowestValue(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    final int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+    return ((long) ((bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS)) << shift;
+  }
+
+  static long highestValue(int bucket) {
+    return (bucket == BUCKETS - 1) ? Long.MAX_VALUE : lowestValue(bucket + 1) - 1;
+  }
+}
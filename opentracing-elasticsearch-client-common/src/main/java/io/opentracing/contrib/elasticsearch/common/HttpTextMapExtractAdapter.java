@@ -14,26 +14,70 @@
 package io.opentracing.contrib.elasticsearch.common;
 
 import io.opentracing.propagation.TextMap;
-import java.util.HashMap;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
 import org.apache.http.Header;
+import org.apache.http.HeaderIterator;
 import org.apache.http.HttpRequest;
 
-
+/**
+ * Exposes the headers of the request to Tracer.extract() without copying them.
+ */
 public class HttpTextMapExtractAdapter implements TextMap {
 
-  private final Map<String, String> map = new HashMap<>();
+  private final HttpRequest request;
+  // null exposes all headers
+  private final Predicate<String> filter;
 
   public HttpTextMapExtractAdapter(HttpRequest request) {
-    for (Header header : request.getAllHeaders()) {
-      map.put(header.getName(), header.getValue());
-    }
+    this(request, (Predicate<String>) null);
+  }
+
+  /**
+   * Only the headers with the given names are exposed, e.g. the propagation headers of the tracer.
+   *
+   * @param request http request
+   * @param keys names of the headers to expose, compared case insensitive; null exposes all
+   * headers. Use {@link #keys(Collection)} to build the set once and reuse it.
+   */
+  public HttpTextMapExtractAdapter(HttpRequest request, Set<String> keys) {
+    this(request, (keys != null) ? keys::contains : null);
+  }
+
+  /**
+   * Only the propagation headers are exposed, including the ones matched by prefix (baggage).
+   *
+   * @param request http request
+   * @param propagationHeaders headers to expose
+   */
+  public HttpTextMapExtractAdapter(HttpRequest request, PropagationHeaders propagationHeaders) {
+    this(request, propagationHeaders::matches);
+  }
+
+  private HttpTextMapExtractAdapter(HttpRequest request, Predicate<String> filter) {
+    this.request = request;
+    this.filter = filter;
+  }
+
+  /**
+   * @param names header names
+   * @return a set of the header names suitable for HttpTextMapExtractAdapter(HttpRequest, Set)
+   */
+  public static Set<String> keys(Collection<String> names) {
+    Set<String> keys = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    keys.addAll(names);
+    return keys;
   }
 
   @Override
   public Iterator<Map.Entry<String, String>> iterator() {
-    return map.entrySet().iterator();
+    return new HeaderEntryIterator(request.headerIterator(), filter);
   }
 
   @Override
@@ -41,4 +85,43 @@ public class HttpTextMapExtractAdapter implements TextMap {
     throw new UnsupportedOperationException(
         "HttpTextMapExtractAdapte should only be used with Tracer.extract()");
   }
+
+  private static final class HeaderEntryIterator implements Iterator<Map.Entry<String, String>> {
+
+    private final HeaderIterator headers;
+    private final Predicate<String> filter;
+    private Header next;
+
+    HeaderEntryIterator(HeaderIterator headers, Predicate<String> filter) {
+      this.headers = headers;
+      this.filter = filter;
+      advance();
+    }
+
+    private void advance() {
+      next = null;
+      while (headers.hasNext()) {
+        Header header = headers.nextHeader();
+        if (filter == null || filter.test(header.getName())) {
+          next = header;
+          return;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, String> entry = new SimpleImmutableEntry<>(next.getName(), next.getValue());
+      advance();
+      return entry;
+    }
+  }
 }
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser for the few response bodies the instrumentation has to look into, the low
+ * level RestClient comes without one. Objects are parsed to maps, arrays to lists, numbers to longs
+ * or doubles. Malformed documents throw an IllegalArgumentException.
+ */
+final class JsonParser {
+
+  private static final int MAX_DEPTH = 256;
+
+  private final String json;
+  private final String rangeKey;
+  private int pos;
+  // range of the top-level member rangeKey, including one adjacent comma
+  private int rangeStart = -1;
+  private int rangeEnd = -1;
+
+  private JsonParser(String json, String rangeKey) {
+    this.json = json;
+    this.rangeKey = rangeKey;
+  }
+
+  static Object parse(String json) {
+    return new JsonParser(json, null).parseDocument();
+  }
+
+  /**
+   * @return the document without its top-level member key, the document itself if it has none
+   */
+  static String remove(String json, String key) {
+    JsonParser parser = new JsonParser(json, key);
+    parser.parseDocument();
+    if (parser.rangeStart < 0) {
+      return json;
+    }
+    return json.substring(0, parser.rangeStart) + json.substring(parser.rangeEnd);
+  }
+
+  private Object parseDocument() {
+    final Object value = parseValue(0);
+    skipWhitespace();
+    if (pos != json.length()) {
+      throw error("Trailing characters");
+    }
+    return value;
+  }
+
+  private Object parseValue(int depth) {
+    if (depth > MAX_DEPTH) {
+      throw error("Too deeply nested");
+    }
+    skipWhitespace();
+    if (pos >= json.length()) {
+      throw error("Unexpected end");
+    }
+    final char c = json.charAt(pos);
+    switch (c) {
+      case '{':
+        return parseObject(depth);
+      case '[':
+        return parseArray(depth);
+      case '"':
+        return parseString();
+      case 't':
+        return literal("true", Boolean.TRUE);
+      case 'f':
+        return literal("false", Boolean.FALSE);
+      case 'n':
+        return literal("null", null);
+      default:
+        return parseNumber();
+    }
+  }
+
+  private Map<String, Object> parseObject(int depth) {
+    final Map<String, Object> object = new LinkedHashMap<>();
+    pos++;
+    skipWhitespace();
+    if (consume('}')) {
+      return object;
+    }
+    int comma = -1;
+    while (true) {
+      skipWhitespace();
+      final int memberStart = pos;
+      final String key = parseString();
+      skipWhitespace();
+      expect(':');
+      object.put(key, parseValue(depth + 1));
+      final boolean inRange = depth == 0 && key.equals(rangeKey);
+      if (inRange) {
+        rangeStart = (comma >= 0) ? comma : memberStart;
+        rangeEnd = pos;
+      }
+      skipWhitespace();
+      if (consume('}')) {
+        return object;
+      }
+      comma = pos;
+      expect(',');
+      if (inRange && rangeStart == memberStart) {
+        // the first member, remove the comma following it instead
+        rangeEnd = pos;
+      }
+    }
+  }
+
+  private List<Object> parseArray(int depth) {
+    final List<Object> array = new ArrayList<>();
+    pos++;
+    skipWhitespace();
+    if (consume(']')) {
+      return array;
+    }
+    while (true) {
+      array.add(parseValue(depth + 1));
+      skipWhitespace();
+      if (consume(']')) {
+        return array;
+      }
+      expect(',');
+    }
+  }
+
+  private String parseString() {
+    expect('"');
+    StringBuilder string = null;
+    int start = pos;
+    while (pos < json.length()) {
+      final char c = json.charAt(pos++);
+      if (c == '"') {
+        return (string == null) ? json.substring(start, pos - 1)
+            : string.append(json, start, pos - 1).toString();
+      }
+      if (c != '\\') {
+        continue;
+      }
+      if (string == null) {
+        string = new StringBuilder();
+      }
+      string.append(json, start, pos - 1);
+      if (pos >= json.length()) {
+        break;
+      }
+      final char escaped = json.charAt(pos++);
+      switch (escaped) {
+        case 'b':
+          string.append('\b');
+          break;
+        case 'f':
+          string.append('\f');
+          break;
+        case 'n':
+          string.append('\n');
+          break;
+        case 'r':
+          string.append('\r');
+          break;
+        case 't':
+          string.append('\t');
+          break;
+        case 'u':
+          if (pos + 4 > json.length()) {
+            throw error("Invalid unicode escape");
+          }
+          try {
+            string.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+          } catch (NumberFormatException e) {
+            throw error("Invalid unicode escape");
+          }
+          pos += 4;
+          break;
+        default:
+          string.append(escaped);
+      }
+      start = pos;
+    }
+    throw error("Unterminated string");
+  }
+
+  private Number parseNumber() {
+    final int start = pos;
+    boolean integral = true;
+    while (pos < json.length()) {
+      final char c = json.charAt(pos);
+      if (c == '.' || c == 'e' || c == 'E') {
+        integral = false;
+      } else if (c != '-' && c != '+' && (c < '0' || c > '9')) {
+        break;
+      }
+      pos++;
+    }
+    final String number = json.substring(start, pos);
+    try {
+      if (integral) {
+        try {
+          return Long.parseLong(number);
+        } catch (NumberFormatException tooLarge) {
+          return Double.parseDouble(number);
+        }
+      }
+      return Double.parseDouble(number);
+    } catch (NumberFormatException e) {
+      throw error("Invalid value");
+    }
+  }
+
+  private Object literal(String literal, Object value) {
+    if (!json.startsWith(literal, pos)) {
+      throw error("Invalid value");
+    }
+    pos += literal.length();
+    return value;
+  }
+
+  private void skipWhitespace() {
+    while (pos < json.length()) {
+      final char c = json.charAt(pos);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        return;
+      }
+      pos++;
+    }
+  }
+
+  private boolean consume(char c) {
+    if (pos < json.length() && json.charAt(pos) == c) {
+      pos++;
+      return true;
+    }
+    return false;
+  }
+
+  private void expect(char c) {
+    if (!consume(c)) {
+      throw error("Expected '" + c + "'");
+    }
+  }
+
+  private IllegalArgumentException error(String message) {
+    return new IllegalArgumentException(message + " at " + pos);
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency histograms (in nanoseconds) of every request, independent of sampling. REST requests are
+ * recorded per endpoint (e.g. "GET /{index}/_search") by the TracingHttpClientConfigCallback,
+ * transport requests per action (e.g. "indices:data/read/search") by the
+ * TracingPreBuiltTransportClient. The same instance can be shared by both.
+ *
+ * <p>Recording takes a map lookup and a Histogram.record(), it never locks once an endpoint is
+ * known. Beyond maxEndpoints distinct endpoints the remaining ones are recorded as OTHER_ENDPOINTS.
+ */
+public class LatencyMetrics {
+
+  public static final int DEFAULT_MAX_ENDPOINTS = 256;
+  public static final long DEFAULT_HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+  public static final String OTHER_ENDPOINTS = "other";
+
+  private final int maxEndpoints;
+  private final long highestTrackableNanos;
+  private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+  private final Histogram otherEndpoints;
+
+  /**
+   * @param highestTrackableNanos highest latency with a bucket of its own, higher ones only count
+   * towards the max. Sizes the histograms, see Histogram(long).
+   */
+  public LatencyMetrics(int maxEndpoints, long highestTrackableNanos) {
+    if (maxEndpoints <= 0) {
+      throw new IllegalArgumentException("maxEndpoints must be positive");
+    }
+    this.maxEndpoints = maxEndpoints;
+    this.highestTrackableNanos = highestTrackableNanos;
+    this.otherEndpoints = new Histogram(highestTrackableNanos);
+  }
+
+  /**
+   * Latencies up to DEFAULT_HIGHEST_TRACKABLE_NANOS are tracked
+   */
+  public LatencyMetrics(int maxEndpoints) {
+    this(maxEndpoints, DEFAULT_HIGHEST_TRACKABLE_NANOS);
+  }
+
+  /**
+   * At most DEFAULT_MAX_ENDPOINTS endpoints are recorded separately, latencies up to
+   * DEFAULT_HIGHEST_TRACKABLE_NANOS are tracked
+   */
+  public LatencyMetrics() {
+    this(DEFAULT_MAX_ENDPOINTS);
+  }
+
+  /**
+   * @param endpoint endpoint or action, null is recorded as OTHER_ENDPOINTS
+   * @param nanos latency in nanoseconds
+   */
+  public void record(String endpoint, long nanos) {
+    histogram(endpoint).record(nanos);
+  }
+
+  private Histogram histogram(String endpoint) {
+    if (endpoint == null) {
+      return otherEndpoints;
+    }
+    Histogram histogram = histograms.get(endpoint);
+    if (histogram != null) {
+      return histogram;
+    }
+    if (histograms.size() >= maxEndpoints) {
+      return otherEndpoints;
+    }
+    histogram = new Histogram(highestTrackableNanos);
+    Histogram existing = histograms.putIfAbsent(endpoint, histogram);
+    return (existing == null) ? histogram : existing;
+  }
+
+  /**
+   * @return latencies recorded so far per endpoint, endpoints without requests are left out
+   */
+  public Map<String, HistogramSnapshot> snapshot() {
+    return snapshot(false);
+  }
+
+  /**
+   * @return latencies recorded per endpoint since the last reset, endpoints without requests are
+   * left out
+   */
+  public Map<String, HistogramSnapshot> snapshotAndReset() {
+    return snapshot(true);
+  }
+
+  private Map<String, HistogramSnapshot> snapshot(boolean reset) {
+    Map<String, HistogramSnapshot> snapshots = new TreeMap<>();
+    for (Entry<String, Histogram> entry : histograms.entrySet()) {
+      put(snapshots, entry.getKey(), entry.getValue(), reset);
+    }
+    put(snapshots, OTHER_ENDPOINTS, otherEndpoints, reset);
+    return snapshots;
+  }
+
+  private static void put(Map<String, HistogramSnapshot> snapshots, String endpoint,
+      Histogram histogram, boolean reset) {
+    HistogramSnapshot snapshot = reset ? histogram.snapshotAndReset() : histogram.snapshot();
+    if (snapshot.getCount() > 0) {
+      snapshots.put(endpoint, snapshot);
+    }
+  }
+}
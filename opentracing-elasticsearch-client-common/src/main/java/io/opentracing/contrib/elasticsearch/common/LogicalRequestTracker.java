@@ -0,0 +1,277 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import io.opentracing.Span;
+import io.opentracing.tag.Tags;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.HttpRequestWrapper;
+
+/**
+ * Groups the attempts RestClient makes for one performRequest call under a span of their own. All
+ * attempts of a call send the same request object (each wrapped in a HttpRequestWrapper), which is
+ * used to recognize them.
+ *
+ * <p>An attempt which gets no response (e.g. connection refused) is considered failed when the
+ * next attempt starts. A logical request whose last attempt failed with a status RestClient
+ * retries (502, 503, 504) ends if no other attempt starts within RETRY_WINDOW_NANOS, its span is
+ * finished when the last attempt ended. Logical requests whose attempt doesn't end within
+ * MAX_ATTEMPT_NANOS are finished as failed. Both are checked periodically on a shared daemon
+ * thread, which holds the trackers weakly.
+ */
+class LogicalRequestTracker {
+
+  static final String RETRY_ATTEMPT = "retry.attempt";
+  static final String RETRY_ATTEMPTS = "retry.attempts";
+  static final String RETRY_FAILED_MS = "retry.failed_ms";
+  static final String RETRY_SUCCESSFUL_MS = "retry.successful_ms";
+
+  static final long RETRY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+  static final long MAX_ATTEMPT_NANOS = TimeUnit.MINUTES.toNanos(5);
+  static final int MAX_LOGICAL_REQUESTS = 4096;
+  private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final ScheduledExecutorService SWEEPER = Executors
+      .newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "elasticsearch-logical-request-sweeper");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  // keyed by identity, HttpRequest implementations don't override equals
+  private final ConcurrentMap<HttpRequest, LogicalRequest> requests = new ConcurrentHashMap<>();
+
+  LogicalRequestTracker() {
+    final Sweep sweep = new Sweep(this);
+    sweep.future = SWEEPER.scheduleWithFixedDelay(sweep, SWEEP_INTERVAL_NANOS,
+        SWEEP_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+  }
+
+  static HttpRequest original(HttpRequest request) {
+    return (request instanceof HttpRequestWrapper) ? ((HttpRequestWrapper) request).getOriginal()
+        : request;
+  }
+
+  /**
+   * @return the logical request an attempt belongs to, null if it is the first attempt
+   */
+  LogicalRequest get(HttpRequest request) {
+    return requests.get(original(request));
+  }
+
+  /**
+   * @param request first attempt
+   * @param span span of the logical request
+   * @return the logical request, null if too many are in flight (the span is finished then)
+   */
+  LogicalRequest start(HttpRequest request, Span span) {
+    if (requests.size() >= MAX_LOGICAL_REQUESTS) {
+      span.finish();
+      return null;
+    }
+    final HttpRequest original = original(request);
+    LogicalRequest logical = new LogicalRequest(original, span);
+    LogicalRequest existing = requests.putIfAbsent(original, logical);
+    if (existing != null) {
+      span.finish();
+      return existing;
+    }
+    return logical;
+  }
+
+  void sweep(long now) {
+    for (Iterator<LogicalRequest> it = requests.values().iterator(); it.hasNext(); ) {
+      if (it.next().expire(now)) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * @return microseconds since the epoch at the given System.nanoTime()
+   */
+  private static long epochMicros(long nanos) {
+    return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis())
+        - TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - nanos);
+  }
+
+  /**
+   * Sweeps a tracker until it is garbage collected
+   */
+  private static class Sweep implements Runnable {
+
+    private final WeakReference<LogicalRequestTracker> tracker;
+    private volatile ScheduledFuture<?> future;
+
+    Sweep(LogicalRequestTracker tracker) {
+      this.tracker = new WeakReference<>(tracker);
+    }
+
+    @Override
+    public void run() {
+      final LogicalRequestTracker tracker = this.tracker.get();
+      if (tracker == null) {
+        future.cancel(false);
+        return;
+      }
+      tracker.sweep(System.nanoTime());
+    }
+  }
+
+  class LogicalRequest {
+
+    private final HttpRequest original;
+    private final Span span;
+    private int attempts;
+    private Span attemptSpan;
+    private long attemptStart;
+    private long failedNanos;
+    private long retryDeadline;
+    // when the last failed attempt ended, in microseconds since the epoch
+    private long lastEndMicros;
+    private boolean finished;
+
+    LogicalRequest(HttpRequest original, Span span) {
+      this.original = original;
+      this.span = span;
+    }
+
+    Span span() {
+      return span;
+    }
+
+    /**
+     * @return number of the attempt, starting at 1, or 0 if the logical request already ended
+     */
+    synchronized int onAttemptStart(Span attemptSpan, long now) {
+      if (finished) {
+        return 0;
+      }
+      if (this.attemptSpan != null) {
+        failed(this.attemptSpan, "no response", now);
+        this.attemptSpan.finish();
+      }
+      this.attemptSpan = attemptSpan;
+      this.attemptStart = now;
+      this.retryDeadline = 0;
+      return ++attempts;
+    }
+
+    /**
+     * Ends the attempt, its span is finished by the caller
+     *
+     * @return true if the logical request ended as well and should be finished, false if
+     * RestClient may retry it
+     */
+    synchronized boolean onAttemptResponse(Span attemptSpan, int statusCode, long now) {
+      if (finished || attemptSpan != this.attemptSpan) {
+        return false;
+      }
+      this.attemptSpan = null;
+      if (statusCode == 502 || statusCode == 503 || statusCode == 504) {
+        failed(attemptSpan, "HTTP " + statusCode, now);
+        retryDeadline = now + RETRY_WINDOW_NANOS;
+        lastEndMicros = epochMicros(now);
+        return false;
+      }
+      span.setTag(RETRY_SUCCESSFUL_MS, TimeUnit.NANOSECONDS.toMillis(now - attemptStart));
+      return true;
+    }
+
+    /**
+     * Ends the attempt, which failed without a response, RestClient may retry it. Its span is
+     * finished by the caller.
+     *
+     * @return false if the attempt already ended, RestClient may start the next one before the
+     * failure of the previous one is reported
+     */
+    synchronized boolean onAttemptFailure(Span attemptSpan, long now) {
+      if (finished || attemptSpan != this.attemptSpan) {
+        return false;
+      }
+      this.attemptSpan = null;
+      failedNanos += now - attemptStart;
+      retryDeadline = now + RETRY_WINDOW_NANOS;
+      lastEndMicros = epochMicros(now);
+      return true;
+    }
+
+    /**
+     * Finishes the logical request after its last attempt got a response
+     */
+    void finish() {
+      synchronized (this) {
+        if (finished) {
+          return;
+        }
+        finish(false, 0);
+      }
+      requests.remove(original, this);
+    }
+
+    private void failed(Span attemptSpan, String cause, long now) {
+      failedNanos += now - attemptStart;
+      Tags.ERROR.set(attemptSpan, Boolean.TRUE);
+      Map<String, Object> errorLogs = new HashMap<>(4);
+      errorLogs.put("event", Tags.ERROR.getKey());
+      errorLogs.put("message", cause);
+      attemptSpan.log(errorLogs);
+    }
+
+    synchronized boolean expire(long now) {
+      if (finished) {
+        return true;
+      }
+      if (attemptSpan != null && now - attemptStart > MAX_ATTEMPT_NANOS) {
+        failed(attemptSpan, "no response", now);
+        attemptSpan.finish();
+        attemptSpan = null;
+        finish(true, 0);
+        return true;
+      }
+      if (retryDeadline != 0 && now - retryDeadline > 0) {
+        // not when the retry window ran out
+        finish(true, lastEndMicros);
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * @param finishMicros finish timestamp of the span, 0 for now
+     */
+    private void finish(boolean error, long finishMicros) {
+      finished = true;
+      span.setTag(RETRY_ATTEMPTS, attempts);
+      span.setTag(RETRY_FAILED_MS, TimeUnit.NANOSECONDS.toMillis(failedNanos));
+      if (error) {
+        Tags.ERROR.set(span, Boolean.TRUE);
+      }
+      if (finishMicros > 0) {
+        span.finish(finishMicros);
+      } else {
+        span.finish();
+      }
+    }
+  }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import java.util.Map;
+
+/**
+ * Receives the latencies periodically reported by a MetricsReporter, e.g. to push them to a
+ * metrics backend. Called on the reporter thread, never on a client thread.
+ */
+@FunctionalInterface
+public interface MetricsExporter {
+
+  /**
+   * @param snapshots latency histograms (in nanoseconds) per endpoint or action, recorded since
+   * the previous export
+   */
+  void export(Map<String, HistogramSnapshot> snapshots);
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically takes a snapshot of a LatencyMetrics (resetting it) and hands it to a
+ * MetricsExporter, on a daemon thread of its own.
+ */
+public class MetricsReporter implements Closeable {
+
+  private final LatencyMetrics metrics;
+  private final MetricsExporter exporter;
+  private final ScheduledExecutorService executor;
+
+  public MetricsReporter(LatencyMetrics metrics, MetricsExporter exporter, long period,
+      TimeUnit unit) {
+    this.metrics = metrics;
+    this.exporter = exporter;
+    this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "elasticsearch-metrics-reporter");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleAtFixedRate(this::report, period, period, unit);
+  }
+
+  /**
+   * Exports the latencies recorded since the previous report
+   */
+  public void report() {
+    try {
+      exporter.export(metrics.snapshotAndReset());
+    } catch (RuntimeException ignore) {
+      // a failing exporter must not stop the next reports
+    }
+  }
+
+  /**
+   * Stops reporting, after exporting what was recorded since the last report
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    report();
+  }
+}
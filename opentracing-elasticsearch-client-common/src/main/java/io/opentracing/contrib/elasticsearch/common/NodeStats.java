@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.HttpHost;
+
+/**
+ * Exponentially weighted moving averages of the latency and the error rate of every node, fed by
+ * the TracingHttpClientConfigCallback with every request (sampled or not). A LatencyAwareNodeSelector
+ * uses the score of the nodes to steer RestClient traffic away from slow or failing nodes.
+ *
+ * <p>Responses with status 429 or 5xx count as errors, as well as requests failing without a
+ * response (e.g. a refused connection or a timeout).
+ */
+public class NodeStats {
+
+  public static final double DEFAULT_ALPHA = 0.2;
+  /**
+   * A node failing every request scores as if it was this many times slower
+   */
+  public static final double ERROR_PENALTY = 10;
+
+  private final double alpha;
+  private final ConcurrentMap<HttpHost, Ewma> nodes = new ConcurrentHashMap<>();
+
+  /**
+   * @param alpha weight of the latest request, between 0 (exclusive) and 1. Higher values react
+   * faster to a node slowing down or recovering, lower ones smooth out single outliers.
+   */
+  public NodeStats(double alpha) {
+    if (alpha <= 0 || alpha > 1) {
+      throw new IllegalArgumentException("alpha must be between 0 (exclusive) and 1");
+    }
+    this.alpha = alpha;
+  }
+
+  public NodeStats() {
+    this(DEFAULT_ALPHA);
+  }
+
+  /**
+   * @param host node the request was sent to
+   * @param nanos latency in nanoseconds
+   * @param error true if the request failed
+   */
+  public void record(HttpHost host, long nanos, boolean error) {
+    Ewma ewma = nodes.get(host);
+    if (ewma == null) {
+      Ewma created = new Ewma(nanos, error);
+      ewma = nodes.putIfAbsent(host, created);
+      if (ewma == null) {
+        return;
+      }
+    }
+    ewma.update(nanos, error, alpha);
+  }
+
+  /**
+   * @return average latency of the node in nanoseconds, NaN if no request was recorded for it
+   */
+  public double getLatencyNanos(HttpHost host) {
+    Ewma ewma = nodes.get(host);
+    return (ewma == null) ? Double.NaN : Double.longBitsToDouble(ewma.latency.get());
+  }
+
+  /**
+   * @return average fraction of failed requests of the node, NaN if no request was recorded for it
+   */
+  public double getErrorRate(HttpHost host) {
+    Ewma ewma = nodes.get(host);
+    return (ewma == null) ? Double.NaN : Double.longBitsToDouble(ewma.errors.get());
+  }
+
+  /**
+   * @return average latency of the node in nanoseconds, multiplied by up to 1 + ERROR_PENALTY
+   * depending on its error rate. Lower is better, NaN if no request was recorded for the node.
+   */
+  public double getScore(HttpHost host) {
+    Ewma ewma = nodes.get(host);
+    if (ewma == null) {
+      return Double.NaN;
+    }
+    return Double.longBitsToDouble(ewma.latency.get())
+        * (1 + ERROR_PENALTY * Double.longBitsToDouble(ewma.errors.get()));
+  }
+
+  /**
+   * @return true if a response with this status code counts as an error of the node
+   */
+  public static boolean isError(int statusCode) {
+    return statusCode == 429 || statusCode >= 500;
+  }
+
+  private static final class Ewma {
+
+    // doubles as raw long bits, updated with compare-and-set
+    private final AtomicLong latency;
+    private final AtomicLong errors;
+
+    private Ewma(long nanos, boolean error) {
+      this.latency = new AtomicLong(Double.doubleToRawLongBits(nanos));
+      this.errors = new AtomicLong(Double.doubleToRawLongBits(error ? 1 : 0));
+    }
+
+    private void update(long nanos, boolean error, double alpha) {
+      update(latency, nanos, alpha);
+      update(errors, error ? 1 : 0, alpha);
+    }
+
+    private static void update(AtomicLong average, double sample, double alpha) {
+      long bits;
+      long updated;
+      do {
+        bits = average.get();
+        double value = Double.longBitsToDouble(bits);
+        updated = Double.doubleToRawLongBits(value + alpha * (sample - value));
+      } while (!average.compareAndSet(bits, updated));
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import io.opentracing.SpanContext;
+import java.util.function.Function;
+
+/**
+ * Formats of the X-Opaque-Id header set on requests, from the span context of the request.
+ * Elasticsearch writes the header into its slow logs and shows it in the tasks API, which lets
+ * those be joined with the trace.
+ */
+public class OpaqueIdFormat {
+
+  public static final String HEADER = "X-Opaque-Id";
+
+  private static final String TRACE_ID_TOKEN = "{traceId}";
+  private static final String SPAN_ID_TOKEN = "{spanId}";
+
+  /**
+   * "traceId-spanId"
+   */
+  public static final Function<SpanContext, String> TRACE_ID_SPAN_ID =
+      (context) -> context.toTraceId() + "-" + context.toSpanId();
+
+  /**
+   * The trace id only, the same for every request of a trace
+   */
+  public static final Function<SpanContext, String> TRACE_ID = SpanContext::toTraceId;
+
+  /**
+   * @param pattern e.g. "my-app/{traceId}/{spanId}", {traceId} and {spanId} are replaced by the
+   * ids of the span context
+   */
+  public static Function<SpanContext, String> pattern(final String pattern) {
+    return (context) -> pattern.replace(TRACE_ID_TOKEN, context.toTraceId())
+        .replace(SPAN_ID_TOKEN, context.toSpanId());
+  }
+
+  /**
+   * @return the formatted id, null if the tracer has no ids (e.g. the NoopTracer)
+   */
+  public static String format(Function<SpanContext, String> format, SpanContext context) {
+    final String traceId = context.toTraceId();
+    if (traceId == null || traceId.isEmpty()) {
+      return null;
+    }
+    final String opaqueId = format.apply(context);
+    return (opaqueId == null || opaqueId.isEmpty()) ? null : opaqueId;
+  }
+}
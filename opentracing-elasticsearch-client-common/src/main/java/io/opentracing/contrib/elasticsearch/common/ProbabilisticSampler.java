@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import java.util.concurrent.ThreadLocalRandom;
+import org.apache.http.HttpRequest;
+
+/**
+ * Samples a fixed fraction of the requests.
+ */
+public class ProbabilisticSampler implements Sampler {
+
+  private final double samplingRate;
+
+  /**
+   * @param samplingRate fraction of the requests to sample, between 0 and 1
+   */
+  public ProbabilisticSampler(double samplingRate) {
+    if (samplingRate < 0 || samplingRate > 1) {
+      throw new IllegalArgumentException("samplingRate must be between 0 and 1");
+    }
+    this.samplingRate = samplingRate;
+  }
+
+  @Override
+  public boolean isSampled(HttpRequest request) {
+    return samplingRate >= 1 || ThreadLocalRandom.current().nextDouble() < samplingRate;
+  }
+
+  public double getSamplingRate() {
+    return samplingRate;
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import java.io.IOException;
+import java.util.function.BiPredicate;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Wraps the request producer of a request and, if it is a search which is traced and the
+ * SearchProfiler decides to profile, sends it with "profile": true added to its body. The body of
+ * the request is swapped while it is sent and put back once the exchange is over. Profiled
+ * requests are marked with the OT_SEARCH_PROFILER attribute in their context.
+ */
+final class ProfilingRequestProducer implements HttpAsyncRequestProducer {
+
+  static final String OT_SEARCH_PROFILER = "ot-search-profiler";
+
+  // larger bodies are sent as they are
+  static final int MAX_BODY_BYTES = 1 << 20;
+
+  private final HttpAsyncRequestProducer producer;
+  private final SearchProfiler profiler;
+  private final HttpContext context;
+  private final BiPredicate<HttpRequest, HttpContext> traced;
+  // the request and its own body while the profiled body is sent instead
+  private HttpEntityEnclosingRequest request;
+  private HttpEntity originalBody;
+  private NByteArrayEntity profiledBody;
+
+  /**
+   * @param traced decides whether a request is traced. The body is generated before the request
+   * interceptors run, so the decision is made here then.
+   */
+  ProfilingRequestProducer(HttpAsyncRequestProducer producer, SearchProfiler profiler,
+      HttpContext context, BiPredicate<HttpRequest, HttpContext> traced) {
+    this.producer = producer;
+    this.profiler = profiler;
+    this.context = context;
+    this.traced = traced;
+  }
+
+  @Override
+  public HttpHost getTarget() {
+    return producer.getTarget();
+  }
+
+  @Override
+  public HttpRequest generateRequest() throws IOException, HttpException {
+    restore();
+    final HttpRequest generated = producer.generateRequest();
+    context.removeAttribute(OT_SEARCH_PROFILER);
+    if (!(generated instanceof HttpEntityEnclosingRequest) || !SearchProfiler.isSearch(generated)
+        || !traced.test(generated, context) || !profiler.shouldProfile(null)) {
+      return generated;
+    }
+
+    final HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) generated;
+    final HttpEntity entity = enclosing.getEntity();
+    if (entity != null && (!entity.isRepeatable() || entity.getContentEncoding() != null
+        || entity.getContentLength() < 0 || entity.getContentLength() > MAX_BODY_BYTES)) {
+      return generated;
+    }
+    final byte[] body = SearchProfiler.enableProfile(
+        (entity != null) ? EntityUtils.toByteArray(entity) : null);
+    if (body == null) {
+      return generated;
+    }
+
+    final NByteArrayEntity profiled = new NByteArrayEntity(body, ContentType.APPLICATION_JSON);
+    if (entity != null && entity.getContentType() != null) {
+      profiled.setContentType(entity.getContentType());
+    }
+    // the request itself is sent, a copy would lose its config and cancellation
+    enclosing.setEntity(profiled);
+    request = enclosing;
+    originalBody = entity;
+    profiledBody = profiled;
+    context.setAttribute(OT_SEARCH_PROFILER, profiler);
+    return generated;
+  }
+
+  @Override
+  public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+    if (profiledBody != null) {
+      profiledBody.produceContent(encoder, ioctrl);
+    } else {
+      producer.produceContent(encoder, ioctrl);
+    }
+  }
+
+  @Override
+  public void requestCompleted(HttpContext context) {
+    producer.requestCompleted(context);
+  }
+
+  @Override
+  public void failed(Exception ex) {
+    restore();
+    producer.failed(ex);
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return producer.isRepeatable();
+  }
+
+  @Override
+  public void resetRequest() throws IOException {
+    restore();
+    producer.resetRequest();
+  }
+
+  @Override
+  public void close() throws IOException {
+    restore();
+    producer.close();
+  }
+
+  /**
+   * Puts the body of the request back, e.g. before it is sent again by another attempt
+   */
+  private void restore() {
+    if (request != null) {
+      request.setEntity(originalBody);
+      request = null;
+      originalBody = null;
+      profiledBody = null;
+    }
+  }
+}
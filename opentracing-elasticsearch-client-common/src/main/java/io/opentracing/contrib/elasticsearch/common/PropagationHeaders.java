@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.propagation.Format;
+import io.opentracing.propagation.TextMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.http.HeaderIterator;
+import org.apache.http.HttpRequest;
+
+/**
+ * Names of the http headers a tracer propagates span contexts in. Used to skip Tracer.extract()
+ * for requests which carry none of them.
+ */
+public class PropagationHeaders {
+
+  /**
+   * Headers of the commonly used propagation formats: Jaeger, B3 (Zipkin), W3C Trace Context,
+   * LightStep, Datadog and the MockTracer
+   */
+  public static final PropagationHeaders KNOWN = of(
+      Arrays.asList(
+          "uber-trace-id", "jaeger-debug-id", "jaeger-baggage",
+          "X-B3-TraceId", "X-B3-SpanId", "X-B3-ParentSpanId", "X-B3-Sampled", "X-B3-Flags", "b3",
+          "traceparent", "tracestate",
+          "ot-tracer-traceid", "ot-tracer-spanid", "ot-tracer-sampled",
+          "x-datadog-trace-id", "x-datadog-parent-id", "x-datadog-sampling-priority",
+          "x-datadog-origin",
+          "traceid", "spanid"),
+      Arrays.asList("uberctx-", "baggage-", "ot-baggage-"));
+
+  private final Set<String> names;
+  private final String[] prefixes;
+
+  private PropagationHeaders(Set<String> names, String[] prefixes) {
+    this.names = names;
+    this.prefixes = prefixes;
+  }
+
+  /**
+   * @param names header names, compared case insensitive
+   * @param prefixes header name prefixes, e.g. of baggage headers, compared case insensitive
+   */
+  public static PropagationHeaders of(Collection<String> names, Collection<String> prefixes) {
+    return new PropagationHeaders(HttpTextMapExtractAdapter.keys(names),
+        prefixes.toArray(new String[0]));
+  }
+
+  /**
+   * Headers the given tracer injects, in addition to the KNOWN ones. They are found by injecting
+   * the context of an unfinished (never reported) span of the tracer.
+   *
+   * @param tracer the tracer, must be the actual tracer: an unregistered GlobalTracer injects
+   * nothing
+   */
+  public static PropagationHeaders fromTracer(Tracer tracer) {
+    List<String> names = new ArrayList<>(KNOWN.names);
+    Span probe = tracer.buildSpan("propagation-probe").ignoreActiveSpan().start();
+    tracer.inject(probe.context(), Format.Builtin.HTTP_HEADERS, new TextMap() {
+      @Override
+      public Iterator<Map.Entry<String, String>> iterator() {
+        throw new UnsupportedOperationException(
+            "iterator should never be used with Tracer.inject()");
+      }
+
+      @Override
+      public void put(String key, String value) {
+        names.add(key);
+      }
+    });
+    return of(names, Arrays.asList(KNOWN.prefixes));
+  }
+
+  public Set<String> getNames() {
+    return Collections.unmodifiableSet(names);
+  }
+
+  /**
+   * @param request http request
+   * @return true if the request has at least one of the headers
+   */
+  public boolean isPresent(HttpRequest request) {
+    HeaderIterator headers = request.headerIterator();
+    while (headers.hasNext()) {
+      if (matches(headers.nextHeader().getName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param name header name
+   * @return true if it is one of the names or starts with one of the prefixes
+   */
+  public boolean matches(String name) {
+    if (names.contains(name)) {
+      return true;
+    }
+    for (String prefix : prefixes) {
+      if (name.regionMatches(true, 0, prefix, 0, prefix.length())) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
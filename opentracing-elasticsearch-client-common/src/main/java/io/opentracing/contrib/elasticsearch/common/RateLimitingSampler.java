@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.HttpRequest;
+
+/**
+ * Samples at most a given number of requests per second (token bucket). Bursts of up to one
+ * second worth of spans are allowed after idle periods. Lock-free.
+ */
+public class RateLimitingSampler implements Sampler {
+
+  private final double spansPerSecond;
+  private final long intervalNanos;
+  private final long burstNanos;
+  // time at which the bucket is empty again, in System.nanoTime()
+  private final AtomicLong emptyAt;
+
+  /**
+   * @param spansPerSecond maximum number of sampled requests per second
+   */
+  public RateLimitingSampler(double spansPerSecond) {
+    if (spansPerSecond <= 0) {
+      throw new IllegalArgumentException("spansPerSecond must be positive");
+    }
+    this.spansPerSecond = spansPerSecond;
+    this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / spansPerSecond);
+    this.burstNanos = Math.max(intervalNanos, TimeUnit.SECONDS.toNanos(1));
+    this.emptyAt = new AtomicLong(System.nanoTime());
+  }
+
+  @Override
+  public boolean isSampled(HttpRequest request) {
+    final long now = System.nanoTime();
+    while (true) {
+      final long current = emptyAt.get();
+      final long next = ((current - now > 0) ? current : now) + intervalNanos;
+      if (next - now > burstNanos) {
+        return false;
+      }
+      if (emptyAt.compareAndSet(current, next)) {
+        return true;
+      }
+    }
+  }
+
+  public double getSpansPerSecond() {
+    return spansPerSecond;
+  }
+}
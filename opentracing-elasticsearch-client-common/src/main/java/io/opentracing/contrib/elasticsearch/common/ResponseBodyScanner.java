@@ -0,0 +1,226 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import io.opentracing.Span;
+import java.nio.ByteBuffer;
+
+/**
+ * Scans the beginning of a JSON response body for the summary fields Elasticsearch writes before
+ * the hits or items: took, timed_out, _shards.failed and (bulk) errors. It is fed the bytes as the
+ * body is read, without buffering or parsing it. Nested values are skipped, scanning stops at the
+ * hits or items, at the end of the document or after maxBytes.
+ */
+final class ResponseBodyScanner {
+
+  private static final int MAX_TOKEN_LENGTH = 32;
+  // depths up to which objects and arrays are told apart, deeper values are never captured
+  private static final int MAX_DEPTH = 64;
+
+  private final int maxBytes;
+  private int scanned;
+  private boolean done;
+
+  private int depth;
+  // bit n is set if the container at depth n + 1 is an object
+  private long objects;
+  private boolean expectKey;
+  private boolean inString;
+  private boolean escaped;
+  private boolean inShards;
+  private String key;
+  private final StringBuilder token = new StringBuilder(MAX_TOKEN_LENGTH);
+
+  private long took = -1;
+  private Boolean timedOut;
+  private int shardsFailed = -1;
+  private Boolean errors;
+
+  ResponseBodyScanner(int maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Scans the bytes from position from (inclusive) to to (exclusive) of the buffer, without
+   * changing its position
+   */
+  void scan(ByteBuffer buffer, int from, int to) {
+    for (int i = from; i < to && !done; i++) {
+      if (scanned++ >= maxBytes) {
+        done = true;
+        return;
+      }
+      scan((char) (buffer.get(i) & 0xff));
+    }
+  }
+
+  boolean isDone() {
+    return done;
+  }
+
+  long getTook() {
+    return took;
+  }
+
+  Boolean getTimedOut() {
+    return timedOut;
+  }
+
+  int getShardsFailed() {
+    return shardsFailed;
+  }
+
+  Boolean getErrors() {
+    return errors;
+  }
+
+  /**
+   * Tags the fields found
+   */
+  void decorate(Span span) {
+    if (took >= 0) {
+      span.setTag(SpanDecorator.TOOK_MS, took);
+    }
+    if (timedOut != null) {
+      span.setTag(TracingResponseConsumerFactory.TIMED_OUT, timedOut);
+    }
+    if (shardsFailed >= 0) {
+      span.setTag(TracingResponseConsumerFactory.SHARDS_FAILED, shardsFailed);
+    }
+    if (errors != null) {
+      span.setTag(TracingResponseConsumerFactory.BULK_ERRORS, errors);
+    }
+  }
+
+  private void scan(char c) {
+    if (inString) {
+      if (escaped) {
+        escaped = false;
+      } else if (c == '\\') {
+        escaped = true;
+      } else if (c == '"') {
+        inString = false;
+        if (expectKey && isCaptured()) {
+          key = token.toString();
+        }
+        token.setLength(0);
+      } else if (expectKey && isCaptured()) {
+        append(c);
+      }
+      return;
+    }
+
+    switch (c) {
+      case '"':
+        inString = true;
+        token.setLength(0);
+        break;
+      case '{':
+      case '[':
+        if (depth == 1 && ("hits".equals(key) || "items".equals(key))) {
+          // everything of interest comes before
+          done = true;
+          return;
+        }
+        push(c == '{');
+        if (depth == 2) {
+          inShards = "_shards".equals(key);
+        }
+        expectKey = c == '{';
+        break;
+      case '}':
+      case ']':
+        endValue();
+        pop();
+        if (depth < 2) {
+          inShards = false;
+        }
+        done = depth == 0;
+        expectKey = false;
+        break;
+      case ',':
+        endValue();
+        expectKey = isObject();
+        break;
+      case ':':
+        expectKey = false;
+        token.setLength(0);
+        break;
+      case ' ':
+      case '\t':
+      case '\n':
+      case '\r':
+        endValue();
+        break;
+      default:
+        if (!expectKey && key != null && isCaptured()) {
+          append(c);
+        }
+    }
+  }
+
+  private boolean isCaptured() {
+    return depth == 1 || (depth == 2 && inShards);
+  }
+
+  private void append(char c) {
+    if (token.length() < MAX_TOKEN_LENGTH) {
+      token.append(c);
+    }
+  }
+
+  private void endValue() {
+    if (token.length() == 0 || key == null || !isCaptured()) {
+      token.setLength(0);
+      return;
+    }
+    final String value = token.toString();
+    token.setLength(0);
+    try {
+      if (inShards) {
+        if ("failed".equals(key)) {
+          shardsFailed = Integer.parseInt(value);
+        }
+      } else if ("took".equals(key)) {
+        took = Long.parseLong(value);
+      } else if ("timed_out".equals(key)) {
+        timedOut = Boolean.valueOf(value);
+      } else if ("errors".equals(key)) {
+        errors = Boolean.valueOf(value);
+      }
+    } catch (NumberFormatException ignore) {
+    }
+  }
+
+  private void push(boolean object) {
+    if (depth < MAX_DEPTH) {
+      if (object) {
+        objects |= 1L << depth;
+      } else {
+        objects &= ~(1L << depth);
+      }
+    }
+    depth++;
+  }
+
+  private void pop() {
+    if (depth > 0) {
+      depth--;
+    }
+  }
+
+  private boolean isObject() {
+    return depth > 0 && depth <= MAX_DEPTH && (objects & (1L << (depth - 1))) != 0;
+  }
+}
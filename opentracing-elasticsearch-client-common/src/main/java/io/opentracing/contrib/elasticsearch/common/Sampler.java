@@ -0,0 +1,35 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import org.apache.http.HttpRequest;
+
+/**
+ * Decides whether a span is created for a request. Requests which aren't sampled are neither
+ * traced nor decorated, only the context of their parent span (if any) is propagated.
+ */
+@FunctionalInterface
+public interface Sampler {
+
+  /**
+   * Samples every request
+   */
+  Sampler ALWAYS = request -> true;
+
+  /**
+   * @param request http request about to be sent
+   * @return true if a span should be created for the request
+   */
+  boolean isSampled(HttpRequest request);
+}
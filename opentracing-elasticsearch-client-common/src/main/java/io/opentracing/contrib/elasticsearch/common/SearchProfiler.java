@@ -0,0 +1,346 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+import io.opentracing.tag.Tags;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.apache.http.HttpRequest;
+
+/**
+ * Profiles a fraction of the searches (sets "profile": true) and reports the per-shard query,
+ * collector and aggregation timings Elasticsearch returns as child spans of the search span.
+ *
+ * <p>The TracingPreBuiltTransportClients and the TracingHttpClientConfigCallback (with
+ * withBodyTransferSpans(true)) accept a SearchProfiler. Profiling makes searches slower, the rate
+ * should be small. Profiles only tell how long each part took, not when it started: the spans of
+ * a shard start with the search span and their children are laid out one after another.
+ */
+public class SearchProfiler {
+
+  public static final String PROFILE_TYPE = "profile.type";
+  public static final String PROFILE_DESCRIPTION = "profile.description";
+  public static final String PROFILE_SHARD = "profile.shard";
+
+  public static final String SHARD = "shard";
+  public static final String QUERY = "query";
+  public static final String REWRITE = "rewrite";
+  public static final String COLLECTOR = "collector";
+  public static final String AGGREGATION = "aggregation";
+
+  static final int MAX_DESCRIPTION_LENGTH = 256;
+  private static final String SEARCH = "/_search";
+
+  private final double rate;
+  private final Predicate<Span> sampled;
+  private final boolean stripProfile;
+  private final int maxSpans;
+
+  private SearchProfiler(Builder builder) {
+    this.rate = builder.rate;
+    this.sampled = builder.sampled;
+    this.stripProfile = builder.stripProfile;
+    this.maxSpans = builder.maxSpans;
+  }
+
+  /**
+   * @param span span of the search, null if the search isn't traced
+   * @return true if the search should be profiled
+   */
+  public boolean shouldProfile(Span span) {
+    if (span != null && sampled != null && !sampled.test(span)) {
+      return false;
+    }
+    return rate >= 1 || (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate);
+  }
+
+  /**
+   * @return true if the profile should be removed from responses before the application gets
+   * them
+   */
+  public boolean isStripProfile() {
+    return stripProfile;
+  }
+
+  /**
+   * Starts and finishes a child span of the search span for every node, at most maxSpans in total
+   *
+   * @param startMicros start of the search span, in microseconds since the epoch
+   * @param shards the profiled shards
+   */
+  public void report(Tracer tracer, Span span, long startMicros, List<Node> shards) {
+    final int[] remaining = {maxSpans};
+    for (Node shard : shards) {
+      report(tracer, span.context(), startMicros, shard, remaining);
+    }
+  }
+
+  private static void report(Tracer tracer, SpanContext parent, long startMicros, Node node,
+      int[] remaining) {
+    if (remaining[0]-- <= 0) {
+      return;
+    }
+    final Tracer.SpanBuilder spanBuilder = tracer
+        .buildSpan(SHARD.equals(node.type) ? PROFILE_SHARD : node.name)
+        .asChildOf(parent)
+        .withStartTimestamp(startMicros)
+        .withTag(Tags.COMPONENT.getKey(), SpanDecorator.COMPONENT_NAME)
+        .withTag(PROFILE_TYPE, node.type);
+    if (SHARD.equals(node.type)) {
+      spanBuilder.withTag(PROFILE_SHARD, node.name);
+    } else if (node.description != null) {
+      spanBuilder.withTag(PROFILE_DESCRIPTION, truncate(node.description));
+    }
+    final Span span = spanBuilder.start();
+
+    long childStartMicros = startMicros;
+    for (Node child : node.children) {
+      report(tracer, span.context(), childStartMicros, child, remaining);
+      childStartMicros += TimeUnit.NANOSECONDS.toMicros(child.timeNanos);
+    }
+    // children may add up to more than their parent, e.g. the shards
+    span.finish(Math.max(startMicros + TimeUnit.NANOSECONDS.toMicros(node.timeNanos),
+        childStartMicros));
+  }
+
+  private static String truncate(String description) {
+    return (description.length() <= MAX_DESCRIPTION_LENGTH) ? description
+        : description.substring(0, MAX_DESCRIPTION_LENGTH - 3) + "...";
+  }
+
+  /**
+   * @param startNanos System.nanoTime() at the start of the span
+   * @return the start in microseconds since the epoch
+   */
+  public static long startMicros(long startNanos) {
+    return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis())
+        - TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * @return true if the request is a search (GET or POST to _search)
+   */
+  static boolean isSearch(HttpRequest request) {
+    final String method = request.getRequestLine().getMethod();
+    if (!"GET".equals(method) && !"POST".equals(method)) {
+      return false;
+    }
+    String path = request.getRequestLine().getUri();
+    final int query = path.indexOf('?');
+    if (query >= 0) {
+      path = path.substring(0, query);
+    }
+    return path.endsWith(SEARCH);
+  }
+
+  /**
+   * @param body search request body, null or empty if there is none
+   * @return the body with "profile": true, null if it isn't a JSON object or sets profile already
+   */
+  static byte[] enableProfile(byte[] body) {
+    if (body == null || body.length == 0) {
+      return "{\"profile\":true}".getBytes(StandardCharsets.UTF_8);
+    }
+    final String json = new String(body, StandardCharsets.UTF_8);
+    try {
+      final Object source = JsonParser.parse(json);
+      if (!(source instanceof Map) || ((Map<?, ?>) source).containsKey("profile")) {
+        return null;
+      }
+      final int start = json.indexOf('{') + 1;
+      final String separator = ((Map<?, ?>) source).isEmpty() ? "" : ",";
+      return (json.substring(0, start) + "\"profile\":true" + separator + json.substring(start))
+          .getBytes(StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException invalid) {
+      return null;
+    }
+  }
+
+  /**
+   * @param response search response body
+   * @return the profiled shards of the response, empty if it has none
+   */
+  static List<Node> parseProfile(String response) {
+    final Object document = JsonParser.parse(response);
+    final Object profile = (document instanceof Map) ? ((Map<?, ?>) document).get("profile") : null;
+    final Object shards = (profile instanceof Map) ? ((Map<?, ?>) profile).get("shards") : null;
+    if (!(shards instanceof List)) {
+      return Collections.emptyList();
+    }
+    final List<Node> nodes = new ArrayList<>();
+    for (Object shard : (List<?>) shards) {
+      if (!(shard instanceof Map)) {
+        continue;
+      }
+      final Map<?, ?> shardMap = (Map<?, ?>) shard;
+      final List<Node> children = new ArrayList<>();
+      for (Object search : list(shardMap.get("searches"))) {
+        if (!(search instanceof Map)) {
+          continue;
+        }
+        final Map<?, ?> searchMap = (Map<?, ?>) search;
+        children.addAll(parseNodes(QUERY, searchMap.get("query"), "type", "description"));
+        final long rewriteNanos = number(searchMap.get("rewrite_time"));
+        if (rewriteNanos > 0) {
+          children.add(new Node(REWRITE, REWRITE, null, rewriteNanos,
+              Collections.emptyList()));
+        }
+        children.addAll(parseNodes(COLLECTOR, searchMap.get("collector"), "name", "reason"));
+      }
+      children.addAll(parseNodes(AGGREGATION, shardMap.get("aggregations"), "type",
+          "description"));
+      nodes.add(new Node(SHARD, String.valueOf(shardMap.get("id")), null, 0, children));
+    }
+    return nodes;
+  }
+
+  private static List<Node> parseNodes(String type, Object array, String nameField,
+      String descriptionField) {
+    final List<Node> nodes = new ArrayList<>();
+    for (Object element : list(array)) {
+      if (element instanceof Map) {
+        final Map<?, ?> map = (Map<?, ?>) element;
+        final Object description = map.get(descriptionField);
+        nodes.add(new Node(type, String.valueOf(map.get(nameField)),
+            (description != null) ? description.toString() : null,
+            number(map.get("time_in_nanos")),
+            parseNodes(type, map.get("children"), nameField, descriptionField)));
+      }
+    }
+    return nodes;
+  }
+
+  private static List<?> list(Object value) {
+    return (value instanceof List) ? (List<?>) value : Collections.emptyList();
+  }
+
+  private static long number(Object value) {
+    return (value instanceof Number) ? ((Number) value).longValue() : 0;
+  }
+
+  /**
+   * @return the search response body without profile
+   */
+  static String stripProfile(String response) {
+    return JsonParser.remove(response, "profile");
+  }
+
+  /**
+   * A profiled shard, query, collector or aggregation
+   */
+  public static final class Node {
+
+    private final String type;
+    private final String name;
+    private final String description;
+    private final long timeNanos;
+    private final List<Node> children;
+
+    /**
+     * @param type SHARD, QUERY, REWRITE, COLLECTOR or AGGREGATION
+     * @param name shard id, query type, collector or aggregation name
+     * @param description lucene query, collector reason or aggregation name, may be null
+     * @param timeNanos time spent including the children
+     */
+    public Node(String type, String name, String description, long timeNanos,
+        List<Node> children) {
+      this.type = type;
+      this.name = name;
+      this.description = description;
+      this.timeNanos = timeNanos;
+      this.children = children;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getDescription() {
+      return description;
+    }
+
+    public long getTimeNanos() {
+      return timeNanos;
+    }
+
+    public List<Node> getChildren() {
+      return children;
+    }
+  }
+
+  public static class Builder {
+
+    private double rate = 0.01;
+    private Predicate<Span> sampled;
+    private boolean stripProfile;
+    private int maxSpans = 100;
+
+    /**
+     * @param rate fraction of the searches to profile, 0.01 by default
+     */
+    public Builder withRate(double rate) {
+      if (rate < 0 || rate > 1) {
+        throw new IllegalArgumentException("rate must be between 0 and 1");
+      }
+      this.rate = rate;
+      return this;
+    }
+
+    /**
+     * @param sampled tells whether the tracer samples a span, only searches of sampled spans are
+     * profiled. By default every traced search may be.
+     */
+    public Builder withSampled(Predicate<Span> sampled) {
+      this.sampled = sampled;
+      return this;
+    }
+
+    /**
+     * @param stripProfile if true the profile is removed from responses, so the application gets
+     * the response it asked for. False by default.
+     */
+    public Builder withStripProfile(boolean stripProfile) {
+      this.stripProfile = stripProfile;
+      return this;
+    }
+
+    /**
+     * @param maxSpans maximum number of spans reported per search, 100 by default
+     */
+    public Builder withMaxSpans(int maxSpans) {
+      if (maxSpans <= 0) {
+        throw new IllegalArgumentException("maxSpans must be positive");
+      }
+      this.maxSpans = maxSpans;
+      return this;
+    }
+
+    public SearchProfiler build() {
+      return new SearchProfiler(this);
+    }
+  }
+}
@@ -15,16 +15,39 @@ package io.opentracing.contrib.elasticsearch.common;
 
 import io.opentracing.Span;
 import io.opentracing.tag.Tags;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpMessage;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 
 public class SpanDecorator {
 
   public static final String COMPONENT_NAME = "java-elasticsearch";
+  public static final String REQUEST_CONTENT_LENGTH = "http.request_content_length";
+  public static final String RESPONSE_CONTENT_LENGTH = "http.response_content_length";
+  // tagged on search and bulk spans of both clients
+  public static final String TOOK_MS = "took_ms";
+  public static final String CLIENT_OVERHEAD_MS = "client_overhead_ms";
+
+  private static volatile StackTraceCapture stackTraceCapture = StackTraceCapture.FULL;
+
+  /**
+   * Sets how stack traces are rendered by onError(Throwable, Span), StackTraceCapture.FULL by
+   * default
+   */
+  public static void setStackTraceCapture(StackTraceCapture stackTraceCapture) {
+    SpanDecorator.stackTraceCapture =
+        (stackTraceCapture == null) ? StackTraceCapture.FULL : stackTraceCapture;
+  }
+
+  public static StackTraceCapture getStackTraceCapture() {
+    return stackTraceCapture;
+  }
 
   public static void onRequest(Span span) {
     Tags.COMPONENT.set(span, COMPONENT_NAME);
@@ -40,24 +63,64 @@ public class SpanDecorator {
     Tags.HTTP_STATUS.set(span, response.getStatusLine().getStatusCode());
   }
 
+  public static void onRequestSize(long size, Span span) {
+    span.setTag(REQUEST_CONTENT_LENGTH, size);
+  }
+
+  public static void onResponseSize(long size, Span span) {
+    span.setTag(RESPONSE_CONTENT_LENGTH, size);
+  }
+
   public static void onError(Throwable throwable, Span span) {
+    onError(throwable, span, stackTraceCapture);
+  }
+
+  public static void onError(Throwable throwable, Span span, StackTraceCapture stackTraceCapture) {
     Tags.ERROR.set(span, Boolean.TRUE);
-    span.log(errorLogs(throwable));
+    span.log(errorLogs(throwable, stackTraceCapture));
   }
 
-  private static Map<String, Object> errorLogs(Throwable throwable) {
-    Map<String, Object> errorLogs = new HashMap<>(4);
+  private static Map<String, Object> errorLogs(Throwable throwable,
+      StackTraceCapture stackTraceCapture) {
+    Map<String, Object> errorLogs = new HashMap<>(8);
     errorLogs.put("event", Tags.ERROR.getKey());
     errorLogs.put("error.kind", throwable.getClass().getName());
     errorLogs.put("error.object", throwable);
 
     errorLogs.put("message", throwable.getMessage());
 
-    StringWriter sw = new StringWriter();
-    throwable.printStackTrace(new PrintWriter(sw));
-    errorLogs.put("stack", sw.toString());
+    String stack = stackTraceCapture.render(throwable);
+    if (stack != null) {
+      errorLogs.put("stack", stack);
+    }
 
     return errorLogs;
   }
-}
 
+  /**
+   * Body size from the Content-Length header, or from the entity if the header isn't set (yet)
+   *
+   * @param message http request or response
+   * @return body size, 0 without body, -1 if unknown (e.g. chunked)
+   */
+  static long contentLength(HttpMessage message) {
+    final Header header = message.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+    if (header != null) {
+      try {
+        return Long.parseLong(header.getValue().trim());
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+
+    final HttpEntity entity;
+    if (message instanceof HttpResponse) {
+      entity = ((HttpResponse) message).getEntity();
+    } else if (message instanceof HttpEntityEnclosingRequest) {
+      entity = ((HttpEntityEnclosingRequest) message).getEntity();
+    } else {
+      entity = null;
+    }
+    return (entity == null) ? 0 : entity.getContentLength();
+  }
+}
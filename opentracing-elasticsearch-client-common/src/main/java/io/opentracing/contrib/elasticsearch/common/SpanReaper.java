@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.tag.Tag;
+import io.opentracing.tag.Tags;
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finishes the spans of the TracingHttpClientConfigCallback which are still in flight after a
+ * deadline, marked with an error. A request may never end, e.g. if the http client is closed
+ * while it is in flight, and its span would never be reported.
+ *
+ * <p>At most maxSpans spans are tracked, spans started beyond that aren't reaped. Whatever finishes
+ * a tracked span first wins, the response arriving after the deadline changes nothing.
+ */
+public class SpanReaper implements Closeable {
+
+  public static final int DEFAULT_MAX_SPANS = 10_000;
+  private static final long MIN_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long MAX_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final long deadlineNanos;
+  private final int maxSpans;
+  private final Set<ReapableSpan> spans = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger size = new AtomicInteger();
+  private final ScheduledExecutorService executor;
+
+  /**
+   * @param deadline spans in flight for longer are finished
+   * @param unit unit of the deadline
+   * @param maxSpans maximum number of spans tracked at once
+   */
+  public SpanReaper(long deadline, TimeUnit unit, int maxSpans) {
+    if (deadline <= 0) {
+      throw new IllegalArgumentException("deadline must be positive");
+    }
+    if (maxSpans <= 0) {
+      throw new IllegalArgumentException("maxSpans must be positive");
+    }
+    this.deadlineNanos = unit.toNanos(deadline);
+    this.maxSpans = maxSpans;
+    this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "elasticsearch-span-reaper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    final long period = Math.min(Math.max(deadlineNanos / 4, MIN_PERIOD_NANOS), MAX_PERIOD_NANOS);
+    executor.scheduleWithFixedDelay(this::reap, period, period, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * At most DEFAULT_MAX_SPANS spans are tracked at once
+   */
+  public SpanReaper(long deadline, TimeUnit unit) {
+    this(deadline, unit, DEFAULT_MAX_SPANS);
+  }
+
+  /**
+   * @return the span to use instead of the given one, tracked until it is finished. The span
+   * itself if maxSpans spans are tracked already.
+   */
+  Span track(Span span) {
+    if (size.incrementAndGet() > maxSpans) {
+      size.decrementAndGet();
+      return span;
+    }
+    ReapableSpan tracked = new ReapableSpan(span, System.nanoTime() + deadlineNanos);
+    spans.add(tracked);
+    return tracked;
+  }
+
+  /**
+   * @return number of spans in flight
+   */
+  public int getSize() {
+    return size.get();
+  }
+
+  void reap() {
+    reap(System.nanoTime());
+  }
+
+  void reap(long now) {
+    for (ReapableSpan span : spans) {
+      if (now - span.deadline > 0) {
+        span.reap(deadlineNanos);
+      }
+    }
+  }
+
+  /**
+   * Stops reaping, spans in flight are left as they are
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+
+  private class ReapableSpan implements Span {
+
+    private final Span span;
+    private final long deadline;
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    ReapableSpan(Span span, long deadline) {
+      this.span = span;
+      this.deadline = deadline;
+    }
+
+    private boolean untrack() {
+      if (!finished.compareAndSet(false, true)) {
+        return false;
+      }
+      spans.remove(this);
+      size.decrementAndGet();
+      return true;
+    }
+
+    void reap(long deadlineNanos) {
+      if (!untrack()) {
+        return;
+      }
+      Tags.ERROR.set(span, Boolean.TRUE);
+      Map<String, Object> errorLogs = new HashMap<>(4);
+      errorLogs.put("event", Tags.ERROR.getKey());
+      errorLogs.put("message",
+          "No response within " + TimeUnit.NANOSECONDS.toMillis(deadlineNanos) + "ms");
+      span.log(errorLogs);
+      span.finish();
+    }
+
+    @Override
+    public SpanContext context() {
+      return span.context();
+    }
+
+    @Override
+    public Span setTag(String key, String value) {
+      if (!finished.get()) {
+        span.setTag(key, value);
+      }
+      return this;
+    }
+
+    @Override
+    public Span setTag(String key, boolean value) {
+      if (!finished.get()) {
+        span.setTag(key, value);
+      }
+      return this;
+    }
+
+    @Override
+    public Span setTag(String key, Number value) {
+      if (!finished.get()) {
+        span.setTag(key, value);
+      }
+      return this;
+    }
+
+    @Override
+    public <T> Span setTag(Tag<T> tag, T value) {
+      if (!finished.get()) {
+        span.setTag(tag, value);
+      }
+      return this;
+    }
+
+    @Override
+    public Span log(Map<String, ?> fields) {
+      if (!finished.get()) {
+        span.log(fields);
+      }
+      return this;
+    }
+
+    @Override
+    public Span log(long timestampMicroseconds, Map<String, ?> fields) {
+      if (!finished.get()) {
+        span.log(timestampMicroseconds, fields);
+      }
+      return this;
+    }
+
+    @Override
+    public Span log(String event) {
+      if (!finished.get()) {
+        span.log(event);
+      }
+      return this;
+    }
+
+    @Override
+    public Span log(long timestampMicroseconds, String event) {
+      if (!finished.get()) {
+        span.log(timestampMicroseconds, event);
+      }
+      return this;
+    }
+
+    @Override
+    public Span setBaggageItem(String key, String value) {
+      if (!finished.get()) {
+        span.setBaggageItem(key, value);
+      }
+      return this;
+    }
+
+    @Override
+    public String getBaggageItem(String key) {
+      return span.getBaggageItem(key);
+    }
+
+    @Override
+    public Span setOperationName(String operationName) {
+      if (!finished.get()) {
+        span.setOperationName(operationName);
+      }
+      return this;
+    }
+
+    @Override
+    public void finish() {
+      if (untrack()) {
+        span.finish();
+      }
+    }
+
+    @Override
+    public void finish(long finishMicros) {
+      if (untrack()) {
+        span.finish(finishMicros);
+      }
+    }
+  }
+}
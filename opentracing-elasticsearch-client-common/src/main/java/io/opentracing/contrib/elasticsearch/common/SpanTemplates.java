@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import io.opentracing.Tracer;
+import io.opentracing.tag.Tags;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches what every transport client span of a request class and action starts with: the
+ * operation name and the "action", "span.kind" and "component" tags. The templates are kept in a
+ * {@link ClassValue} per request class, so looking one up neither computes the simple name of the
+ * class nor calls a span name function.
+ *
+ * <p>By default the operation name is the simple name of the request class. It can be overridden
+ * per action, e.g. {@code "indices:data/read/search" -> "search"}. Instances are immutable.
+ */
+public class SpanTemplates {
+
+  public static final String ACTION = "action";
+
+  private static final SpanTemplates DEFAULT = new SpanTemplates(Collections.emptyMap());
+
+  private final Map<String, String> operationNames;
+  // request class -> action -> template
+  private final ClassValue<ConcurrentMap<String, SpanTemplate>> templates =
+      new ClassValue<ConcurrentMap<String, SpanTemplate>>() {
+        @Override
+        protected ConcurrentMap<String, SpanTemplate> computeValue(Class<?> requestClass) {
+          // a request class is almost always executed with a single action
+          return new ConcurrentHashMap<>(2);
+        }
+      };
+
+  /**
+   * @param operationNames operation names per action, overriding the simple name of the request
+   * class
+   */
+  public SpanTemplates(Map<String, String> operationNames) {
+    this.operationNames = operationNames.isEmpty() ? Collections.emptyMap()
+        : Collections.unmodifiableMap(new HashMap<>(operationNames));
+  }
+
+  /**
+   * @return templates naming spans after the simple name of the request class
+   */
+  public static SpanTemplates defaults() {
+    return DEFAULT;
+  }
+
+  /**
+   * @return new templates with the operation name of the action overridden
+   */
+  public SpanTemplates withOperationName(String action, String operationName) {
+    Map<String, String> names = new HashMap<>(operationNames);
+    names.put(action, operationName);
+    return new SpanTemplates(names);
+  }
+
+  public Map<String, String> getOperationNames() {
+    return operationNames;
+  }
+
+  public SpanTemplate get(Class<?> requestClass, String action) {
+    final ConcurrentMap<String, SpanTemplate> byAction = templates.get(requestClass);
+    final SpanTemplate template = byAction.get(action);
+    if (template != null) {
+      return template;
+    }
+    return byAction.computeIfAbsent(action, key -> new SpanTemplate(
+        operationNames.getOrDefault(key, requestClass.getSimpleName()), key));
+  }
+
+  /**
+   * Operation name and static tags of the spans of a request class and action
+   */
+  public static final class SpanTemplate {
+
+    private final String operationName;
+    private final String[] tagKeys;
+    private final String[] tagValues;
+
+    SpanTemplate(String operationName, String action) {
+      this.operationName = operationName;
+      this.tagKeys = new String[]{ACTION, Tags.SPAN_KIND.getKey(), Tags.COMPONENT.getKey()};
+      this.tagValues = new String[]{action, Tags.SPAN_KIND_CLIENT, SpanDecorator.COMPONENT_NAME};
+    }
+
+    public String getOperationName() {
+      return operationName;
+    }
+
+    /**
+     * @return a span builder with the operation name and the tags of the template
+     */
+    public Tracer.SpanBuilder buildSpan(Tracer tracer) {
+      final Tracer.SpanBuilder spanBuilder = tracer.buildSpan(operationName);
+      for (int i = 0; i < tagKeys.length; i++) {
+        spanBuilder.withTag(tagKeys[i], tagValues[i]);
+      }
+      return spanBuilder;
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decides how the stack trace of an error is rendered into the "stack" field of the error log.
+ */
+public class StackTraceCapture {
+
+  /**
+   * Renders the complete stack trace, as printed by {@link Throwable#printStackTrace()}
+   */
+  public static final StackTraceCapture FULL = new StackTraceCapture(-1, 0);
+
+  /**
+   * Doesn't render stack traces at all
+   */
+  public static final StackTraceCapture NONE = new StackTraceCapture(0, 0);
+
+  public static final int DEFAULT_CACHE_SIZE = 256;
+
+  // causes rendered below the top level throwable, also guards against cause cycles
+  private static final int MAX_CAUSES = 8;
+
+  private final int maxDepth;
+  private final int cacheSize;
+  private final ConcurrentMap<Signature, String> cache;
+
+  private StackTraceCapture(int maxDepth, int cacheSize) {
+    this.maxDepth = maxDepth;
+    this.cacheSize = cacheSize;
+    this.cache = (cacheSize > 0) ? new ConcurrentHashMap<>() : null;
+  }
+
+  /**
+   * Renders at most maxDepth frames of the throwable and of each of its causes. The exception
+   * messages are left out, they are logged in the "message" field. Rendered stack traces are cached
+   * (DEFAULT_CACHE_SIZE) so repeated errors with identical stacks are rendered once.
+   *
+   * @param maxDepth maximum number of frames rendered per throwable
+   */
+  public static StackTraceCapture truncated(int maxDepth) {
+    return truncated(maxDepth, DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * A configurable version of truncated(int)
+   *
+   * @param maxDepth maximum number of frames rendered per throwable
+   * @param cacheSize maximum number of rendered stack traces kept, 0 disables caching
+   */
+  public static StackTraceCapture truncated(int maxDepth, int cacheSize) {
+    if (maxDepth <= 0) {
+      throw new IllegalArgumentException("maxDepth must be positive");
+    }
+    if (cacheSize < 0) {
+      throw new IllegalArgumentException("cacheSize must not be negative");
+    }
+    return new StackTraceCapture(maxDepth, cacheSize);
+  }
+
+  /**
+   * @param throwable the error
+   * @return the rendered stack trace or null if it shouldn't be logged
+   */
+  public String render(Throwable throwable) {
+    if (maxDepth < 0) {
+      StringWriter sw = new StringWriter();
+      throwable.printStackTrace(new PrintWriter(sw));
+      return sw.toString();
+    }
+    if (maxDepth == 0) {
+      return null;
+    }
+    if (cache == null) {
+      return renderTruncated(new Signature(throwable));
+    }
+
+    Signature signature = new Signature(throwable);
+    String stack = cache.get(signature);
+    if (stack == null) {
+      stack = renderTruncated(signature);
+      if (cache.size() >= cacheSize) {
+        cache.clear();
+      }
+      cache.putIfAbsent(signature, stack);
+    }
+    return stack;
+  }
+
+  private String renderTruncated(Signature signature) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < signature.parts.length; i += 2) {
+      if (i > 0) {
+        sb.append("Caused by: ");
+      }
+      sb.append(((Class<?>) signature.parts[i]).getName()).append('\n');
+
+      StackTraceElement[] frames = (StackTraceElement[]) signature.parts[i + 1];
+      int depth = Math.min(frames.length, maxDepth);
+      for (int frame = 0; frame < depth; frame++) {
+        sb.append("\tat ").append(frames[frame]).append('\n');
+      }
+      if (frames.length > depth) {
+        sb.append("\t... ").append(frames.length - depth).append(" more\n");
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Classes and frames of a throwable and its causes
+   */
+  private static final class Signature {
+
+    // alternating Class and StackTraceElement[] per throwable of the cause chain
+    private final Object[] parts;
+    private final int hashCode;
+
+    Signature(Throwable throwable) {
+      List<Object> chain = new ArrayList<>(2);
+      Throwable current = throwable;
+      for (int causes = 0; current != null && causes <= MAX_CAUSES; causes++) {
+        chain.add(current.getClass());
+        chain.add(current.getStackTrace());
+        current = current.getCause();
+      }
+      this.parts = chain.toArray();
+      this.hashCode = Arrays.deepHashCode(parts);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Signature && hashCode == ((Signature) o).hashCode
+          && Arrays.deepEquals(parts, ((Signature) o).parts);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.apache.http.HttpRequest;
+
+/**
+ * Tail-based capture of REST requests the TracingHttpClientConfigCallback doesn't trace: sending
+ * such a request only records when it started. Once it completed, a span is reported
+ * retroactively (with its actual start) if the request failed or was slower than the threshold of
+ * its endpoint. Fast requests never create a span.
+ *
+ * <p>The threshold is either fixed or the given percentile (99 by default) of the latencies of the
+ * endpoint, estimated per window of requests: each window sets the threshold of the next one. Until
+ * the first window of an endpoint is complete, only its failed requests are captured.
+ */
+public class TailCapture {
+
+  public static final String CAPTURE_REASON = "capture.reason";
+  public static final String CAPTURE_THRESHOLD_MS = "capture.threshold_ms";
+  public static final String ERROR = "error";
+  public static final String SLOW = "slow";
+
+  private final long fixedThresholdNanos;
+  private final double percentile;
+  private final int window;
+  private final long minThresholdNanos;
+  private final Function<HttpRequest, String> endpointProvider;
+  private final int maxEndpoints;
+  private final ConcurrentMap<String, Estimator> estimators = new ConcurrentHashMap<>();
+  private final Estimator otherEndpoints;
+
+  private TailCapture(Builder builder) {
+    this.fixedThresholdNanos = builder.fixedThresholdNanos;
+    this.percentile = builder.percentile;
+    this.window = builder.window;
+    this.minThresholdNanos = builder.minThresholdNanos;
+    this.endpointProvider = builder.endpointProvider;
+    this.maxEndpoints = builder.maxEndpoints;
+    this.otherEndpoints = new Estimator();
+  }
+
+  /**
+   * @param statusCode status of the response
+   * @return true if the request failed. 404 isn't a failure, e.g. a missing document.
+   */
+  public static boolean isError(int statusCode) {
+    return statusCode >= 400 && statusCode != 404;
+  }
+
+  /**
+   * @param endpoint endpoint as named by the endpoint provider
+   * @return threshold of the endpoint in nanoseconds, -1 if it has none (yet)
+   */
+  public long getThresholdNanos(String endpoint) {
+    if (fixedThresholdNanos >= 0) {
+      return fixedThresholdNanos;
+    }
+    final Estimator estimator = estimators.get(endpoint);
+    final long threshold = (estimator != null) ? estimator.thresholdNanos : Long.MAX_VALUE;
+    return (threshold == Long.MAX_VALUE) ? -1 : threshold;
+  }
+
+  /**
+   * Records the latency of a completed request (unless it failed) and decides whether it is
+   * captured
+   *
+   * @return why a span should be reported, null if it shouldn't
+   */
+  Capture capture(HttpRequest request, long elapsedNanos, boolean error) {
+    final long threshold;
+    if (fixedThresholdNanos >= 0) {
+      threshold = fixedThresholdNanos;
+    } else {
+      final Estimator estimator = estimator(endpointProvider.apply(request));
+      threshold = estimator.thresholdNanos;
+      if (!error) {
+        estimator.record(elapsedNanos);
+      }
+    }
+    if (error) {
+      return new Capture(ERROR, threshold);
+    }
+    return (elapsedNanos > threshold) ? new Capture(SLOW, threshold) : null;
+  }
+
+  private Estimator estimator(String endpoint) {
+    if (endpoint == null) {
+      return otherEndpoints;
+    }
+    Estimator estimator = estimators.get(endpoint);
+    if (estimator != null) {
+      return estimator;
+    }
+    if (estimators.size() >= maxEndpoints) {
+      return otherEndpoints;
+    }
+    estimator = new Estimator();
+    Estimator existing = estimators.putIfAbsent(endpoint, estimator);
+    return (existing == null) ? estimator : existing;
+  }
+
+  /**
+   * @return the start of a request in microseconds since the epoch
+   */
+  static long startMicros(long startNanos, long nowNanos) {
+    return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis())
+        - TimeUnit.NANOSECONDS.toMicros(nowNanos - startNanos);
+  }
+
+  /**
+   * Why a request is captured, only created for captured requests
+   */
+  static final class Capture {
+
+    final String reason;
+    // threshold the request was compared to, Long.MAX_VALUE if there was none
+    final long thresholdNanos;
+
+    Capture(String reason, long thresholdNanos) {
+      this.reason = reason;
+      this.thresholdNanos = thresholdNanos;
+    }
+  }
+
+  private final class Estimator {
+
+    private final Histogram histogram =
+        new Histogram(LatencyMetrics.DEFAULT_HIGHEST_TRACKABLE_NANOS);
+    private final AtomicLong count = new AtomicLong();
+    private volatile long thresholdNanos = Long.MAX_VALUE;
+
+    private void record(long nanos) {
+      histogram.record(nanos);
+      if (count.incrementAndGet() % window == 0) {
+        thresholdNanos = Math.max(minThresholdNanos,
+            histogram.snapshotAndReset().getValueAtPercentile(percentile));
+      }
+    }
+  }
+
+  public static class Builder {
+
+    private long fixedThresholdNanos = -1;
+    private double percentile = 99;
+    private int window = 1000;
+    private long minThresholdNanos;
+    private Function<HttpRequest, String> endpointProvider =
+        ClientSpanNameProvider.REQUEST_METHOD_API_NAME;
+    private int maxEndpoints = LatencyMetrics.DEFAULT_MAX_ENDPOINTS;
+
+    /**
+     * @param threshold fixed threshold for every endpoint, instead of a percentile
+     */
+    public Builder withThreshold(long threshold, TimeUnit unit) {
+      if (threshold < 0) {
+        throw new IllegalArgumentException("threshold must not be negative");
+      }
+      this.fixedThresholdNanos = unit.toNanos(threshold);
+      return this;
+    }
+
+    /**
+     * @param percentile percentile of the latencies of an endpoint its threshold is set to, 99 by
+     * default
+     * @param window number of requests of an endpoint the percentile is estimated from, 1000 by
+     * default
+     */
+    public Builder withPercentile(double percentile, int window) {
+      if (percentile <= 0 || percentile > 100) {
+        throw new IllegalArgumentException("percentile must be between 0 (exclusive) and 100");
+      }
+      if (window <= 0) {
+        throw new IllegalArgumentException("window must be positive");
+      }
+      this.fixedThresholdNanos = -1;
+      this.percentile = percentile;
+      this.window = window;
+      return this;
+    }
+
+    /**
+     * @param minThreshold lower bound of the percentile thresholds, so endpoints which are always
+     * fast aren't captured. 0 by default.
+     */
+    public Builder withMinThreshold(long minThreshold, TimeUnit unit) {
+      this.minThresholdNanos = unit.toNanos(minThreshold);
+      return this;
+    }
+
+    /**
+     * @param endpointProvider names the endpoint of a request, should mask ids and index names.
+     * Endpoints are named by ClientSpanNameProvider.REQUEST_METHOD_API_NAME by default.
+     */
+    public Builder withEndpointProvider(Function<HttpRequest, String> endpointProvider) {
+      this.endpointProvider = endpointProvider;
+      return this;
+    }
+
+    /**
+     * @param maxEndpoints endpoints with thresholds of their own, the others share one.
+     * LatencyMetrics.DEFAULT_MAX_ENDPOINTS by default.
+     */
+    public Builder withMaxEndpoints(int maxEndpoints) {
+      if (maxEndpoints <= 0) {
+        throw new IllegalArgumentException("maxEndpoints must be positive");
+      }
+      this.maxEndpoints = maxEndpoints;
+      return this;
+    }
+
+    public TailCapture build() {
+      return new TailCapture(this);
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Builds a http client which notifies a FailureListener of requests failing without a response
+ * (connect and socket timeouts, refused connections, ...) or being cancelled. The response
+ * interceptors never see those. Optionally the request producers are wrapped as well, to change
+ * what is sent, and the response consumers, to see the body being read.
+ *
+ * <p>The client is built by the wrapped builder and only wrapped by this one. The setters of
+ * HttpAsyncClientBuilder are final, so whatever is set on this builder itself can't be passed on:
+ * the wrapped builder has to be configured before it is wrapped, build() throws an
+ * IllegalStateException if this one was.
+ */
+class TracingHttpAsyncClientBuilder extends HttpAsyncClientBuilder {
+
+  interface FailureListener {
+
+    /**
+     * @param context context of the request, as seen by the interceptors
+     * @param exception cause of the failure, a CancellationException if the request was cancelled
+     */
+    void onFailure(HttpContext context, Exception exception);
+  }
+
+  interface RequestProducerWrapper {
+
+    /**
+     * @param context context of the request, as seen by the interceptors
+     */
+    HttpAsyncRequestProducer wrap(HttpAsyncRequestProducer requestProducer, HttpContext context);
+  }
+
+  interface ResponseConsumerWrapper {
+
+    <T> HttpAsyncResponseConsumer<T> wrap(HttpAsyncResponseConsumer<T> responseConsumer);
+  }
+
+  private final HttpAsyncClientBuilder builder;
+  private final FailureListener listener;
+  private final RequestProducerWrapper producerWrapper;
+  private final ResponseConsumerWrapper consumerWrapper;
+
+  private TracingHttpAsyncClientBuilder(HttpAsyncClientBuilder builder, FailureListener listener,
+      RequestProducerWrapper producerWrapper, ResponseConsumerWrapper consumerWrapper) {
+    this.builder = builder;
+    this.listener = listener;
+    this.producerWrapper = producerWrapper;
+    this.consumerWrapper = consumerWrapper;
+  }
+
+  /**
+   * @return a builder wrapping the client the given builder builds, so it notifies the listener
+   */
+  static HttpAsyncClientBuilder wrap(HttpAsyncClientBuilder builder, FailureListener listener) {
+    return wrap(builder, listener, null, null);
+  }
+
+  /**
+   * @param producerWrapper wraps the request producer of every request, may be null
+   * @param consumerWrapper wraps the response consumer of every request, may be null
+   */
+  static HttpAsyncClientBuilder wrap(HttpAsyncClientBuilder builder, FailureListener listener,
+      RequestProducerWrapper producerWrapper, ResponseConsumerWrapper consumerWrapper) {
+    return new TracingHttpAsyncClientBuilder(builder, listener, producerWrapper, consumerWrapper);
+  }
+
+  @Override
+  public CloseableHttpAsyncClient build() {
+    checkNotConfigured();
+    return new TracingHttpAsyncClient(builder.build(), listener, producerWrapper, consumerWrapper);
+  }
+
+  /**
+   * Compares the fields of this builder with those of a new one, they are only set by the setters
+   */
+  private void checkNotConfigured() {
+    final HttpAsyncClientBuilder created = HttpAsyncClientBuilder.create();
+    for (Field field : HttpAsyncClientBuilder.class.getDeclaredFields()) {
+      if (Modifier.isStatic(field.getModifiers())) {
+        continue;
+      }
+      final boolean configured;
+      try {
+        field.setAccessible(true);
+        configured = !Objects.equals(field.get(this), field.get(created));
+      } catch (Exception ignore) {
+        // can't be checked
+        return;
+      }
+      if (configured) {
+        throw new IllegalStateException("HttpAsyncClientBuilder." + field.getName()
+            + " was set on the builder returned by TracingHttpClientConfigCallback, where it is"
+            + " ignored. Set it on the builder passed to customizeHttpClient() instead.");
+      }
+    }
+  }
+
+  private static class TracingHttpAsyncClient extends CloseableHttpAsyncClient {
+
+    private final CloseableHttpAsyncClient client;
+    private final FailureListener listener;
+    private final RequestProducerWrapper producerWrapper;
+    private final ResponseConsumerWrapper consumerWrapper;
+
+    TracingHttpAsyncClient(CloseableHttpAsyncClient client, FailureListener listener,
+        RequestProducerWrapper producerWrapper, ResponseConsumerWrapper consumerWrapper) {
+      this.client = client;
+      this.listener = listener;
+      this.producerWrapper = producerWrapper;
+      this.consumerWrapper = consumerWrapper;
+    }
+
+    @Override
+    public boolean isRunning() {
+      return client.isRunning();
+    }
+
+    @Override
+    public void start() {
+      client.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+      client.close();
+    }
+
+    @Override
+    public <T> Future<T> execute(HttpAsyncRequestProducer requestProducer,
+        HttpAsyncResponseConsumer<T> responseConsumer, HttpContext context,
+        FutureCallback<T> callback) {
+      // the interceptors store the span in the context, so there has to be one to find it again
+      final HttpContext requestContext = (context != null) ? context : HttpClientContext.create();
+      return client.execute(
+          (producerWrapper != null) ? producerWrapper.wrap(requestProducer, requestContext)
+              : requestProducer,
+          (consumerWrapper != null) ? consumerWrapper.wrap(responseConsumer) : responseConsumer,
+          requestContext,
+          new FutureCallback<T>() {
+            @Override
+            public void completed(T result) {
+              if (callback != null) {
+                callback.completed(result);
+              }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+              // before the callback, which may already retry the request on another node
+              try {
+                listener.onFailure(requestContext, ex);
+              } finally {
+                if (callback != null) {
+                  callback.failed(ex);
+                }
+              }
+            }
+
+            @Override
+            public void cancelled() {
+              try {
+                listener.onFailure(requestContext,
+                    new CancellationException("Request cancelled"));
+              } finally {
+                if (callback != null) {
+                  callback.cancelled();
+                }
+              }
+            }
+          });
+    }
+  }
+}
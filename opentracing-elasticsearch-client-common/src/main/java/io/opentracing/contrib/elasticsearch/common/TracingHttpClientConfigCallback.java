@@ -17,16 +17,26 @@ import io.opentracing.Span;
 import io.opentracing.SpanContext;
 import io.opentracing.Tracer;
 import io.opentracing.Tracer.SpanBuilder;
+import io.opentracing.contrib.elasticsearch.common.LogicalRequestTracker.LogicalRequest;
 import io.opentracing.propagation.Format;
 import io.opentracing.propagation.Format.Builtin;
 import io.opentracing.tag.Tags;
 import io.opentracing.util.GlobalTracer;
 import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.protocol.HttpContext;
 import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestClientBuilder.HttpClientConfigCallback;
 
@@ -36,15 +46,63 @@ public class TracingHttpClientConfigCallback implements RestClientBuilder.HttpCl
   private final Tracer tracer;
   private final Function<HttpRequest, String> spanNameProvider;
   private final HttpClientConfigCallback callback;
+  private final PropagationHeaders propagationHeaders;
+  private final Sampler sampler;
+  private final Histogram requestSizes;
+  private final Histogram responseSizes;
+  private final LatencyMetrics metrics;
+  private final Function<HttpRequest, String> endpointProvider;
+  private final ConnectionPoolMonitor connectionPoolMonitor;
+  private final Supplier<PoolingNHttpClientConnectionManager> connectionManagers;
+  private final boolean replaceConnectionManager;
+  private final LogicalRequestTracker logicalRequests;
+  private final NodeStats nodeStats;
+  private final boolean bodyTransferSpans;
+  private final boolean chunkedBodySizes;
+  private final boolean failureSpans;
+  private final SpanReaper spanReaper;
+  private final SearchProfiler searchProfiler;
+  private final Function<SpanContext, String> opaqueIdFormat;
+  private final TailCapture tailCapture;
   private static final String OT_IS_AUTH_CACHING_DISABLED = "ot-is-auth-caching-disabled";
   private static final String OT_SPAN = "ot-span";
+  private static final String OT_ENDPOINT = "ot-endpoint";
+  private static final String OT_START_NANOS = "ot-start-nanos";
+  private static final String OT_LOGICAL_REQUEST = "ot-logical-request";
+  private static final String OT_CAPTURE = "ot-capture";
+  private static final String OT_SAMPLED = "ot-sampled";
 
   public TracingHttpClientConfigCallback(Tracer tracer,
       Function<HttpRequest, String> spanNameProvider,
       HttpClientConfigCallback callback) {
-    this.tracer = tracer;
-    this.spanNameProvider = spanNameProvider;
-    this.callback = callback;
+    this(new Builder(tracer)
+        .withSpanNameProvider(spanNameProvider)
+        .withCallback(callback));
+  }
+
+  private TracingHttpClientConfigCallback(Builder builder) {
+    this.tracer = builder.tracer;
+    this.spanNameProvider = builder.spanNameProvider;
+    this.callback = builder.callback;
+    this.propagationHeaders = builder.propagationHeaders;
+    this.sampler = builder.sampler;
+    this.requestSizes = builder.requestSizes;
+    this.responseSizes = builder.responseSizes;
+    this.metrics = builder.metrics;
+    this.endpointProvider = builder.endpointProvider;
+    this.connectionPoolMonitor = builder.connectionPoolMonitor;
+    this.connectionManagers = builder.connectionManagers;
+    this.replaceConnectionManager = builder.replaceConnectionManager;
+    this.logicalRequests = builder.retrySpans ? new LogicalRequestTracker() : null;
+    this.nodeStats = builder.nodeStats;
+    this.bodyTransferSpans = builder.bodyTransferSpans;
+    this.chunkedBodySizes = builder.chunkedBodySizes;
+    this.failureSpans = builder.failureSpans;
+    this.spanReaper = builder.spanReaper;
+    // the profile is reported (and stripped) by the TracingResponseConsumerFactory
+    this.searchProfiler = builder.bodyTransferSpans ? builder.searchProfiler : null;
+    this.opaqueIdFormat = builder.opaqueIdFormat;
+    this.tailCapture = builder.tailCapture;
   }
 
   public TracingHttpClientConfigCallback(Tracer tracer,
@@ -97,6 +155,11 @@ public class TracingHttpClientConfigCallback implements RestClientBuilder.HttpCl
     return false;
   }
 
+  /**
+   * @return the given builder (as customized by the callback), or a builder wrapping the client it
+   * builds if an option needs the client to be wrapped. Settings have to be applied to the given
+   * builder then, the returned one only builds and throws if it was configured itself.
+   */
   @Override
   public HttpAsyncClientBuilder customizeHttpClient(
       final HttpAsyncClientBuilder httpAsyncClientBuilder) {
@@ -111,22 +174,83 @@ public class TracingHttpClientConfigCallback implements RestClientBuilder.HttpCl
       isAuthCachingDisabled = false;
     }
 
+    final PoolingNHttpClientConnectionManager connectionManager;
+    if (connectionPoolMonitor != null) {
+      connectionManager = connectionManagers.get();
+      if (replaceConnectionManager) {
+        // a pool of its own per client, so spans are tagged with the pool of their client
+        ConnectionPoolMonitor.checkReplaceable(httpClientBuilder, connectionManager);
+        httpClientBuilder.setConnectionManager(connectionManager);
+      }
+      connectionPoolMonitor.observe(connectionManager);
+    } else {
+      connectionManager = null;
+    }
+
     httpClientBuilder.addInterceptorLast((HttpRequestInterceptor) (request, context) -> {
-      SpanBuilder spanBuilder = tracer.buildSpan(spanNameProvider.apply(request))
+      final long requestSize = SpanDecorator.contentLength(request);
+      if (requestSize >= 0 && requestSizes != null) {
+        requestSizes.record(requestSize);
+      }
+      if (metrics != null) {
+        context.setAttribute(OT_ENDPOINT, endpointProvider.apply(request));
+      }
+      if (metrics != null || nodeStats != null || bodyTransferSpans || tailCapture != null) {
+        context.setAttribute(OT_START_NANOS, System.nanoTime());
+      }
+
+      // retries of a sampled request are traced as well
+      LogicalRequest logical = (logicalRequests != null) ? logicalRequests.get(request) : null;
+      if (logical == null && !isSampled(request, context)) {
+        propagateParent(request);
+        if (tailCapture != null) {
+          // only the start is recorded, the span is created once the request completed, if at all
+          context.setAttribute(OT_CAPTURE, request);
+          if (isAuthCachingDisabled) {
+            context.setAttribute(OT_IS_AUTH_CACHING_DISABLED, "true");
+          }
+        }
+        return;
+      }
+
+      final String operationName = spanNameProvider.apply(request);
+      SpanBuilder spanBuilder = tracer.buildSpan(operationName)
           .ignoreActiveSpan()
           .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT);
 
-      SpanContext parentContext = extract(request);
+      SpanContext parentContext = (logical != null) ? logical.span().context() : extract(request);
+      if (logical == null && logicalRequests != null) {
+        logical = startLogicalRequest(request, operationName, parentContext);
+        if (logical != null) {
+          parentContext = logical.span().context();
+        }
+      }
 
       if (parentContext != null) {
         spanBuilder.asChildOf(parentContext);
       }
 
       Span span = spanBuilder.start();
+      if (spanReaper != null) {
+        span = spanReaper.track(span);
+      }
       SpanDecorator.onRequest(request, span);
+      if (requestSize >= 0) {
+        SpanDecorator.onRequestSize(requestSize, span);
+      }
+      if (connectionManager != null) {
+        ConnectionPoolMonitor.onRequest(connectionManager,
+            (HttpRoute) context.getAttribute(HttpClientContext.HTTP_ROUTE), span);
+      }
+      if (logical != null) {
+        onAttemptStart(logical, span, context);
+      }
 
       tracer.inject(span.context(), Builtin.HTTP_HEADERS,
           new HttpTextMapInjectAdapter(request));
+      if (opaqueIdFormat != null) {
+        setOpaqueId(request, (logical != null) ? logical.span() : span);
+      }
 
       context.setAttribute(OT_SPAN, span);
       if (isAuthCachingDisabled) {
@@ -143,16 +267,255 @@ public class TracingHttpClientConfigCallback implements RestClientBuilder.HttpCl
           return;
         }
       }
+      final long startNanos = recordLatency(response, context);
+
+      final long responseSize = SpanDecorator.contentLength(response);
+      if (responseSize >= 0 && responseSizes != null) {
+        responseSizes.record(responseSize);
+      }
+
+      final Object capture = context.removeAttribute(OT_CAPTURE);
+      if (capture instanceof HttpRequest) {
+        capture((HttpRequest) capture, startNanos, response, null);
+      }
+
+      // set if the request was sent with "profile": true
+      final Object profiler = context.removeAttribute(ProfilingRequestProducer.OT_SEARCH_PROFILER);
       Object spanObject = context.getAttribute(OT_SPAN);
       if (spanObject instanceof Span) {
         context.removeAttribute(OT_SPAN);
         Span span = (Span) spanObject;
         SpanDecorator.onResponse(response, span);
+        if (responseSize >= 0) {
+          SpanDecorator.onResponseSize(responseSize, span);
+        }
+        Object logical = context.removeAttribute(OT_LOGICAL_REQUEST);
+        final boolean ended = logical instanceof LogicalRequest && ((LogicalRequest) logical)
+            .onAttemptResponse(span, response.getStatusLine().getStatusCode(), System.nanoTime());
+        if (bodyTransferSpans && TracingResponseConsumerFactory.isDeferrable(response)) {
+          TracingResponseConsumerFactory.defer(response, span, startNanos,
+              ended ? (LogicalRequest) logical : null, tracer,
+              (profiler instanceof SearchProfiler) ? (SearchProfiler) profiler : null,
+              chunkedBodySizes ? responseSizes : null);
+          return;
+        }
+        if (isChunked(response, responseSize)) {
+          // the size of a chunked body is known once the body is consumed
+          TracingResponseConsumerFactory.deferSize(response, span, startNanos,
+              ended ? (LogicalRequest) logical : null, responseSizes);
+          return;
+        }
         span.finish();
+        if (ended) {
+          // after the attempt, which it is the parent of
+          ((LogicalRequest) logical).finish();
+        }
+      } else if (responseSizes != null && isChunked(response, responseSize)) {
+        // not traced, the size is recorded still
+        TracingResponseConsumerFactory.deferSize(response, null, startNanos, null, responseSizes);
       }
     });
 
-    return httpClientBuilder;
+    if (!isClientWrapped()) {
+      return httpClientBuilder;
+    }
+    // requests failing without a response never reach the response interceptor, the consumers
+    // finish the spans deferred to them
+    return TracingHttpAsyncClientBuilder.wrap(httpClientBuilder, this::onFailure,
+        (searchProfiler != null) ? this::profile : null,
+        (bodyTransferSpans || chunkedBodySizes) ? TracingResponseConsumerFactory::wrap : null);
+  }
+
+  /**
+   * @return true if an option has to see requests failing without a response, request producers
+   * or response consumers, which takes wrapping the client
+   */
+  private boolean isClientWrapped() {
+    return failureSpans || nodeStats != null || logicalRequests != null || tailCapture != null
+        || bodyTransferSpans || chunkedBodySizes || searchProfiler != null;
+  }
+
+  /**
+   * @return true if the size of the response body is counted as it is consumed
+   */
+  private boolean isChunked(HttpResponse response, long responseSize) {
+    return chunkedBodySizes && responseSize < 0
+        && TracingResponseConsumerFactory.isDeferrable(response);
+  }
+
+  private HttpAsyncRequestProducer profile(HttpAsyncRequestProducer requestProducer,
+      HttpContext context) {
+    return new ProfilingRequestProducer(requestProducer, searchProfiler, context,
+        this::isTraced);
+  }
+
+  /**
+   * Decides whether a request is traced before the request interceptor does, which then takes
+   * this decision
+   */
+  private boolean isTraced(HttpRequest request, HttpContext context) {
+    if (logicalRequests != null && logicalRequests.get(request) != null) {
+      return true;
+    }
+    final boolean sampled = isSampled(request);
+    context.setAttribute(OT_SAMPLED, sampled);
+    return sampled;
+  }
+
+  private void onFailure(HttpContext context, Exception exception) {
+    Object startNanos = context.removeAttribute(OT_START_NANOS);
+    context.removeAttribute(OT_ENDPOINT);
+    context.removeAttribute(OT_SAMPLED);
+    final long now = System.nanoTime();
+    if (nodeStats != null && startNanos instanceof Long) {
+      Object target = context.getAttribute(HttpClientContext.HTTP_TARGET_HOST);
+      if (target instanceof HttpHost) {
+        nodeStats.record((HttpHost) target, now - (Long) startNanos, true);
+      }
+    }
+
+    final Object capture = context.removeAttribute(OT_CAPTURE);
+    if (capture instanceof HttpRequest && startNanos instanceof Long) {
+      capture((HttpRequest) capture, (Long) startNanos, null, exception);
+    }
+
+    Object spanObject = context.removeAttribute(OT_SPAN);
+    if (spanObject instanceof Span) {
+      Span span = (Span) spanObject;
+      Object logical = context.removeAttribute(OT_LOGICAL_REQUEST);
+      if (logical instanceof LogicalRequest
+          && !((LogicalRequest) logical).onAttemptFailure(span, now)) {
+        // finished by the next attempt already
+        return;
+      }
+      SpanDecorator.onError(exception, span);
+      span.finish();
+    }
+  }
+
+  /**
+   * Sets X-Opaque-Id, unless the caller did. Attempts of a logical request share its id.
+   */
+  private void setOpaqueId(HttpRequest request, Span span) {
+    if (request.containsHeader(OpaqueIdFormat.HEADER)) {
+      return;
+    }
+    final String opaqueId = OpaqueIdFormat.format(opaqueIdFormat, span.context());
+    if (opaqueId != null) {
+      request.setHeader(OpaqueIdFormat.HEADER, opaqueId);
+    }
+  }
+
+  /**
+   * @return the decision isTraced() made for the request, if any, else isSampled(request)
+   */
+  private boolean isSampled(HttpRequest request, HttpContext context) {
+    final Object sampled = context.removeAttribute(OT_SAMPLED);
+    return (sampled instanceof Boolean) ? (Boolean) sampled : isSampled(request);
+  }
+
+  /**
+   * @return true if a span is created for the request when it is sent. Without a sampler every
+   * request is, unless the requests are captured by the TailCapture.
+   */
+  private boolean isSampled(HttpRequest request) {
+    if (sampler != null) {
+      return sampler.isSampled(request);
+    }
+    return tailCapture == null;
+  }
+
+  /**
+   * Reports the span of a request which wasn't traced when it was sent, if it failed or was slow
+   *
+   * @param response the response, null if the request failed without one
+   * @param exception why the request failed without a response, null if there is a response
+   */
+  private void capture(HttpRequest request, long startNanos, HttpResponse response,
+      Exception exception) {
+    final long now = System.nanoTime();
+    final boolean error = exception != null
+        || TailCapture.isError(response.getStatusLine().getStatusCode());
+    final TailCapture.Capture capture = tailCapture.capture(request, now - startNanos, error);
+    if (capture == null) {
+      return;
+    }
+
+    final long startMicros = TailCapture.startMicros(startNanos, now);
+    SpanBuilder spanBuilder = tracer.buildSpan(spanNameProvider.apply(request))
+        .ignoreActiveSpan()
+        .withStartTimestamp(startMicros)
+        .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT)
+        .withTag(TailCapture.CAPTURE_REASON, capture.reason);
+    if (capture.thresholdNanos != Long.MAX_VALUE) {
+      spanBuilder.withTag(TailCapture.CAPTURE_THRESHOLD_MS,
+          TimeUnit.NANOSECONDS.toMillis(capture.thresholdNanos));
+    }
+    // the context of the parent has been injected into the request, if there is one
+    final SpanContext parentContext = extractFromHeaders(request);
+    if (parentContext != null) {
+      spanBuilder.asChildOf(parentContext);
+    }
+
+    final Span span = spanBuilder.start();
+    SpanDecorator.onRequest(request, span);
+    if (response != null) {
+      SpanDecorator.onResponse(response, span);
+      if (error) {
+        Tags.ERROR.set(span, Boolean.TRUE);
+      }
+    } else {
+      SpanDecorator.onError(exception, span);
+    }
+    span.finish(startMicros + TimeUnit.NANOSECONDS.toMicros(now - startNanos));
+  }
+
+  private LogicalRequest startLogicalRequest(HttpRequest request, String operationName,
+      SpanContext parentContext) {
+    SpanBuilder spanBuilder = tracer.buildSpan(operationName).ignoreActiveSpan();
+    if (parentContext != null) {
+      spanBuilder.asChildOf(parentContext);
+    }
+    Span span = spanBuilder.start();
+    SpanDecorator.onRequest(request, span);
+    return logicalRequests.start(request, span);
+  }
+
+  private void onAttemptStart(LogicalRequest logical, Span span, HttpContext context) {
+    final int attempt = logical.onAttemptStart(span, System.nanoTime());
+    if (attempt == 0) {
+      return;
+    }
+    span.setTag(LogicalRequestTracker.RETRY_ATTEMPT, attempt);
+    Object target = context.getAttribute(HttpClientContext.HTTP_TARGET_HOST);
+    if (target instanceof HttpHost) {
+      Tags.PEER_HOSTNAME.set(span, ((HttpHost) target).getHostName());
+      Tags.PEER_PORT.set(span, ((HttpHost) target).getPort());
+    }
+    context.setAttribute(OT_LOGICAL_REQUEST, logical);
+  }
+
+  /**
+   * @return System.nanoTime() when the request was sent, now if unknown
+   */
+  private long recordLatency(HttpResponse response, HttpContext context) {
+    Object startNanos = context.removeAttribute(OT_START_NANOS);
+    final long now = System.nanoTime();
+    if (!(startNanos instanceof Long)) {
+      return now;
+    }
+    final long nanos = now - (Long) startNanos;
+    if (metrics != null) {
+      metrics.record((String) context.removeAttribute(OT_ENDPOINT), nanos);
+    }
+    if (nodeStats != null) {
+      Object target = context.getAttribute(HttpClientContext.HTTP_TARGET_HOST);
+      if (target instanceof HttpHost) {
+        nodeStats.record((HttpHost) target, nanos,
+            NodeStats.isError(response.getStatusLine().getStatusCode()));
+      }
+    }
+    return (Long) startNanos;
   }
 
   /**
@@ -162,9 +525,7 @@ public class TracingHttpClientConfigCallback implements RestClientBuilder.HttpCl
    * @return extracted context
    */
   private SpanContext extract(HttpRequest request) {
-    SpanContext spanContext = tracer.extract(Format.Builtin.HTTP_HEADERS,
-        new HttpTextMapExtractAdapter(request));
-
+    SpanContext spanContext = extractFromHeaders(request);
     if (spanContext != null) {
       return spanContext;
     }
@@ -176,4 +537,271 @@ public class TracingHttpClientConfigCallback implements RestClientBuilder.HttpCl
 
     return null;
   }
+
+  /**
+   * Extract context from headers. If propagation headers are configured, only if the request
+   * carries at least one of them, and only they are passed to the tracer.
+   *
+   * @param request http request
+   * @return extracted context
+   */
+  private SpanContext extractFromHeaders(HttpRequest request) {
+    if (propagationHeaders == null) {
+      return tracer.extract(Format.Builtin.HTTP_HEADERS, new HttpTextMapExtractAdapter(request));
+    }
+    if (!propagationHeaders.isPresent(request)) {
+      return null;
+    }
+    return tracer.extract(Format.Builtin.HTTP_HEADERS,
+        new HttpTextMapExtractAdapter(request, propagationHeaders));
+  }
+
+  /**
+   * Inject the context of the active Span into a request which isn't traced itself, unless the
+   * request already carries propagation headers (the KNOWN ones if none are configured). The
+   * headers are only looked for, the request isn't extracted from.
+   *
+   * @param request http request
+   */
+  private void propagateParent(HttpRequest request) {
+    Span span = tracer.activeSpan();
+    if (span != null && !((propagationHeaders != null) ? propagationHeaders
+        : PropagationHeaders.KNOWN).isPresent(request)) {
+      tracer.inject(span.context(), Builtin.HTTP_HEADERS, new HttpTextMapInjectAdapter(request));
+    }
+  }
+
+  public static class Builder {
+
+    private final Tracer tracer;
+    private Function<HttpRequest, String> spanNameProvider =
+        ClientSpanNameProvider.REQUEST_METHOD_NAME;
+    private HttpClientConfigCallback callback;
+    private PropagationHeaders propagationHeaders;
+    private Sampler sampler;
+    private Histogram requestSizes;
+    private Histogram responseSizes;
+    private LatencyMetrics metrics;
+    private Function<HttpRequest, String> endpointProvider;
+    private ConnectionPoolMonitor connectionPoolMonitor;
+    private Supplier<PoolingNHttpClientConnectionManager> connectionManagers;
+    private boolean replaceConnectionManager;
+    private boolean retrySpans;
+    private NodeStats nodeStats;
+    private boolean bodyTransferSpans;
+    private boolean chunkedBodySizes;
+    private boolean failureSpans;
+    private SpanReaper spanReaper;
+    private SearchProfiler searchProfiler;
+    private Function<SpanContext, String> opaqueIdFormat;
+    private TailCapture tailCapture;
+
+    public Builder(Tracer tracer) {
+      this.tracer = tracer;
+    }
+
+    /**
+     * GlobalTracer is used to get tracer
+     */
+    public Builder() {
+      this(GlobalTracer.get());
+    }
+
+    /**
+     * @param spanNameProvider span name provider, ClientSpanNameProvider.REQUEST_METHOD_NAME by
+     * default
+     */
+    public Builder withSpanNameProvider(Function<HttpRequest, String> spanNameProvider) {
+      this.spanNameProvider = spanNameProvider;
+      return this;
+    }
+
+    /**
+     * @param callback callback to customize the http client before tracing is added to it
+     */
+    public Builder withCallback(HttpClientConfigCallback callback) {
+      this.callback = callback;
+      return this;
+    }
+
+    /**
+     * @param propagationHeaders the headers the tracer propagates span contexts in. If set,
+     * Tracer.extract() is skipped for requests without any of them and only sees these headers.
+     * By default every traced request is extracted from. Requests which aren't sampled keep the
+     * context they carry in these headers, by default in the KNOWN ones.
+     */
+    public Builder withPropagationHeaders(PropagationHeaders propagationHeaders) {
+      this.propagationHeaders = propagationHeaders;
+      return this;
+    }
+
+    /**
+     * @param sampler decides which requests are traced, e.g. a RateLimitingSampler or a
+     * ProbabilisticSampler. Requests which aren't sampled only get the context of the active span
+     * injected. By default every request is traced.
+     */
+    public Builder withSampler(Sampler sampler) {
+      this.sampler = sampler;
+      return this;
+    }
+
+    /**
+     * @param requestSizes histogram the body sizes of all requests (sampled or not) are recorded
+     * in, may be null
+     * @param responseSizes histogram the body sizes of all responses are recorded in, may be null.
+     * Only responses with a known length are recorded, unless withChunkedBodySizes(true).
+     */
+    public Builder withBodySizeHistograms(Histogram requestSizes, Histogram responseSizes) {
+      this.requestSizes = requestSizes;
+      this.responseSizes = responseSizes;
+      return this;
+    }
+
+    /**
+     * @param metrics records the latency of every request (sampled or not) per endpoint, may be
+     * null. Endpoints are named by ClientSpanNameProvider.REQUEST_METHOD_API_NAME.
+     */
+    public Builder withMetrics(LatencyMetrics metrics) {
+      return withMetrics(metrics, ClientSpanNameProvider.REQUEST_METHOD_API_NAME);
+    }
+
+    /**
+     * @param metrics records the latency of every request (sampled or not) per endpoint, may be
+     * null
+     * @param endpointProvider names the endpoint of a request, should mask ids and index names
+     */
+    public Builder withMetrics(LatencyMetrics metrics,
+        Function<HttpRequest, String> endpointProvider) {
+      this.metrics = metrics;
+      this.endpointProvider = endpointProvider;
+      return this;
+    }
+
+    /**
+     * The connection manager is only observed, it has to be set on the HttpAsyncClientBuilder,
+     * e.g. by the wrapped callback. Its SSL settings and pool limits are left as they are.
+     *
+     * @param connectionPoolMonitor observes the connection pool of the http clients
+     * @param connectionManager the connection manager the http clients use
+     */
+    public Builder withConnectionPoolMonitor(ConnectionPoolMonitor connectionPoolMonitor,
+        PoolingNHttpClientConnectionManager connectionManager) {
+      this.connectionPoolMonitor = connectionPoolMonitor;
+      this.connectionManagers = () -> connectionManager;
+      this.replaceConnectionManager = false;
+      return this;
+    }
+
+    /**
+     * The connection manager of every client is created by connectionManagers, replacing the one
+     * the HttpAsyncClientBuilder would create. customizeHttpClient throws an IllegalStateException
+     * if SSL settings or pool limits were set on the builder which the connection manager doesn't
+     * have (see ConnectionPoolMonitor.createConnectionManager).
+     *
+     * @param connectionPoolMonitor observes the connection pools of the http clients
+     * @param connectionManagers creates the connection manager of each client, e.g. {@code () ->
+     * ConnectionPoolMonitor.createConnectionManager(30, 10)}
+     */
+    public Builder withConnectionPoolMonitor(ConnectionPoolMonitor connectionPoolMonitor,
+        Supplier<PoolingNHttpClientConnectionManager> connectionManagers) {
+      this.connectionPoolMonitor = connectionPoolMonitor;
+      this.connectionManagers = connectionManagers;
+      this.replaceConnectionManager = true;
+      return this;
+    }
+
+    /**
+     * @param retrySpans if true, the attempts RestClient makes for one request (retrying other nodes
+     * on failure) are traced as child spans of a span for the whole request. Disabled by default.
+     */
+    public Builder withRetrySpans(boolean retrySpans) {
+      this.retrySpans = retrySpans;
+      return this;
+    }
+
+    /**
+     * @param nodeStats records the latency and errors of every request (sampled or not) per node,
+     * for a LatencyAwareNodeSelector to choose nodes by
+     */
+    public Builder withNodeStats(NodeStats nodeStats) {
+      this.nodeStats = nodeStats;
+      return this;
+    }
+
+    /**
+     * @param bodyTransferSpans if true, spans of responses with a body are finished once the body
+     * is consumed rather than when the response headers arrive. The response consumer of every
+     * request is wrapped for that, a TracingResponseConsumerFactory (e.g. set in the
+     * RequestOptions) is only needed to scan bodies. Disabled by default.
+     */
+    public Builder withBodyTransferSpans(boolean bodyTransferSpans) {
+      this.bodyTransferSpans = bodyTransferSpans;
+      return this;
+    }
+
+    /**
+     * @param chunkedBodySizes if true, the bodies of responses without Content-Length (chunked
+     * responses) are counted as they are consumed. Their spans are tagged with the size and end
+     * once the body is consumed, the sizes of all of them are recorded in the response size
+     * histogram. The response consumer of every request is wrapped for that. Disabled by default.
+     */
+    public Builder withChunkedBodySizes(boolean chunkedBodySizes) {
+      this.chunkedBodySizes = chunkedBodySizes;
+      return this;
+    }
+
+    /**
+     * @param failureSpans if true, the spans of requests failing without a response (connect and
+     * socket timeouts, refused connections, ...) and of cancelled requests are finished with the
+     * error. The client built is wrapped for that, as it is for node stats, retry spans, tail
+     * capture, body transfer spans, chunked body sizes and search profiling, which finish failed
+     * spans as well. Disabled by default.
+     */
+    public Builder withFailureSpans(boolean failureSpans) {
+      this.failureSpans = failureSpans;
+      return this;
+    }
+
+    /**
+     * @param spanReaper finishes spans which are still in flight after its deadline, e.g. because
+     * the http client was closed
+     */
+    public Builder withSpanReaper(SpanReaper spanReaper) {
+      this.spanReaper = spanReaper;
+      return this;
+    }
+
+    /**
+     * @param searchProfiler profiles a fraction of the traced searches and reports their profiles
+     * as child spans. Searches which aren't sampled are never profiled. Requires
+     * withBodyTransferSpans(true), ignored otherwise.
+     */
+    public Builder withSearchProfiler(SearchProfiler searchProfiler) {
+      this.searchProfiler = searchProfiler;
+      return this;
+    }
+
+    /**
+     * @param opaqueIdFormat formats the X-Opaque-Id header of traced requests from their span
+     * context, e.g. OpaqueIdFormat.TRACE_ID_SPAN_ID. A header set by the caller is kept. Not set by
+     * default.
+     */
+    public Builder withOpaqueId(Function<SpanContext, String> opaqueIdFormat) {
+      this.opaqueIdFormat = opaqueIdFormat;
+      return this;
+    }
+
+    /**
+     * @param tailCapture reports spans of the requests which aren't sampled (every request without
+     * a sampler) only if they fail or are slow, after they completed. Not set by default.
+     */
+    public Builder withTailCapture(TailCapture tailCapture) {
+      this.tailCapture = tailCapture;
+      return this;
+    }
+
+    public TracingHttpClientConfigCallback build() {
+      return new TracingHttpClientConfigCallback(this);
+    }
+  }
 }
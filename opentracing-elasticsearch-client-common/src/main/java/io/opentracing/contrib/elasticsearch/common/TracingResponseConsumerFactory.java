@@ -0,0 +1,413 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.contrib.elasticsearch.common.LogicalRequestTracker.LogicalRequest;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.client.HttpAsyncResponseConsumerFactory;
+
+/**
+ * Wraps the response consumers of a HttpAsyncResponseConsumerFactory and finishes the spans of the
+ * TracingHttpClientConfigCallback once the response body is consumed, instead of when the response
+ * headers arrive. Requires Builder.withBodyTransferSpans(true). The callback wraps the consumers of
+ * requests which don't use this factory itself, the factory is only needed to scan bodies.
+ *
+ * <p>The span logs a TIME_TO_FIRST_BYTE event when the response headers arrive and is tagged with
+ * the BODY_TRANSFER_MS it took to consume the body afterwards. If the response fails or is
+ * cancelled while its body is consumed, the span is finished with an error. Nothing is buffered,
+ * the wrapped consumer reads the body as usual.
+ *
+ * <p>Chunked bodies are counted as they are read, the span is tagged with their size. With
+ * Builder.withChunkedBodySizes(true) the callback defers the spans of chunked responses for their
+ * size as well, they end once the body is consumed, and the sizes are recorded in its response
+ * size histogram.
+ *
+ * <p>Optionally the first maxScanBytes of JSON bodies are scanned as they are read, for the took,
+ * timed_out, _shards.failed and (bulk) errors fields. They are tagged as SpanDecorator.TOOK_MS,
+ * TIMED_OUT, SHARDS_FAILED and BULK_ERRORS, and SpanDecorator.CLIENT_OVERHEAD_MS is the span
+ * duration minus took. Compressed bodies are not scanned.
+ *
+ * <p>The profiles of searches the SearchProfiler of the callback profiled are reported as child
+ * spans, and removed from the response if the profiler strips them. The body is read into memory
+ * for that, it usually is already.
+ */
+public class TracingResponseConsumerFactory implements HttpAsyncResponseConsumerFactory {
+
+  public static final String TIME_TO_FIRST_BYTE = "ttfb";
+  public static final String BODY_TRANSFER_MS = "http.body_transfer_ms";
+  public static final String TIMED_OUT = "timed_out";
+  public static final String SHARDS_FAILED = "shards.failed";
+  public static final String BULK_ERRORS = "bulk.errors";
+
+  /**
+   * Enough for the fields preceding the hits of a search or the items of a bulk response
+   */
+  public static final int DEFAULT_SCAN_BYTES = 1024;
+
+  private final HttpAsyncResponseConsumerFactory consumerFactory;
+  private final int maxScanBytes;
+
+  /**
+   * @param maxScanBytes number of bytes of JSON bodies scanned for took, timed_out, _shards.failed
+   * and errors, 0 to not scan bodies
+   */
+  public TracingResponseConsumerFactory(HttpAsyncResponseConsumerFactory consumerFactory,
+      int maxScanBytes) {
+    if (maxScanBytes < 0) {
+      throw new IllegalArgumentException("maxScanBytes must not be negative");
+    }
+    this.consumerFactory = consumerFactory;
+    this.maxScanBytes = maxScanBytes;
+  }
+
+  /**
+   * Bodies are not scanned
+   */
+  public TracingResponseConsumerFactory(HttpAsyncResponseConsumerFactory consumerFactory) {
+    this(consumerFactory, 0);
+  }
+
+  /**
+   * HttpAsyncResponseConsumerFactory.DEFAULT is used to create the consumers
+   */
+  public TracingResponseConsumerFactory() {
+    this(HttpAsyncResponseConsumerFactory.DEFAULT);
+  }
+
+  @Override
+  public HttpAsyncResponseConsumer<HttpResponse> createHttpAsyncResponseConsumer() {
+    return new TracingResponseConsumer<>(consumerFactory.createHttpAsyncResponseConsumer(),
+        maxScanBytes);
+  }
+
+  /**
+   * @return the consumer wrapped like the consumers of this factory, without scanning bodies, or
+   * the consumer itself if it is wrapped already
+   */
+  static <T> HttpAsyncResponseConsumer<T> wrap(HttpAsyncResponseConsumer<T> consumer) {
+    return (consumer instanceof TracingResponseConsumer) ? consumer
+        : new TracingResponseConsumer<>(consumer, 0);
+  }
+
+  /**
+   * Defers finishing the span of a response with a body to the consumer. The callback hands the
+   * span over by wrapping the entity of the response, the consumer unwraps it again before the
+   * wrapped consumer sees the response.
+   */
+  static void defer(HttpResponse response, Span span, long startNanos, LogicalRequest logical) {
+    defer(response, span, startNanos, logical, null, null, null);
+  }
+
+  /**
+   * @param span null if the request isn't traced, but its profile has to be stripped
+   * @param profiler the SearchProfiler the search was profiled by, null if it wasn't
+   * @param responseSizes histogram the size of a chunked body is recorded in, may be null
+   */
+  static void defer(HttpResponse response, Span span, long startNanos, LogicalRequest logical,
+      Tracer tracer, SearchProfiler profiler, Histogram responseSizes) {
+    final long now = System.nanoTime();
+    if (span != null) {
+      span.log(TIME_TO_FIRST_BYTE);
+    }
+    response.setEntity(new DeferredSpanEntity(response.getEntity(), span, startNanos, now, true,
+        logical, tracer, profiler, responseSizes));
+  }
+
+  /**
+   * Defers finishing the span of a chunked response until the size of its body is known, without
+   * body transfer spans. The span ends once the body is consumed.
+   *
+   * @param span null if the request isn't traced, but the size has to be recorded
+   * @param responseSizes histogram the size is recorded in, may be null
+   */
+  static void deferSize(HttpResponse response, Span span, long startNanos,
+      LogicalRequest logical, Histogram responseSizes) {
+    response.setEntity(new DeferredSpanEntity(response.getEntity(), span, startNanos,
+        System.nanoTime(), false, logical, null, null, responseSizes));
+  }
+
+  /**
+   * @return true if the body is JSON which isn't compressed
+   */
+  static boolean isScannable(HttpEntity entity) {
+    final Header contentType = entity.getContentType();
+    final Header contentEncoding = entity.getContentEncoding();
+    return contentType != null && contentType.getValue() != null
+        && contentType.getValue().toLowerCase(Locale.ROOT).contains("json")
+        && (contentEncoding == null || "identity".equalsIgnoreCase(contentEncoding.getValue()));
+  }
+
+  /**
+   * @return true if the span of the response may be deferred to the consumer. Responses without a
+   * body, and responses the http client handles itself (redirects and authentication challenges)
+   * never reach it.
+   */
+  static boolean isDeferrable(HttpResponse response) {
+    final int statusCode = response.getStatusLine().getStatusCode();
+    return response.getEntity() != null && (statusCode < 300 || statusCode >= 400)
+        && statusCode != 401 && statusCode != 407;
+  }
+
+  static final class DeferredSpanEntity extends HttpEntityWrapper {
+
+    private final Span span;
+    private final long startNanos;
+    private final long firstByteNanos;
+    // false if only deferred for the size of the body
+    private final boolean bodyTransfer;
+    private final LogicalRequest logical;
+    private final Tracer tracer;
+    private final SearchProfiler profiler;
+    private final Histogram responseSizes;
+
+    DeferredSpanEntity(HttpEntity entity, Span span, long startNanos, long firstByteNanos,
+        boolean bodyTransfer, LogicalRequest logical, Tracer tracer, SearchProfiler profiler,
+        Histogram responseSizes) {
+      super(entity);
+      this.span = span;
+      this.startNanos = startNanos;
+      this.firstByteNanos = firstByteNanos;
+      this.bodyTransfer = bodyTransfer;
+      this.logical = logical;
+      this.tracer = tracer;
+      this.profiler = profiler;
+      this.responseSizes = responseSizes;
+    }
+
+    HttpEntity getWrappedEntity() {
+      return wrappedEntity;
+    }
+
+    /**
+     * @param result the consumed response, null if it failed
+     * @param size bytes of the chunked body read, -1 if not counted
+     */
+    void finish(Exception exception, ResponseBodyScanner scanner, HttpResponse result, long size) {
+      if (profiler != null && result != null) {
+        onProfile(result);
+      }
+      final boolean counted = size >= 0 && exception == null;
+      if (counted && responseSizes != null) {
+        responseSizes.record(size);
+      }
+      if (span == null) {
+        return;
+      }
+      if (counted) {
+        SpanDecorator.onResponseSize(size, span);
+      }
+      final long now = System.nanoTime();
+      if (bodyTransfer) {
+        span.setTag(BODY_TRANSFER_MS, TimeUnit.NANOSECONDS.toMillis(now - firstByteNanos));
+      }
+      if (scanner != null && exception == null) {
+        scanner.decorate(span);
+        if (scanner.getTook() >= 0) {
+          span.setTag(SpanDecorator.CLIENT_OVERHEAD_MS,
+              Math.max(0, TimeUnit.NANOSECONDS.toMillis(now - startNanos) - scanner.getTook()));
+        }
+      }
+      if (exception != null) {
+        SpanDecorator.onError(exception, span);
+      }
+      span.finish();
+      if (logical != null) {
+        // after the attempt, which it is the parent of
+        logical.finish();
+      }
+    }
+
+    private void onProfile(HttpResponse response) {
+      final HttpEntity entity = response.getEntity();
+      if (response.getStatusLine().getStatusCode() != 200 || entity == null
+          || !isScannable(entity)) {
+        return;
+      }
+      final byte[] body;
+      try {
+        body = EntityUtils.toByteArray(entity);
+      } catch (IOException e) {
+        return;
+      }
+      byte[] result = body;
+      try {
+        final String json = new String(body, StandardCharsets.UTF_8);
+        if (span != null) {
+          profiler.report(tracer, span, SearchProfiler.startMicros(startNanos),
+              SearchProfiler.parseProfile(json));
+        }
+        if (profiler.isStripProfile()) {
+          result = SearchProfiler.stripProfile(json).getBytes(StandardCharsets.UTF_8);
+        }
+      } catch (IllegalArgumentException invalid) {
+        // not JSON after all, the response is passed on as it is
+      }
+      // the body has been read, the entity may not be repeatable
+      final NByteArrayEntity replaced = new NByteArrayEntity(result);
+      replaced.setContentType(entity.getContentType());
+      response.setEntity(replaced);
+    }
+  }
+
+  private static class TracingResponseConsumer<T> implements HttpAsyncResponseConsumer<T>,
+      ContentDecoder {
+
+    private final HttpAsyncResponseConsumer<T> consumer;
+    private final int maxScanBytes;
+    // failed() and cancel() may be called from other threads than the I/O dispatcher
+    private final AtomicReference<DeferredSpanEntity> deferred = new AtomicReference<>();
+    // only used by the I/O dispatcher
+    private ResponseBodyScanner scanner;
+    // bytes of a chunked body read so far, -1 if not counted
+    private long count = -1;
+    private ContentDecoder decoder;
+
+    TracingResponseConsumer(HttpAsyncResponseConsumer<T> consumer, int maxScanBytes) {
+      this.consumer = consumer;
+      this.maxScanBytes = maxScanBytes;
+    }
+
+    @Override
+    public void responseReceived(HttpResponse response) throws IOException, HttpException {
+      HttpEntity entity = response.getEntity();
+      if (entity instanceof DeferredSpanEntity) {
+        final HttpEntity wrappedEntity = ((DeferredSpanEntity) entity).getWrappedEntity();
+        response.setEntity(wrappedEntity);
+        finish(deferred.getAndSet((DeferredSpanEntity) entity),
+            new IllegalStateException("Response replaced"));
+        scanner = (maxScanBytes > 0 && isScannable(wrappedEntity))
+            ? new ResponseBodyScanner(maxScanBytes) : null;
+        count = (wrappedEntity.getContentLength() < 0) ? 0 : -1;
+      }
+      consumer.responseReceived(response);
+    }
+
+    @Override
+    public void consumeContent(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+      if ((scanner == null || scanner.isDone()) && count < 0) {
+        consumer.consumeContent(decoder, ioctrl);
+        return;
+      }
+      // the consumer reads through this, which scans and counts what it reads from the actual
+      // decoder
+      this.decoder = decoder;
+      try {
+        consumer.consumeContent(this, ioctrl);
+      } finally {
+        this.decoder = null;
+      }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      final int position = dst.position();
+      final int read = decoder.read(dst);
+      if (read > 0) {
+        if (scanner != null) {
+          scanner.scan(dst, position, position + read);
+        }
+        if (count >= 0) {
+          count += read;
+        }
+      }
+      return read;
+    }
+
+    @Override
+    public boolean isCompleted() {
+      return decoder.isCompleted();
+    }
+
+    @Override
+    public void responseCompleted(HttpContext context) {
+      try {
+        consumer.responseCompleted(context);
+      } finally {
+        final DeferredSpanEntity entity = deferred.getAndSet(null);
+        if (entity != null) {
+          final T result = consumer.getResult();
+          entity.finish(null, scanner,
+              (result instanceof HttpResponse) ? (HttpResponse) result : null, count);
+        }
+      }
+    }
+
+    @Override
+    public void failed(Exception ex) {
+      try {
+        consumer.failed(ex);
+      } finally {
+        finish(deferred.getAndSet(null), ex);
+      }
+    }
+
+    @Override
+    public Exception getException() {
+      return consumer.getException();
+    }
+
+    @Override
+    public T getResult() {
+      return consumer.getResult();
+    }
+
+    @Override
+    public boolean isDone() {
+      return consumer.isDone();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        consumer.close();
+      } finally {
+        finish(deferred.getAndSet(null), new IOException("Response consumer closed"));
+      }
+    }
+
+    @Override
+    public boolean cancel() {
+      try {
+        return consumer.cancel();
+      } finally {
+        finish(deferred.getAndSet(null), new CancellationException("Response cancelled"));
+      }
+    }
+
+    private static void finish(DeferredSpanEntity deferred, Exception exception) {
+      if (deferred != null) {
+        deferred.finish(exception, null, null, -1);
+      }
+    }
+  }
+}
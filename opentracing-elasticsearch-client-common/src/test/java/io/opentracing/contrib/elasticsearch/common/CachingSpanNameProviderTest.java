@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import io.opentracing.contrib.elasticsearch.common.CachingSpanNameProvider.EvictionPolicy;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.junit.Test;
+
+public class CachingSpanNameProviderTest {
+
+  private static HttpRequest request(String method, String uri) {
+    return RequestBuilder.create(method).setUri(uri).build();
+  }
+
+  @Test
+  public void cachesNamesByMethodAndUri() {
+    CachingSpanNameProvider spanNameProvider = new CachingSpanNameProvider(
+        ClientSpanNameProvider.REQUEST_METHOD_TARGET_NAME);
+
+    String name = spanNameProvider.apply(request("GET", "/twitter/tweet/1"));
+    assertEquals("GET /twitter/tweet/?", name);
+    assertSame(name, spanNameProvider.apply(request("GET", "/twitter/tweet/1")));
+    assertEquals("POST /twitter/tweet/?", spanNameProvider.apply(request("POST", "/twitter/tweet/1")));
+    assertEquals("GET /twitter/tweet/?", spanNameProvider.apply(request("GET", "/twitter/tweet/2")));
+
+    assertEquals(1, spanNameProvider.getHitCount());
+    assertEquals(3, spanNameProvider.getMissCount());
+    assertEquals(3, spanNameProvider.size());
+  }
+
+  @Test
+  public void staysWithinMaxSize() {
+    CachingSpanNameProvider spanNameProvider = new CachingSpanNameProvider(
+        ClientSpanNameProvider.REQUEST_TARGET_NAME, 2, 100, EvictionPolicy.EVICT_ONE);
+
+    spanNameProvider.apply(request("GET", "/_bulk"));
+    spanNameProvider.apply(request("GET", "/orders/_search"));
+    spanNameProvider.apply(request("GET", "/_cluster/health"));
+
+    assertEquals(2, spanNameProvider.size());
+  }
+
+  @Test
+  public void rejectPolicyKeepsCachedNames() {
+    CachingSpanNameProvider spanNameProvider = new CachingSpanNameProvider(
+        ClientSpanNameProvider.REQUEST_TARGET_NAME, 1, 100, EvictionPolicy.REJECT);
+
+    spanNameProvider.apply(request("GET", "/_bulk"));
+    spanNameProvider.apply(request("GET", "/orders/_search"));
+    spanNameProvider.apply(request("GET", "/_bulk"));
+
+    assertEquals(1, spanNameProvider.size());
+    assertEquals(1, spanNameProvider.getHitCount());
+  }
+
+  @Test
+  public void suspendsCachingOnHighCardinality() {
+    CachingSpanNameProvider spanNameProvider = new CachingSpanNameProvider(
+        ClientSpanNameProvider.REQUEST_TARGET_NAME, 100, 3, EvictionPolicy.EVICT_ONE);
+
+    for (int i = 0; i < 10; i++) {
+      assertEquals("/orders/_doc/id" + i,
+          spanNameProvider.apply(request("GET", "/orders/_doc/id" + i)));
+    }
+
+    assertEquals(3, spanNameProvider.size());
+    assertEquals(10, spanNameProvider.getMissCount());
+  }
+}
@@ -138,6 +138,22 @@ public class ClientSpanNameProviderTest {
     assertEquals("POST /_tasks/task_id:?/_cancel", spanNameProvider.apply(postRequestCancelTaskID));
   }
 
+  @Test
+  public void requestMethodApiSpanNameFormatsCorrectly() {
+    Function<HttpRequest, String> spanNameProvider = ClientSpanNameProvider.REQUEST_METHOD_API_NAME;
+
+    assertEquals("GET /?/?/", spanNameProvider.apply(getRequest));
+    assertEquals("GET /?/?/?", spanNameProvider.apply(getRequestWithID));
+    assertEquals("GET /?/?/?", spanNameProvider.apply(getIndexRequestWithIDAndParameters));
+    assertEquals("GET /?/?/?/_source", spanNameProvider.apply(getRequestWithIDWithSource));
+
+    assertEquals("POST /_tasks/?/_cancel", spanNameProvider.apply(postRequestCancelTaskID));
+    assertEquals("GET /?/_search", spanNameProvider.apply(
+        RequestBuilder.create("GET").setUri("/logs-2019.12.01,logs-2019.12.02/_search").build()));
+    assertEquals("GET /_cat/?", spanNameProvider.apply(
+        RequestBuilder.create("GET").setUri("/_cat/indices?v").build()));
+  }
+
   @Test
   public void prefixedRequestMethodTargetSpanNameFormatsCorrectly() {
     Function<HttpRequest, String> spanNameProvider = ClientSpanNameProvider
@@ -169,4 +185,20 @@ public class ClientSpanNameProviderTest {
     assertEquals("POST /_tasks/task_id:?/_cancel", spanNameProvider.apply(postRequestCancelTaskID));
   }
 
+  @Test
+  public void standardizeUriMatchesRegexBehaviour() {
+    assertEquals("/a/?/2", ClientSpanNameProvider.standardizeUri("/a/1/2"));
+    assertEquals("/a/?/2/?", ClientSpanNameProvider.standardizeUri("/a/1/2/3"));
+    assertEquals("/12a/?", ClientSpanNameProvider.standardizeUri("/12a/3"));
+    assertEquals("//?", ClientSpanNameProvider.standardizeUri("//1"));
+    assertEquals("/foo?", ClientSpanNameProvider.standardizeUri("/foo?"));
+    assertEquals("/foo", ClientSpanNameProvider.standardizeUri("/foo?a?b"));
+    assertEquals("", ClientSpanNameProvider.standardizeUri("?x"));
+    assertEquals("/idx/_doc/?", ClientSpanNameProvider.standardizeUri("/idx/_doc/123?refresh=true"));
+    assertEquals("/_tasks/task_id:?", ClientSpanNameProvider.standardizeUri("/_tasks/task_id:12345"));
+    assertEquals("/_tasks/task_id:", ClientSpanNameProvider.standardizeUri("/_tasks/task_id:"));
+    assertEquals("/task_id:?/?", ClientSpanNameProvider.standardizeUri("/task_id:1/2"));
+    assertEquals("/_cluster/health", ClientSpanNameProvider.standardizeUri("/_cluster/health"));
+  }
+
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import javax.net.ssl.SSLContext;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.junit.Test;
+
+public class ConnectionPoolMonitorTest {
+
+  private static final HttpRoute ROUTE = new HttpRoute(new HttpHost("localhost", 9200));
+
+  @Test
+  public void createsConfiguredPool() throws Exception {
+    PoolingNHttpClientConnectionManager created =
+        ConnectionPoolMonitor.createConnectionManager(30, 10);
+    try {
+      assertEquals(30, created.getTotalStats().getMax());
+      assertEquals(10, created.getStats(ROUTE).getMax());
+    } finally {
+      created.shutdown();
+    }
+  }
+
+  @Test
+  public void replacesOnlyUnconfiguredPool() throws Exception {
+    // as configured by RestClientBuilder
+    HttpAsyncClientBuilder builder = HttpAsyncClientBuilder.create()
+        .setSSLContext(SSLContext.getDefault())
+        .setMaxConnTotal(30)
+        .setMaxConnPerRoute(10);
+    PoolingNHttpClientConnectionManager created =
+        ConnectionPoolMonitor.createConnectionManager(30, 10);
+    try {
+      ConnectionPoolMonitor.checkReplaceable(builder, created);
+    } finally {
+      created.shutdown();
+    }
+
+    assertNotReplaceable(builder.setMaxConnTotal(50), "setMaxConnTotal");
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(null, null, null);
+    assertNotReplaceable(HttpAsyncClientBuilder.create().setSSLContext(sslContext),
+        "setSSLContext");
+  }
+
+  private static void assertNotReplaceable(HttpAsyncClientBuilder builder, String setter) {
+    PoolingNHttpClientConnectionManager created =
+        ConnectionPoolMonitor.createConnectionManager(30, 10);
+    try {
+      ConnectionPoolMonitor.checkReplaceable(builder, created);
+      fail();
+    } catch (IllegalStateException expected) {
+      assertTrue(expected.getMessage().contains(setter));
+    }
+  }
+
+  @Test
+  public void tagsSpansWithPoolOfTheirClient() throws Exception {
+    PoolingNHttpClientConnectionManager first =
+        ConnectionPoolMonitor.createConnectionManager(7, 3);
+    PoolingNHttpClientConnectionManager second =
+        ConnectionPoolMonitor.createConnectionManager(9, 5);
+    ConnectionPoolMonitor monitor = new ConnectionPoolMonitor();
+    try {
+      assertNull(monitor.getTotalStats());
+      monitor.observe(first);
+      monitor.observe(second);
+
+      MockTracer tracer = new MockTracer();
+      MockSpan span = tracer.buildSpan("GET").start();
+      ConnectionPoolMonitor.onRequest(first, ROUTE, span);
+      assertEquals(0, span.tags().get(ConnectionPoolMonitor.POOL_LEASED));
+      assertEquals(0, span.tags().get(ConnectionPoolMonitor.POOL_PENDING));
+      assertEquals(0, span.tags().get(ConnectionPoolMonitor.POOL_AVAILABLE));
+      assertEquals(3, span.tags().get(ConnectionPoolMonitor.POOL_MAX));
+
+      span = tracer.buildSpan("GET").start();
+      ConnectionPoolMonitor.onRequest(second, ROUTE, span);
+      assertEquals(5, span.tags().get(ConnectionPoolMonitor.POOL_MAX));
+
+      assertEquals(8, monitor.getStats(ROUTE).getMax());
+      assertEquals(16, monitor.getTotalStats().getMax());
+    } finally {
+      first.shutdown();
+      second.shutdown();
+    }
+  }
+
+  @Test
+  public void samplesEveryRoute() throws Exception {
+    ConnectionPoolMonitor monitor = new ConnectionPoolMonitor();
+    monitor.sample();
+    assertFalse(monitor.getGauges().containsKey(ConnectionPoolMonitor.TOTAL));
+
+    PoolingNHttpClientConnectionManager first =
+        ConnectionPoolMonitor.createConnectionManager(30, 10);
+    PoolingNHttpClientConnectionManager second =
+        ConnectionPoolMonitor.createConnectionManager(30, 10);
+    try {
+      monitor.observe(first);
+      monitor.observe(second);
+      first.getStats(ROUTE);
+      second.getStats(ROUTE);
+      monitor.sample();
+      monitor.sample();
+
+      assertEquals(2, monitor.getGauges().get("http://localhost:9200").getLeased().getCount());
+      assertEquals(2, monitor.getGauges().get(ConnectionPoolMonitor.TOTAL).getPending()
+          .getCount());
+      assertFalse(monitor.getGauges().containsKey("http://localhost:9201"));
+    } finally {
+      first.shutdown();
+      second.shutdown();
+    }
+  }
+}
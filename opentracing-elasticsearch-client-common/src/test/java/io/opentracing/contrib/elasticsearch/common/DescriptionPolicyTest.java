@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.opentracing.Span;
+import io.opentracing.contrib.elasticsearch.common.DescriptionPolicy.Mode;
+import io.opentracing.mock.MockTracer;
+import org.junit.Test;
+
+public class DescriptionPolicyTest {
+
+  private final MockTracer tracer = new MockTracer();
+
+  @Test
+  public void describesEverythingByDefault() {
+    Span span = tracer.buildSpan("test").start();
+    assertEquals(Mode.FULL, DescriptionPolicy.FULL.getMode());
+    assertTrue(DescriptionPolicy.FULL.isEnabled("indices:data/write/bulk", span));
+    String description = new String(new char[10_000]);
+    assertEquals(description, DescriptionPolicy.FULL.truncate(description));
+  }
+
+  @Test
+  public void disabledActions() {
+    DescriptionPolicy policy = new DescriptionPolicy.Builder()
+        .disable("indices:data/write/bulk")
+        .build();
+    Span span = tracer.buildSpan("test").start();
+    assertFalse(policy.isEnabled("indices:data/write/bulk", span));
+    assertTrue(policy.isEnabled("indices:data/read/search", span));
+  }
+
+  @Test
+  public void sampledOnly() {
+    Span sampled = tracer.buildSpan("sampled").start();
+    Span notSampled = tracer.buildSpan("not-sampled").start();
+    DescriptionPolicy policy = new DescriptionPolicy.Builder()
+        .withSampled(span -> span == sampled)
+        .build();
+    assertTrue(policy.isEnabled("indices:data/read/search", sampled));
+    assertFalse(policy.isEnabled("indices:data/read/search", notSampled));
+  }
+
+  @Test
+  public void none() {
+    DescriptionPolicy policy = new DescriptionPolicy.Builder().withMode(Mode.NONE).build();
+    assertFalse(policy.isEnabled("indices:data/read/search", tracer.buildSpan("test").start()));
+  }
+
+  @Test
+  public void truncates() {
+    DescriptionPolicy policy = new DescriptionPolicy.Builder().withMaxLength(8).build();
+    assertEquals("short", policy.truncate("short"));
+    assertEquals("12345678", policy.truncate("12345678"));
+    assertEquals("12345...", policy.truncate("123456789"));
+    assertEquals(null, policy.truncate(null));
+
+    DescriptionPolicy tiny = new DescriptionPolicy.Builder().withMaxLength(2).build();
+    assertEquals("12", tiny.truncate("123456789"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNonPositiveMaxLength() {
+    new DescriptionPolicy.Builder().withMaxLength(0);
+  }
+}
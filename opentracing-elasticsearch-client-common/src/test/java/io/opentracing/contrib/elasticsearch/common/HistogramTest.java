@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+public class HistogramTest {
+
+  @Test
+  public void bucketsAreContiguous() {
+    assertEquals(0, Histogram.bucket(0));
+    assertEquals(Histogram.BUCKETS - 1, Histogram.bucket(Long.MAX_VALUE));
+    for (int bucket = 1; bucket < Histogram.BUCKETS; bucket++) {
+      long lowest = Histogram.lowestValue(bucket);
+      assertEquals(bucket, Histogram.bucket(lowest));
+      assertEquals(bucket - 1, Histogram.bucket(lowest - 1));
+      assertEquals(lowest - 1, Histogram.highestValue(bucket - 1));
+    }
+  }
+
+  @Test
+  public void percentilesWithinRelativeError() {
+    Histogram histogram = new Histogram();
+    for (long value = 1; value <= 100_000; value++) {
+      histogram.record(value);
+    }
+
+    assertEquals(100_000, histogram.getCount());
+    assertEquals(100_000, histogram.getMax());
+    assertEquals(5_000_050_000L, histogram.getSum());
+    assertWithin(50_000, histogram.getValueAtPercentile(50));
+    assertWithin(99_000, histogram.getValueAtPercentile(99));
+    assertWithin(99_900, histogram.getValueAtPercentile(99.9));
+    assertEquals(100_000, histogram.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void smallValuesAreExact() {
+    Histogram histogram = new Histogram();
+    histogram.record(-5);
+    histogram.record(3);
+    histogram.record(7);
+
+    assertEquals(0, histogram.getValueAtPercentile(0));
+    assertEquals(3, histogram.getValueAtPercentile(50));
+    assertEquals(7, histogram.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void valuesAboveHighestTrackableValue() {
+    Histogram histogram = new Histogram(30);
+    for (long value = 0; value <= 30; value++) {
+      histogram.record(value);
+    }
+    histogram.record(1_000);
+
+    assertEquals(32, histogram.getCount());
+    assertEquals(15, histogram.getValueAtPercentile(50));
+    assertEquals(30, histogram.getValueAtPercentile(31 * 100.0 / 32));
+    assertEquals(1_000, histogram.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void reset() {
+    Histogram histogram = new Histogram();
+    histogram.record(42);
+    histogram.reset();
+
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0, histogram.getValueAtPercentile(99));
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue(expected + " ~ " + actual, Math.abs(actual - expected) <= expected / 32);
+  }
+
+  @Test
+  public void concurrentSnapshotAndResetLosesNothing() throws Exception {
+    final Histogram histogram = new Histogram();
+    final int threads = 4;
+    final int values = 100_000;
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> recorders = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (int value = 0; value < values; value++) {
+          histogram.record(value);
+        }
+      });
+      thread.start();
+      recorders.add(thread);
+    }
+
+    start.countDown();
+    long count = 0;
+    while (recorders.get(0).isAlive() || recorders.get(threads - 1).isAlive()) {
+      count += histogram.snapshotAndReset().getCount();
+    }
+    for (Thread thread : recorders) {
+      thread.join();
+    }
+    count += histogram.snapshotAndReset().getCount();
+
+    assertEquals((long) threads * values, count);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.http.HttpRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.junit.Test;
+
+public class HttpTextMapExtractAdapterTest {
+
+  private static Map<String, String> toMap(HttpTextMapExtractAdapter adapter) {
+    Map<String, String> map = new LinkedHashMap<>();
+    for (Map.Entry<String, String> entry : adapter) {
+      map.put(entry.getKey(), entry.getValue());
+    }
+    return map;
+  }
+
+  private static HttpRequest request() {
+    HttpRequest request = new BasicHttpRequest("GET", "/twitter/_search");
+    request.addHeader("Content-Type", "application/json");
+    request.addHeader("traceid", "1");
+    request.addHeader("SpanId", "2");
+    return request;
+  }
+
+  @Test
+  public void exposesAllHeaders() {
+    Map<String, String> headers = toMap(new HttpTextMapExtractAdapter(request()));
+
+    assertEquals(3, headers.size());
+    assertEquals("application/json", headers.get("Content-Type"));
+    assertEquals("1", headers.get("traceid"));
+    assertEquals("2", headers.get("SpanId"));
+  }
+
+  @Test
+  public void exposesOnlyGivenKeys() {
+    Map<String, String> headers = toMap(new HttpTextMapExtractAdapter(request(),
+        HttpTextMapExtractAdapter.keys(Arrays.asList("traceid", "spanid", "baggage-"))));
+
+    assertEquals(2, headers.size());
+    assertEquals("1", headers.get("traceid"));
+    assertEquals("2", headers.get("SpanId"));
+  }
+
+  @Test
+  public void exposesOnlyPropagationHeaders() {
+    HttpRequest request = request();
+    request.addHeader("uberctx-user", "kimchy");
+    Map<String, String> headers = toMap(new HttpTextMapExtractAdapter(request,
+        PropagationHeaders.KNOWN));
+
+    assertEquals(3, headers.size());
+    assertEquals("1", headers.get("traceid"));
+    assertEquals("2", headers.get("SpanId"));
+    assertEquals("kimchy", headers.get("uberctx-user"));
+  }
+
+  @Test
+  public void exposesNothingWithoutHeaders() {
+    assertEquals(0, toMap(new HttpTextMapExtractAdapter(
+        new BasicHttpRequest("GET", "/_cluster/health"))).size());
+  }
+}
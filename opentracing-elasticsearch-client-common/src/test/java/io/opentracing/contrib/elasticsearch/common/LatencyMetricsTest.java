@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class LatencyMetricsTest {
+
+  @Test
+  public void recordsPerEndpoint() {
+    LatencyMetrics metrics = new LatencyMetrics(2);
+    metrics.record("GET /{index}/_search", 1_000);
+    metrics.record("GET /{index}/_search", 3_000);
+    metrics.record("POST /_bulk", 2_000);
+    metrics.record("GET /_cat/indices", 5_000);
+    metrics.record(null, 7_000);
+
+    Map<String, HistogramSnapshot> snapshots = metrics.snapshot();
+    assertEquals(3, snapshots.size());
+    assertEquals(2, snapshots.get("GET /{index}/_search").getCount());
+    assertEquals(2_000, snapshots.get("GET /{index}/_search").getMean(), 0);
+    assertEquals(1, snapshots.get("POST /_bulk").getCount());
+    assertEquals(2, snapshots.get(LatencyMetrics.OTHER_ENDPOINTS).getCount());
+    assertEquals(7_000, snapshots.get(LatencyMetrics.OTHER_ENDPOINTS).getMax());
+  }
+
+  @Test
+  public void snapshotAndReset() {
+    LatencyMetrics metrics = new LatencyMetrics();
+    metrics.record("POST /_bulk", 2_000);
+
+    assertEquals(1, metrics.snapshotAndReset().get("POST /_bulk").getCount());
+    assertTrue(metrics.snapshotAndReset().isEmpty());
+
+    metrics.record("POST /_bulk", 4_000);
+    assertEquals(4_000, metrics.snapshot().get("POST /_bulk").getMax());
+  }
+
+  @Test
+  public void reporterExportsOnClose() {
+    LatencyMetrics metrics = new LatencyMetrics();
+    List<Map<String, HistogramSnapshot>> exported = new ArrayList<>();
+    MetricsReporter reporter = new MetricsReporter(metrics, exported::add, 1, TimeUnit.HOURS);
+    metrics.record("indices:data/read/search", 1_000);
+    reporter.close();
+
+    assertEquals(1, exported.size());
+    assertEquals(1, exported.get(0).get("indices:data/read/search").getCount());
+  }
+}
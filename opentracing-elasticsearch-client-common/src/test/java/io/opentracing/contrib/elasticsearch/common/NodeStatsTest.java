@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpHost;
+import org.junit.Test;
+
+public class NodeStatsTest {
+
+  private final HttpHost node1 = new HttpHost("node1", 9200, "http");
+  private final HttpHost node2 = new HttpHost("node2", 9200, "http");
+
+  @Test
+  public void unknownNodes() {
+    NodeStats stats = new NodeStats();
+    assertTrue(Double.isNaN(stats.getLatencyNanos(node1)));
+    assertTrue(Double.isNaN(stats.getErrorRate(node1)));
+    assertTrue(Double.isNaN(stats.getScore(node1)));
+  }
+
+  @Test
+  public void averagesPerNode() {
+    NodeStats stats = new NodeStats(0.5);
+    stats.record(node1, 1_000, false);
+    stats.record(node1, 3_000, false);
+    stats.record(node2, 8_000, false);
+
+    assertEquals(2_000, stats.getLatencyNanos(node1), 0);
+    assertEquals(2_000, stats.getScore(node1), 0);
+    assertEquals(8_000, stats.getLatencyNanos(node2), 0);
+    assertEquals(0, stats.getErrorRate(node2), 0);
+  }
+
+  @Test
+  public void errorsIncreaseScore() {
+    NodeStats stats = new NodeStats(0.5);
+    stats.record(node1, 1_000, false);
+    stats.record(node1, 1_000, true);
+
+    assertEquals(0.5, stats.getErrorRate(node1), 0);
+    assertEquals(1_000 * (1 + NodeStats.ERROR_PENALTY / 2), stats.getScore(node1), 0);
+
+    // recovers with successful requests
+    for (int i = 0; i < 20; i++) {
+      stats.record(node1, 1_000, false);
+    }
+    assertTrue(stats.getErrorRate(node1) < 0.001);
+  }
+
+  @Test
+  public void errorStatusCodes() {
+    assertFalse(NodeStats.isError(200));
+    assertFalse(NodeStats.isError(404));
+    assertTrue(NodeStats.isError(429));
+    assertTrue(NodeStats.isError(503));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidAlpha() {
+    new NodeStats(0);
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.noop.NoopTracerFactory;
+import org.junit.Test;
+
+public class OpaqueIdFormatTest {
+
+  @Test
+  public void formats() {
+    MockSpan span = new MockTracer().buildSpan("search").start();
+    String traceId = span.context().toTraceId();
+    String spanId = span.context().toSpanId();
+
+    assertEquals(traceId + "-" + spanId,
+        OpaqueIdFormat.format(OpaqueIdFormat.TRACE_ID_SPAN_ID, span.context()));
+    assertEquals(traceId, OpaqueIdFormat.format(OpaqueIdFormat.TRACE_ID, span.context()));
+    assertEquals("app/" + traceId + "/" + spanId, OpaqueIdFormat
+        .format(OpaqueIdFormat.pattern("app/{traceId}/{spanId}"), span.context()));
+    assertNull(OpaqueIdFormat.format((context) -> "", span.context()));
+  }
+
+  @Test
+  public void noIdsWithoutTracer() {
+    assertNull(OpaqueIdFormat.format(OpaqueIdFormat.TRACE_ID_SPAN_ID,
+        NoopTracerFactory.create().buildSpan("search").start().context()));
+  }
+}
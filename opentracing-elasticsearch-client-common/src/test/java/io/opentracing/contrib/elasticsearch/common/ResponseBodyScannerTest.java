@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class ResponseBodyScannerTest {
+
+  static final String SEARCH = "{\"took\":12,\"timed_out\":false,"
+      + "\"_shards\":{\"total\":5,\"successful\":4,\"skipped\":0,\"failed\":1,"
+      + "\"failures\":[{\"shard\":3,\"reason\":{\"type\":\"x\",\"failed\":7}}]},"
+      + "\"hits\":{\"total\":1,\"hits\":[{\"_source\":{\"took\":99,\"errors\":true}}]}}";
+
+  static final String BULK = "{\n  \"took\" : 30,\n  \"errors\" : true,\n"
+      + "  \"items\" : [ { \"index\" : { \"status\" : 201 } } ]\n}";
+
+  private static ResponseBodyScanner scan(String body, int maxBytes, int chunkSize) {
+    ResponseBodyScanner scanner = new ResponseBodyScanner(maxBytes);
+    ByteBuffer buffer = ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8));
+    for (int from = 0; from < buffer.limit() && !scanner.isDone(); from += chunkSize) {
+      scanner.scan(buffer, from, Math.min(from + chunkSize, buffer.limit()));
+    }
+    return scanner;
+  }
+
+  @Test
+  public void searchResponse() {
+    ResponseBodyScanner scanner = scan(SEARCH, 1024, SEARCH.length());
+    assertEquals(12, scanner.getTook());
+    assertEquals(Boolean.FALSE, scanner.getTimedOut());
+    assertEquals(1, scanner.getShardsFailed());
+    assertNull(scanner.getErrors());
+    assertTrue(scanner.isDone());
+  }
+
+  @Test
+  public void bulkResponse() {
+    ResponseBodyScanner scanner = scan(BULK, 1024, 1);
+    assertEquals(30, scanner.getTook());
+    assertEquals(Boolean.TRUE, scanner.getErrors());
+    assertNull(scanner.getTimedOut());
+    assertEquals(-1, scanner.getShardsFailed());
+  }
+
+  @Test
+  public void fieldsSplitAcrossReads() {
+    for (int chunkSize = 1; chunkSize < 16; chunkSize++) {
+      ResponseBodyScanner scanner = scan(SEARCH, 1024, chunkSize);
+      assertEquals(12, scanner.getTook());
+      assertEquals(1, scanner.getShardsFailed());
+    }
+  }
+
+  @Test
+  public void skipsStringsAndNestedValues() {
+    String body = "{\"error\":{\"reason\":\"took\\\":1 {[\",\"took\":2},"
+        + "\"note\":\"\\\"took\\\":3\",\"took\":4}";
+    ResponseBodyScanner scanner = scan(body, 1024, 7);
+    assertEquals(4, scanner.getTook());
+    assertTrue(scanner.isDone());
+  }
+
+  @Test
+  public void stopsAfterMaxBytes() {
+    ResponseBodyScanner scanner = scan(SEARCH, 15, SEARCH.length());
+    assertTrue(scanner.isDone());
+    assertEquals(12, scanner.getTook());
+    assertNull(scanner.getTimedOut());
+  }
+
+  @Test
+  public void ignoresMalformedValues() {
+    ResponseBodyScanner scanner = scan("{\"took\":\"fast\",\"_shards\":{\"failed\":x}}", 1024, 64);
+    assertEquals(-1, scanner.getTook());
+    assertEquals(-1, scanner.getShardsFailed());
+    assertNull(scanner.getTimedOut());
+  }
+}
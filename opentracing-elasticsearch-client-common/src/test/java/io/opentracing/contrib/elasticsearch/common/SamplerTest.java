@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.junit.Test;
+
+public class SamplerTest {
+
+  private final HttpRequest request = new BasicHttpRequest("POST", "/_bulk");
+
+  @Test
+  public void rateLimitingSamplerAllowsBurstThenLimits() {
+    RateLimitingSampler sampler = new RateLimitingSampler(5);
+
+    for (int i = 0; i < 5; i++) {
+      assertTrue(sampler.isSampled(request));
+    }
+    assertFalse(sampler.isSampled(request));
+  }
+
+  @Test
+  public void probabilisticSampler() {
+    Sampler never = new ProbabilisticSampler(0);
+    Sampler always = new ProbabilisticSampler(1);
+
+    for (int i = 0; i < 100; i++) {
+      assertFalse(never.isSampled(request));
+      assertTrue(always.isSampled(request));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void probabilisticSamplerRejectsInvalidRate() {
+    new ProbabilisticSampler(1.5);
+  }
+
+  @Test
+  public void adaptiveSamplerSamplesEndpointsIndependently() {
+    // 0.001 spans per second over an hour: at most 4 spans per endpoint and interval
+    AdaptiveSampler sampler = new AdaptiveSampler(ClientSpanNameProvider.REQUEST_METHOD_TARGET_NAME,
+        0.001, 2, 1, TimeUnit.HOURS, 2);
+
+    int bulkSamples = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (sampler.isSampled(new BasicHttpRequest("POST", "/_bulk"))) {
+        bulkSamples++;
+      }
+    }
+    assertEquals(4, bulkSamples);
+
+    assertTrue(sampler.isSampled(new BasicHttpRequest("POST", "/_reindex")));
+    assertTrue(sampler.isSampled(new BasicHttpRequest("POST", "/_reindex")));
+  }
+
+  @Test
+  public void adaptiveSamplerGuaranteesMinimumPerEndpoint() {
+    AdaptiveSampler sampler = new AdaptiveSampler(ClientSpanNameProvider.REQUEST_METHOD_TARGET_NAME,
+        0.001, 3, 1, TimeUnit.HOURS, 10);
+
+    for (String endpoint : new String[]{"/_forcemerge", "/_cluster/reroute", "/orders/_search"}) {
+      for (int i = 0; i < 3; i++) {
+        assertTrue(sampler.isSampled(new BasicHttpRequest("POST", endpoint)));
+      }
+    }
+    assertEquals(3, sampler.getSamplingProbabilities().size());
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.opentracing.contrib.elasticsearch.common.SearchProfiler.Node;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.apache.http.message.BasicHttpRequest;
+import org.junit.Test;
+
+public class SearchProfilerTest {
+
+  static final String PROFILED = "{\"took\":3,\"hits\":{\"total\":1,\"hits\":[]},"
+      + "\"profile\":{\"shards\":[{\"id\":\"[n1][index][0]\",\"searches\":[{"
+      + "\"query\":[{\"type\":\"BooleanQuery\",\"description\":\"+user:kimchy\","
+      + "\"time_in_nanos\":3000000,\"children\":[{\"type\":\"TermQuery\","
+      + "\"description\":\"user:kimchy\",\"time_in_nanos\":1000000}]}],"
+      + "\"rewrite_time\":2000,"
+      + "\"collector\":[{\"name\":\"SimpleTopScoreDocCollector\",\"reason\":\"search_top_hits\","
+      + "\"time_in_nanos\":500000}]}],"
+      + "\"aggregations\":[{\"type\":\"GlobalOrdinalsStringTermsAggregator\","
+      + "\"description\":\"users\",\"time_in_nanos\":700000}]}]}}";
+
+  @Test
+  public void parseAndRemove() {
+    Object document = JsonParser.parse("{\"a\":[1,2.5,\"x\\\"y\",true,null],\"b\":{}}");
+    Map<?, ?> map = (Map<?, ?>) document;
+    assertEquals(Arrays.asList(1L, 2.5, "x\"y", true, null), map.get("a"));
+    assertEquals(Collections.emptyMap(), map.get("b"));
+
+    assertEquals("{\"b\":{}}", JsonParser.remove("{\"a\":{\"b\":1},\"b\":{}}", "a"));
+    assertEquals("{\"a\":1}", JsonParser.remove("{\"a\":1,\"profile\":{\"x\":[]}}", "profile"));
+    assertEquals("{}", JsonParser.remove("{\"profile\":true}", "profile"));
+    assertEquals("{\"a\":{\"profile\":1}}",
+        JsonParser.remove("{\"a\":{\"profile\":1}}", "profile"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void malformedDocument() {
+    JsonParser.parse("{\"a\":1");
+  }
+
+  @Test
+  public void enableProfile() {
+    assertEquals("{\"profile\":true}", enable(""));
+    assertEquals("{\"profile\":true }", enable("{ }"));
+    assertEquals("{\"profile\":true,\"query\":{\"match_all\":{}}}",
+        enable("{\"query\":{\"match_all\":{}}}"));
+    assertNull(enable("{\"profile\":false}"));
+    assertNull(enable("[]"));
+    assertNull(enable("{\"query\":"));
+  }
+
+  private static String enable(String body) {
+    byte[] profiled = SearchProfiler.enableProfile(body.getBytes(StandardCharsets.UTF_8));
+    return (profiled != null) ? new String(profiled, StandardCharsets.UTF_8) : null;
+  }
+
+  @Test
+  public void isSearch() {
+    assertTrue(SearchProfiler.isSearch(new BasicHttpRequest("POST", "/index/_search")));
+    assertTrue(SearchProfiler.isSearch(new BasicHttpRequest("GET", "/_search?size=1")));
+    assertFalse(SearchProfiler.isSearch(new BasicHttpRequest("PUT", "/index/_search")));
+    assertFalse(SearchProfiler.isSearch(new BasicHttpRequest("POST", "/index/_search/scroll")));
+    assertFalse(SearchProfiler.isSearch(new BasicHttpRequest("POST", "/index/_msearch")));
+  }
+
+  @Test
+  public void parseProfile() {
+    List<Node> shards = SearchProfiler.parseProfile(PROFILED);
+    assertEquals(1, shards.size());
+    Node shard = shards.get(0);
+    assertEquals(SearchProfiler.SHARD, shard.getType());
+    assertEquals("[n1][index][0]", shard.getName());
+
+    List<Node> children = shard.getChildren();
+    assertEquals(4, children.size());
+    assertEquals(SearchProfiler.QUERY, children.get(0).getType());
+    assertEquals("BooleanQuery", children.get(0).getName());
+    assertEquals("+user:kimchy", children.get(0).getDescription());
+    assertEquals(3000000, children.get(0).getTimeNanos());
+    assertEquals("TermQuery", children.get(0).getChildren().get(0).getName());
+    assertEquals(SearchProfiler.REWRITE, children.get(1).getType());
+    assertEquals(2000, children.get(1).getTimeNanos());
+    assertEquals(SearchProfiler.COLLECTOR, children.get(2).getType());
+    assertEquals("search_top_hits", children.get(2).getDescription());
+    assertEquals(SearchProfiler.AGGREGATION, children.get(3).getType());
+    assertEquals("users", children.get(3).getDescription());
+
+    assertTrue(SearchProfiler.parseProfile("{\"took\":1}").isEmpty());
+    assertFalse(SearchProfiler.stripProfile(PROFILED).contains("profile"));
+  }
+
+  @Test
+  public void report() {
+    MockTracer tracer = new MockTracer();
+    MockSpan search = tracer.buildSpan("search").withStartTimestamp(1000).start();
+    new SearchProfiler.Builder().withRate(1).build()
+        .report(tracer, search, 1000, SearchProfiler.parseProfile(PROFILED));
+
+    List<MockSpan> spans = tracer.finishedSpans();
+    assertEquals(6, spans.size());
+    MockSpan shard = find(spans, SearchProfiler.PROFILE_SHARD);
+    assertEquals(search.context().spanId(), shard.parentId());
+    assertEquals("[n1][index][0]", shard.tags().get(SearchProfiler.PROFILE_SHARD));
+    assertEquals(SearchProfiler.SHARD, shard.tags().get(SearchProfiler.PROFILE_TYPE));
+
+    MockSpan query = find(spans, "BooleanQuery");
+    assertEquals(shard.context().spanId(), query.parentId());
+    assertEquals(1000, query.startMicros());
+    assertEquals(4000, query.finishMicros());
+    assertEquals("+user:kimchy", query.tags().get(SearchProfiler.PROFILE_DESCRIPTION));
+    assertEquals(query.context().spanId(), find(spans, "TermQuery").parentId());
+    // siblings follow each other
+    assertEquals(4000, find(spans, SearchProfiler.REWRITE).startMicros());
+    assertEquals(4002, find(spans, "SimpleTopScoreDocCollector").startMicros());
+    // the shard has no time of its own, it lasts as long as its children
+    assertEquals(1000, shard.startMicros());
+    assertEquals(5202, shard.finishMicros());
+  }
+
+  @Test
+  public void reportsAtMostMaxSpans() {
+    MockTracer tracer = new MockTracer();
+    MockSpan search = tracer.buildSpan("search").start();
+    new SearchProfiler.Builder().withMaxSpans(2).build()
+        .report(tracer, search, 1000, SearchProfiler.parseProfile(PROFILED));
+    assertEquals(2, tracer.finishedSpans().size());
+  }
+
+  @Test
+  public void shouldProfile() {
+    assertTrue(new SearchProfiler.Builder().withRate(1).build().shouldProfile(null));
+    assertFalse(new SearchProfiler.Builder().withRate(0).build().shouldProfile(null));
+    MockSpan span = new MockTracer().buildSpan("search").start();
+    assertFalse(new SearchProfiler.Builder().withRate(1).withSampled(s -> false).build()
+        .shouldProfile(span));
+  }
+
+  private static MockSpan find(List<MockSpan> spans, String operationName) {
+    for (MockSpan span : spans) {
+      if (span.operationName().equals(operationName)) {
+        return span;
+      }
+    }
+    throw new AssertionError("no span " + operationName);
+  }
+}
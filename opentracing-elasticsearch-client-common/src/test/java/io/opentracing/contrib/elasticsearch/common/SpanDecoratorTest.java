@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.tag.Tags;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import org.junit.Test;
+
+public class SpanDecoratorTest {
+
+  private final MockTracer mockTracer = new MockTracer();
+
+  private static Exception timeout() {
+    return new IllegalStateException("request failed",
+        new SocketTimeoutException("Read timed out"));
+  }
+
+  private Map<String, ?> onError(Throwable throwable, StackTraceCapture stackTraceCapture) {
+    MockSpan span = mockTracer.buildSpan("GET").start();
+    SpanDecorator.onError(throwable, span, stackTraceCapture);
+    span.finish();
+    assertEquals(Boolean.TRUE, span.tags().get(Tags.ERROR.getKey()));
+    return span.logEntries().get(0).fields();
+  }
+
+  @Test
+  public void fullStackTrace() {
+    Exception exception = timeout();
+    StringWriter sw = new StringWriter();
+    exception.printStackTrace(new PrintWriter(sw));
+
+    Map<String, ?> fields = onError(exception, StackTraceCapture.FULL);
+
+    assertEquals(IllegalStateException.class.getName(), fields.get("error.kind"));
+    assertEquals("request failed", fields.get("message"));
+    assertEquals(sw.toString(), fields.get("stack"));
+  }
+
+  @Test
+  public void noStackTrace() {
+    Map<String, ?> fields = onError(timeout(), StackTraceCapture.NONE);
+
+    assertEquals(IllegalStateException.class.getName(), fields.get("error.kind"));
+    assertEquals("request failed", fields.get("message"));
+    assertFalse(fields.containsKey("stack"));
+  }
+
+  @Test
+  public void truncatedStackTrace() {
+    Exception exception = timeout();
+    String stack = (String) onError(exception, StackTraceCapture.truncated(2)).get("stack");
+
+    String[] lines = stack.split("\n");
+    assertEquals(IllegalStateException.class.getName(), lines[0]);
+    assertTrue(lines[1].startsWith("\tat "));
+    assertTrue(lines[2].startsWith("\tat "));
+    assertEquals("\t... " + (exception.getStackTrace().length - 2) + " more", lines[3]);
+    assertEquals("Caused by: " + SocketTimeoutException.class.getName(), lines[4]);
+    assertFalse(stack.contains("Read timed out"));
+  }
+
+  @Test
+  public void truncatedStackTraceIsCached() {
+    StackTraceCapture stackTraceCapture = StackTraceCapture.truncated(5);
+    Exception[] exceptions = new Exception[2];
+    for (int i = 0; i < exceptions.length; i++) {
+      exceptions[i] = new SocketTimeoutException("timeout " + i);
+    }
+
+    assertSame(stackTraceCapture.render(exceptions[0]), stackTraceCapture.render(exceptions[1]));
+    assertNull(StackTraceCapture.NONE.render(exceptions[0]));
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import io.opentracing.Span;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.tag.Tags;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class SpanReaperTest {
+
+  private final MockTracer mockTracer = new MockTracer();
+
+  @Test
+  public void reapsSpansPastDeadline() {
+    try (SpanReaper reaper = new SpanReaper(1, TimeUnit.HOURS)) {
+      Span span = reaper.track(mockTracer.buildSpan("GET").start());
+      assertEquals(1, reaper.getSize());
+
+      reaper.reap(System.nanoTime());
+      assertEquals(0, mockTracer.finishedSpans().size());
+      reaper.reap(System.nanoTime() + TimeUnit.HOURS.toNanos(2));
+      assertEquals(0, reaper.getSize());
+
+      // a late response changes nothing
+      Tags.HTTP_STATUS.set(span, 200);
+      span.finish();
+
+      List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+      assertEquals(1, finishedSpans.size());
+      assertEquals(Boolean.TRUE, finishedSpans.get(0).tags().get(Tags.ERROR.getKey()));
+      assertEquals(null, finishedSpans.get(0).tags().get(Tags.HTTP_STATUS.getKey()));
+      assertEquals("No response within 3600000ms",
+          finishedSpans.get(0).logEntries().get(0).fields().get("message"));
+    }
+  }
+
+  @Test
+  public void finishedSpansAreUntracked() {
+    try (SpanReaper reaper = new SpanReaper(1, TimeUnit.HOURS)) {
+      reaper.track(mockTracer.buildSpan("GET").start()).finish();
+      assertEquals(0, reaper.getSize());
+
+      reaper.reap(System.nanoTime() + TimeUnit.HOURS.toNanos(2));
+      List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+      assertEquals(1, finishedSpans.size());
+      assertEquals(null, finishedSpans.get(0).tags().get(Tags.ERROR.getKey()));
+    }
+  }
+
+  @Test
+  public void tracksAtMostMaxSpans() {
+    try (SpanReaper reaper = new SpanReaper(1, TimeUnit.HOURS, 1)) {
+      Span first = mockTracer.buildSpan("GET").start();
+      Span second = mockTracer.buildSpan("GET").start();
+      assertNotSame(first, reaper.track(first));
+      assertSame(second, reaper.track(second));
+      assertEquals(1, reaper.getSize());
+    }
+  }
+
+  @Test
+  public void reapsInBackground() throws Exception {
+    try (SpanReaper reaper = new SpanReaper(20, TimeUnit.MILLISECONDS)) {
+      reaper.track(mockTracer.buildSpan("GET").start());
+      for (int i = 0; i < 100 && mockTracer.finishedSpans().isEmpty(); i++) {
+        Thread.sleep(50);
+      }
+      assertEquals(1, mockTracer.finishedSpans().size());
+    }
+  }
+}
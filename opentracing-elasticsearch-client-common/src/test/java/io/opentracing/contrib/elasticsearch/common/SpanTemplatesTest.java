@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.opentracing.contrib.elasticsearch.common.SpanTemplates.SpanTemplate;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.tag.Tags;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Test;
+
+public class SpanTemplatesTest {
+
+  private static final String SEARCH = "indices:data/read/search";
+  private static final String SCROLL = "indices:data/read/scroll";
+
+  @Test
+  public void namesSpansAfterRequestClass() {
+    MockTracer tracer = new MockTracer();
+    SpanTemplate template = SpanTemplates.defaults().get(SearchRequest.class, SEARCH);
+    MockSpan span = (MockSpan) template.buildSpan(tracer).start();
+    span.finish();
+
+    assertEquals("SearchRequest", span.operationName());
+    Map<String, Object> tags = span.tags();
+    assertEquals(3, tags.size());
+    assertEquals(SEARCH, tags.get(SpanTemplates.ACTION));
+    assertEquals(Tags.SPAN_KIND_CLIENT, tags.get(Tags.SPAN_KIND.getKey()));
+    assertEquals(SpanDecorator.COMPONENT_NAME, tags.get(Tags.COMPONENT.getKey()));
+  }
+
+  @Test
+  public void cachesTemplatesPerRequestClassAndAction() {
+    SpanTemplates templates = SpanTemplates.defaults();
+    SpanTemplate search = templates.get(SearchRequest.class, SEARCH);
+    assertSame(search, templates.get(SearchRequest.class, SEARCH));
+    assertNotSame(search, templates.get(SearchRequest.class, SCROLL));
+    assertNotSame(search, templates.get(Object.class, SEARCH));
+    assertEquals("Object", templates.get(Object.class, SEARCH).getOperationName());
+  }
+
+  @Test
+  public void overridesOperationNames() {
+    SpanTemplates defaults = SpanTemplates.defaults();
+    SpanTemplates templates = defaults.withOperationName(SEARCH, "search");
+
+    assertEquals("search", templates.get(SearchRequest.class, SEARCH).getOperationName());
+    assertEquals("SearchRequest", templates.get(SearchRequest.class, SCROLL).getOperationName());
+    // the original templates are unchanged
+    assertEquals("SearchRequest", defaults.get(SearchRequest.class, SEARCH).getOperationName());
+    assertTrue(defaults.getOperationNames().isEmpty());
+
+    SpanTemplates fromMap = new SpanTemplates(Collections.singletonMap(SCROLL, "scroll"));
+    assertEquals("scroll", fromMap.get(SearchRequest.class, SCROLL).getOperationName());
+  }
+
+  private static class SearchRequest {
+
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.junit.Test;
+
+public class TailCaptureTest {
+
+  private static final HttpRequest SEARCH = new BasicHttpRequest("GET", "/twitter/_search");
+
+  private static String capture(TailCapture tailCapture, long elapsedNanos, boolean error) {
+    TailCapture.Capture capture = tailCapture.capture(SEARCH, elapsedNanos, error);
+    return (capture != null) ? capture.reason : null;
+  }
+
+  @Test
+  public void fixedThreshold() {
+    TailCapture tailCapture = new TailCapture.Builder()
+        .withThreshold(10, TimeUnit.MILLISECONDS)
+        .build();
+
+    assertNull(capture(tailCapture, TimeUnit.MILLISECONDS.toNanos(5), false));
+    assertEquals(TailCapture.SLOW, capture(tailCapture, TimeUnit.MILLISECONDS.toNanos(20), false));
+    assertEquals(TailCapture.ERROR, capture(tailCapture, 1, true));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(10), tailCapture.getThresholdNanos("any"));
+  }
+
+  @Test
+  public void onlyErrorsBeforeFirstWindow() {
+    TailCapture tailCapture = new TailCapture.Builder()
+        .withPercentile(99, 10)
+        .build();
+
+    assertNull(capture(tailCapture, TimeUnit.SECONDS.toNanos(10), false));
+    assertEquals(TailCapture.ERROR, capture(tailCapture, 1, true));
+    assertEquals(-1, tailCapture.getThresholdNanos("GET /twitter/_search"));
+  }
+
+  @Test
+  public void percentileThresholdPerEndpoint() {
+    TailCapture tailCapture = new TailCapture.Builder()
+        .withPercentile(50, 10)
+        .withEndpointProvider(request -> "search")
+        .build();
+    for (int i = 1; i <= 10; i++) {
+      capture(tailCapture, TimeUnit.MILLISECONDS.toNanos(i), false);
+    }
+
+    final long threshold = tailCapture.getThresholdNanos("search");
+    assertTrue(threshold >= TimeUnit.MILLISECONDS.toNanos(4));
+    assertTrue(threshold <= TimeUnit.MILLISECONDS.toNanos(6));
+    assertNull(capture(tailCapture, TimeUnit.MILLISECONDS.toNanos(1), false));
+    assertEquals(TailCapture.SLOW, capture(tailCapture, TimeUnit.MILLISECONDS.toNanos(9), false));
+    assertEquals(-1, tailCapture.getThresholdNanos("bulk"));
+  }
+
+  @Test
+  public void minThreshold() {
+    TailCapture tailCapture = new TailCapture.Builder()
+        .withPercentile(99, 1)
+        .withMinThreshold(1, TimeUnit.SECONDS)
+        .withEndpointProvider(request -> "search")
+        .build();
+    capture(tailCapture, 1_000, false);
+
+    assertEquals(TimeUnit.SECONDS.toNanos(1), tailCapture.getThresholdNanos("search"));
+  }
+
+  @Test
+  public void isError() {
+    assertFalse(TailCapture.isError(200));
+    assertFalse(TailCapture.isError(404));
+    assertTrue(TailCapture.isError(409));
+    assertTrue(TailCapture.isError(503));
+  }
+}
@@ -0,0 +1,653 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.opentracing.Scope;
+import io.opentracing.SpanContext;
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.propagation.Format;
+import io.opentracing.propagation.TextMap;
+import io.opentracing.tag.Tags;
+import io.opentracing.util.ThreadLocalScopeManager;
+import java.lang.reflect.Field;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.client.HttpAsyncResponseConsumerFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TracingHttpClientConfigCallbackTest {
+
+  private final AtomicInteger extractions = new AtomicInteger();
+  private final List<String> extractedHeaders = new ArrayList<>();
+  private final MockTracer mockTracer = new MockTracer(new ThreadLocalScopeManager(),
+      MockTracer.Propagator.TEXT_MAP) {
+    @Override
+    public <C> SpanContext extract(Format<C> format, C carrier) {
+      extractions.incrementAndGet();
+      if (carrier instanceof TextMap) {
+        for (Map.Entry<String, String> header : (TextMap) carrier) {
+          extractedHeaders.add(header.getKey());
+        }
+      }
+      return super.extract(format, carrier);
+    }
+  };
+
+  @Before
+  public void before() {
+    mockTracer.reset();
+    extractions.set(0);
+    extractedHeaders.clear();
+  }
+
+  /**
+   * Runs a request through the interceptors the callback installs, without any network
+   */
+  static HttpContext execute(TracingHttpClientConfigCallback callback, HttpRequest request,
+      HttpResponse response) throws Exception {
+    return execute(callback, request, response, new BasicHttpContext());
+  }
+
+  static HttpContext execute(TracingHttpClientConfigCallback callback, HttpRequest request,
+      HttpResponse response, HttpContext context) throws Exception {
+    // the interceptors are added to the given builder, the returned one wraps the client
+    HttpAsyncClientBuilder builder = HttpAsyncClientBuilder.create();
+    callback.customizeHttpClient(builder);
+    for (HttpRequestInterceptor interceptor : TracingHttpClientConfigCallbackTest
+        .<HttpRequestInterceptor>interceptors(builder, "requestLast")) {
+      interceptor.process(request, context);
+    }
+    if (response != null) {
+      for (HttpResponseInterceptor interceptor : TracingHttpClientConfigCallbackTest
+          .<HttpResponseInterceptor>interceptors(builder, "responseFirst")) {
+        interceptor.process(response, context);
+      }
+    }
+    return context;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> List<T> interceptors(HttpAsyncClientBuilder builder, String fieldName)
+      throws Exception {
+    Field field = HttpAsyncClientBuilder.class.getDeclaredField(fieldName);
+    field.setAccessible(true);
+    return (List<T>) field.get(builder);
+  }
+
+  static HttpResponse ok() {
+    return new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+  }
+
+  @Test
+  public void extractsWithoutPropagationHeaders() throws Exception {
+    execute(new TracingHttpClientConfigCallback(mockTracer),
+        new BasicHttpRequest("GET", "/_cluster/health"), ok());
+
+    assertEquals(1, extractions.get());
+    assertEquals(1, mockTracer.finishedSpans().size());
+  }
+
+  @Test
+  public void skipsExtractWithoutPropagationHeaders() throws Exception {
+    execute(new TracingHttpClientConfigCallback.Builder(mockTracer)
+            .withPropagationHeaders(PropagationHeaders.KNOWN)
+            .build(),
+        new BasicHttpRequest("GET", "/_cluster/health"), ok());
+
+    assertEquals(0, extractions.get());
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(1, finishedSpans.size());
+    assertEquals(0, finishedSpans.get(0).parentId());
+  }
+
+  @Test
+  public void extractsWithPropagationHeaders() throws Exception {
+    HttpRequest request = new BasicHttpRequest("GET", "/_cluster/health");
+    request.addHeader("Accept", "application/json");
+    request.addHeader("traceid", "7");
+    request.addHeader("spanid", "8");
+
+    execute(new TracingHttpClientConfigCallback.Builder(mockTracer)
+            .withPropagationHeaders(PropagationHeaders.fromTracer(mockTracer))
+            .build(),
+        request, ok());
+
+    assertEquals(1, extractions.get());
+    // only the propagation headers are passed to the tracer
+    assertEquals(Arrays.asList("traceid", "spanid"), extractedHeaders);
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(1, finishedSpans.size());
+    assertEquals(7, finishedSpans.get(0).context().traceId());
+    assertEquals(8, finishedSpans.get(0).parentId());
+  }
+
+  @Test
+  public void setsOpaqueId() throws Exception {
+    HttpRequest request = new BasicHttpRequest("GET", "/_search");
+    execute(new TracingHttpClientConfigCallback.Builder(mockTracer)
+            .withOpaqueId(OpaqueIdFormat.TRACE_ID_SPAN_ID)
+            .build(),
+        request, ok());
+
+    MockSpan span = mockTracer.finishedSpans().get(0);
+    assertEquals(span.context().toTraceId() + "-" + span.context().toSpanId(),
+        request.getFirstHeader(OpaqueIdFormat.HEADER).getValue());
+  }
+
+  @Test
+  public void keepsOpaqueIdOfCaller() throws Exception {
+    HttpRequest request = new BasicHttpRequest("GET", "/_search");
+    request.addHeader("x-opaque-id", "caller");
+    execute(new TracingHttpClientConfigCallback.Builder(mockTracer)
+            .withOpaqueId(OpaqueIdFormat.TRACE_ID_SPAN_ID)
+            .build(),
+        request, ok());
+
+    assertEquals(1, request.getHeaders(OpaqueIdFormat.HEADER).length);
+    assertEquals("caller", request.getFirstHeader(OpaqueIdFormat.HEADER).getValue());
+  }
+
+  @Test
+  public void propagationHeadersFromTracer() {
+    PropagationHeaders propagationHeaders = PropagationHeaders.fromTracer(mockTracer);
+    assertTrue(propagationHeaders.getNames().contains("traceid"));
+    assertTrue(propagationHeaders.getNames().contains("uber-trace-id"));
+
+    HttpRequest request = new BasicHttpRequest("GET", "/_cluster/health");
+    request.addHeader("uberctx-user", "kimchy");
+    assertTrue(propagationHeaders.isPresent(request));
+    assertEquals(0, mockTracer.finishedSpans().size());
+  }
+
+  @Test
+  public void unsampledRequestPropagatesActiveSpan() throws Exception {
+    TracingHttpClientConfigCallback callback = new TracingHttpClientConfigCallback.Builder(
+        mockTracer)
+        .withSampler(request -> false)
+        .build();
+    MockSpan parent = mockTracer.buildSpan("parent").start();
+    HttpRequest request = new BasicHttpRequest("GET", "/_cluster/health");
+
+    try (Scope ignored = mockTracer.activateSpan(parent)) {
+      execute(callback, request, ok());
+    }
+
+    assertEquals(0, mockTracer.finishedSpans().size());
+    assertEquals(String.valueOf(parent.context().traceId()),
+        request.getFirstHeader("traceid").getValue());
+    assertEquals(String.valueOf(parent.context().spanId()),
+        request.getFirstHeader("spanid").getValue());
+  }
+
+  @Test
+  public void unsampledRequestKeepsContextWithoutExtracting() throws Exception {
+    TracingHttpClientConfigCallback callback = new TracingHttpClientConfigCallback.Builder(
+        mockTracer)
+        .withSampler(request -> false)
+        .build();
+    MockSpan parent = mockTracer.buildSpan("parent").start();
+    HttpRequest request = new BasicHttpRequest("GET", "/_cluster/health");
+    request.addHeader("traceid", "7");
+    request.addHeader("spanid", "8");
+
+    try (Scope ignored = mockTracer.activateSpan(parent)) {
+      execute(callback, request, ok());
+    }
+
+    assertEquals(0, extractions.get());
+    assertEquals(1, request.getHeaders("traceid").length);
+    assertEquals("7", request.getFirstHeader("traceid").getValue());
+    assertEquals("8", request.getFirstHeader("spanid").getValue());
+  }
+
+  @Test
+  public void unsampledRequestWithoutParent() throws Exception {
+    HttpRequest request = new BasicHttpRequest("GET", "/_cluster/health");
+
+    execute(new TracingHttpClientConfigCallback.Builder(mockTracer)
+        .withSampler(new ProbabilisticSampler(0))
+        .build(), request, ok());
+
+    assertEquals(0, mockTracer.finishedSpans().size());
+    assertNull(request.getFirstHeader("traceid"));
+  }
+
+  @Test
+  public void capturesSlowRequest() throws Exception {
+    TracingHttpClientConfigCallback callback = new TracingHttpClientConfigCallback.Builder(
+        mockTracer)
+        .withTailCapture(new TailCapture.Builder().withThreshold(0, TimeUnit.MILLISECONDS).build())
+        .build();
+    MockSpan parent = mockTracer.buildSpan("parent").start();
+    HttpRequest request = new BasicHttpRequest("GET", "/_cluster/health");
+
+    try (Scope ignored = mockTracer.activateSpan(parent)) {
+      execute(callback, request, ok());
+    }
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(1, finishedSpans.size());
+    MockSpan span = finishedSpans.get(0);
+    assertEquals(TailCapture.SLOW, span.tags().get(TailCapture.CAPTURE_REASON));
+    assertEquals(0L, span.tags().get(TailCapture.CAPTURE_THRESHOLD_MS));
+    assertEquals(200, span.tags().get(Tags.HTTP_STATUS.getKey()));
+    assertEquals(parent.context().spanId(), span.parentId());
+    assertTrue(span.startMicros() <= span.finishMicros());
+  }
+
+  @Test
+  public void capturesOnlyFailedOrSlowRequests() throws Exception {
+    TracingHttpClientConfigCallback callback = new TracingHttpClientConfigCallback.Builder(
+        mockTracer)
+        .withTailCapture(new TailCapture.Builder().withThreshold(1, TimeUnit.HOURS).build())
+        .build();
+
+    execute(callback, new BasicHttpRequest("GET", "/_cluster/health"), ok());
+    assertEquals(0, mockTracer.finishedSpans().size());
+
+    execute(callback, new BasicHttpRequest("GET", "/_cluster/health"),
+        new BasicHttpResponse(HttpVersion.HTTP_1_1, 503, "Service Unavailable"));
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(1, finishedSpans.size());
+    MockSpan span = finishedSpans.get(0);
+    assertEquals(TailCapture.ERROR, span.tags().get(TailCapture.CAPTURE_REASON));
+    assertEquals(Boolean.TRUE, span.tags().get(Tags.ERROR.getKey()));
+    assertEquals(0, span.parentId());
+  }
+
+  @Test
+  public void tailCaptureKeepsSampledRequests() throws Exception {
+    TracingHttpClientConfigCallback callback = new TracingHttpClientConfigCallback.Builder(
+        mockTracer)
+        .withSampler(request -> true)
+        .withTailCapture(new TailCapture.Builder().withThreshold(1, TimeUnit.HOURS).build())
+        .build();
+
+    execute(callback, new BasicHttpRequest("GET", "/_cluster/health"), ok());
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(1, finishedSpans.size());
+    assertNull(finishedSpans.get(0).tags().get(TailCapture.CAPTURE_REASON));
+  }
+
+  @Test
+  public void recordsBodySizes() throws Exception {
+    Histogram requestSizes = new Histogram();
+    Histogram responseSizes = new Histogram();
+    TracingHttpClientConfigCallback callback = new TracingHttpClientConfigCallback.Builder(
+        mockTracer)
+        .withBodySizeHistograms(requestSizes, responseSizes)
+        .withChunkedBodySizes(true)
+        .build();
+
+    BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("PUT",
+        "/twitter/tweet/1");
+    request.setEntity(new StringEntity("{\"user\":\"kimchy\"}"));
+    HttpResponse response = ok();
+    response.addHeader("Content-Length", "80");
+    execute(callback, request, response);
+
+    // chunked response, counted while it is consumed
+    response = chunked();
+    execute(callback, new BasicHttpRequest("GET", "/_search"), response);
+    assertEquals(1, mockTracer.finishedSpans().size());
+    consumeChunked(response, 128);
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(2, finishedSpans.size());
+    assertEquals(17L, finishedSpans.get(0).tags().get(SpanDecorator.REQUEST_CONTENT_LENGTH));
+    assertEquals(80L, finishedSpans.get(0).tags().get(SpanDecorator.RESPONSE_CONTENT_LENGTH));
+    assertEquals(0L, finishedSpans.get(1).tags().get(SpanDecorator.REQUEST_CONTENT_LENGTH));
+    assertEquals(128L, finishedSpans.get(1).tags().get(SpanDecorator.RESPONSE_CONTENT_LENGTH));
+    assertFalse(finishedSpans.get(1).tags()
+        .containsKey(TracingResponseConsumerFactory.BODY_TRANSFER_MS));
+
+    assertEquals(2, requestSizes.getCount());
+    assertEquals(17, requestSizes.getMax());
+    assertEquals(2, responseSizes.getCount());
+    assertEquals(128, responseSizes.getMax());
+  }
+
+  @Test
+  public void recordsChunkedBodySizesOfUnsampledRequests() throws Exception {
+    Histogram responseSizes = new Histogram();
+    TracingHttpClientConfigCallback callback = new TracingHttpClientConfigCallback.Builder(
+        mockTracer)
+        .withSampler(request -> false)
+        .withBodySizeHistograms(null, responseSizes)
+        .withChunkedBodySizes(true)
+        .build();
+
+    HttpResponse response = chunked();
+    execute(callback, new BasicHttpRequest("GET", "/_search"), response);
+    consumeChunked(response, 96);
+
+    assertEquals(0, mockTracer.finishedSpans().size());
+    assertEquals(1, responseSizes.getCount());
+    assertEquals(96, responseSizes.getMax());
+  }
+
+  @Test
+  public void chunkedResponsesAreNotCountedByDefault() throws Exception {
+    HttpResponse response = chunked();
+    execute(new TracingHttpClientConfigCallback(mockTracer),
+        new BasicHttpRequest("GET", "/_search"), response);
+
+    assertFalse(response.getEntity() instanceof TracingResponseConsumerFactory.DeferredSpanEntity);
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(1, finishedSpans.size());
+    assertFalse(finishedSpans.get(0).tags().containsKey(SpanDecorator.RESPONSE_CONTENT_LENGTH));
+  }
+
+  private static HttpResponse chunked() {
+    BasicHttpEntity entity = new BasicHttpEntity();
+    entity.setChunked(true);
+    HttpResponse response = ok();
+    response.setEntity(entity);
+    return response;
+  }
+
+  /**
+   * Consumes the response as the client built with the callback does
+   */
+  private static void consumeChunked(HttpResponse response, int size) throws Exception {
+    HttpAsyncResponseConsumer<HttpResponse> consumer = TracingResponseConsumerFactory
+        .wrap(HttpAsyncResponseConsumerFactory.DEFAULT.createHttpAsyncResponseConsumer());
+    consumer.responseReceived(response);
+    consumer.consumeContent(new TracingResponseConsumerFactoryTest.BytesDecoder(new byte[size],
+        size), null);
+    consumer.responseCompleted(new BasicHttpContext());
+  }
+
+  @Test
+  public void recordsLatencyOfEveryRequest() throws Exception {
+    LatencyMetrics metrics = new LatencyMetrics();
+    TracingHttpClientConfigCallback callback = new TracingHttpClientConfigCallback.Builder(
+        mockTracer)
+        .withSampler(new ProbabilisticSampler(0))
+        .withMetrics(metrics)
+        .build();
+
+    execute(callback, new BasicHttpRequest("GET", "/twitter/_search"), ok());
+    execute(callback, new BasicHttpRequest("GET", "/logs-2019.12.01/_search"), ok());
+    execute(callback, new BasicHttpRequest("GET", "/twitter/_doc/1"), ok());
+    execute(callback, new BasicHttpRequest("GET", "/twitter/_doc/abc"), ok());
+
+    assertEquals(0, mockTracer.finishedSpans().size());
+    Map<String, HistogramSnapshot> snapshots = metrics.snapshot();
+    assertEquals(2, snapshots.size());
+    assertEquals(2, snapshots.get("GET /?/_search").getCount());
+    assertEquals(2, snapshots.get("GET /?/_doc/?").getCount());
+  }
+
+  @Test
+  public void recordsNodeStatsOfEveryRequest() throws Exception {
+    NodeStats nodeStats = new NodeStats();
+    TracingHttpClientConfigCallback callback = new TracingHttpClientConfigCallback.Builder(
+        mockTracer)
+        .withSampler(new ProbabilisticSampler(0))
+        .withNodeStats(nodeStats)
+        .build();
+    HttpHost node1 = new HttpHost("node1", 9200, "http");
+    HttpHost node2 = new HttpHost("node2", 9200, "http");
+
+    HttpContext context = new BasicHttpContext();
+    context.setAttribute(HttpClientContext.HTTP_TARGET_HOST, node1);
+    execute(callback, new BasicHttpRequest("GET", "/twitter/_search"), ok(), context);
+    context = new BasicHttpContext();
+    context.setAttribute(HttpClientContext.HTTP_TARGET_HOST, node2);
+    execute(callback, new BasicHttpRequest("GET", "/twitter/_search"),
+        new BasicHttpResponse(HttpVersion.HTTP_1_1, 503, "Service Unavailable"), context);
+
+    assertEquals(0, mockTracer.finishedSpans().size());
+    assertEquals(0, nodeStats.getErrorRate(node1), 0);
+    assertTrue(nodeStats.getLatencyNanos(node1) >= 0);
+    assertEquals(1, nodeStats.getErrorRate(node2), 0);
+  }
+
+  @Test
+  public void finishesSpanOfFailedRequest() throws Exception {
+    final int port;
+    try (ServerSocket serverSocket = new ServerSocket(0)) {
+      port = serverSocket.getLocalPort();
+    }
+    NodeStats nodeStats = new NodeStats();
+    TracingHttpClientConfigCallback callback = new TracingHttpClientConfigCallback.Builder(
+        mockTracer)
+        .withNodeStats(nodeStats)
+        .build();
+    HttpHost node = new HttpHost("localhost", port, "http");
+
+    final CountDownLatch failed = new CountDownLatch(1);
+    try (CloseableHttpAsyncClient client = callback
+        .customizeHttpClient(HttpAsyncClientBuilder.create()).build()) {
+      client.start();
+      client.execute(node, new HttpGet("/_cluster/health"), new FutureCallback<HttpResponse>() {
+        @Override
+        public void completed(HttpResponse result) {
+        }
+
+        @Override
+        public void failed(Exception ex) {
+          failed.countDown();
+        }
+
+        @Override
+        public void cancelled() {
+        }
+      });
+      assertTrue(failed.await(10, TimeUnit.SECONDS));
+    }
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(1, finishedSpans.size());
+    MockSpan span = finishedSpans.get(0);
+    assertEquals(Boolean.TRUE, span.tags().get(Tags.ERROR.getKey()));
+    assertEquals(ConnectException.class.getName(),
+        span.logEntries().get(0).fields().get("error.kind"));
+    assertEquals(1, nodeStats.getErrorRate(node), 0);
+  }
+
+  @Test
+  public void finishesSpanOfCancelledRequest() throws Exception {
+    TracingHttpClientConfigCallback callback = new TracingHttpClientConfigCallback.Builder(
+        mockTracer)
+        .withFailureSpans(true)
+        .build();
+
+    // accepts the connection, but never responds
+    try (ServerSocket serverSocket = new ServerSocket(0);
+        CloseableHttpAsyncClient client = callback
+            .customizeHttpClient(HttpAsyncClientBuilder.create()).build()) {
+      client.start();
+      Future<HttpResponse> future = client.execute(
+          new HttpHost("localhost", serverSocket.getLocalPort(), "http"),
+          new HttpGet("/_cluster/health"), null);
+      future.cancel(true);
+    }
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(1, finishedSpans.size());
+    assertEquals(CancellationException.class.getName(),
+        finishedSpans.get(0).logEntries().get(0).fields().get("error.kind"));
+  }
+
+  @Test
+  public void wrapsClientOfBuilderSubclass() throws Exception {
+    TracingHttpClientConfigCallback callback = new TracingHttpClientConfigCallback.Builder(
+        mockTracer)
+        .withFailureSpans(true)
+        .build();
+    final AtomicInteger builds = new AtomicInteger();
+    HttpAsyncClientBuilder builder = new HttpAsyncClientBuilder() {
+      @Override
+      public CloseableHttpAsyncClient build() {
+        builds.incrementAndGet();
+        return super.build();
+      }
+    };
+
+    try (ServerSocket serverSocket = new ServerSocket(0);
+        CloseableHttpAsyncClient client = callback.customizeHttpClient(builder).build()) {
+      client.start();
+      client.execute(new HttpHost("localhost", serverSocket.getLocalPort(), "http"),
+          new HttpGet("/_cluster/health"), null).cancel(true);
+    }
+
+    assertEquals(1, builds.get());
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(1, finishedSpans.size());
+    assertEquals(CancellationException.class.getName(),
+        finishedSpans.get(0).logEntries().get(0).fields().get("error.kind"));
+  }
+
+  @Test
+  public void returnsGivenBuilderByDefault() {
+    HttpAsyncClientBuilder builder = HttpAsyncClientBuilder.create();
+    assertSame(builder,
+        new TracingHttpClientConfigCallback(mockTracer).customizeHttpClient(builder));
+  }
+
+  @Test
+  public void wrappingBuilderRejectsSettings() {
+    TracingHttpClientConfigCallback callback = new TracingHttpClientConfigCallback.Builder(
+        mockTracer)
+        .withFailureSpans(true)
+        .build();
+    HttpAsyncClientBuilder builder = callback.customizeHttpClient(HttpAsyncClientBuilder.create());
+    assertNotSame(HttpAsyncClientBuilder.class, builder.getClass());
+
+    builder.setMaxConnTotal(5);
+    try {
+      builder.build();
+      fail();
+    } catch (IllegalStateException expected) {
+      assertTrue(expected.getMessage().contains("maxConnTotal"));
+    }
+  }
+
+  @Test
+  public void retriesAreChildrenOfLogicalRequest() throws Exception {
+    TracingHttpClientConfigCallback callback = new TracingHttpClientConfigCallback.Builder(
+        mockTracer)
+        .withRetrySpans(true)
+        .build();
+    HttpRequest request = new BasicHttpRequest("GET", "/twitter/_search");
+
+    // no response (e.g. connection refused), 503 and 200 from the third node
+    execute(callback, HttpRequestWrapper.wrap(request), null);
+    execute(callback, HttpRequestWrapper.wrap(request),
+        new BasicHttpResponse(HttpVersion.HTTP_1_1, 503, "Service Unavailable"));
+    execute(callback, HttpRequestWrapper.wrap(request), ok());
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(4, finishedSpans.size());
+    MockSpan logical = finishedSpans.get(3);
+    assertEquals(3, logical.tags().get(LogicalRequestTracker.RETRY_ATTEMPTS));
+    assertTrue(logical.tags().containsKey(LogicalRequestTracker.RETRY_FAILED_MS));
+    assertTrue(logical.tags().containsKey(LogicalRequestTracker.RETRY_SUCCESSFUL_MS));
+    assertNull(logical.tags().get(Tags.ERROR.getKey()));
+
+    for (int attempt = 1; attempt <= 3; attempt++) {
+      MockSpan span = finishedSpans.get(attempt - 1);
+      assertEquals(logical.context().spanId(), span.parentId());
+      assertEquals(attempt, span.tags().get(LogicalRequestTracker.RETRY_ATTEMPT));
+      assertEquals(attempt < 3 ? Boolean.TRUE : null, span.tags().get(Tags.ERROR.getKey()));
+    }
+    assertEquals("no response", finishedSpans.get(0).logEntries().get(0).fields().get("message"));
+    assertEquals("HTTP 503", finishedSpans.get(1).logEntries().get(0).fields().get("message"));
+  }
+
+  @Test
+  public void failedLogicalRequestEndsWithoutFurtherRequests() throws Exception {
+    TracingHttpClientConfigCallback callback = new TracingHttpClientConfigCallback.Builder(
+        mockTracer)
+        .withRetrySpans(true)
+        .build();
+
+    execute(callback, HttpRequestWrapper.wrap(new BasicHttpRequest("GET", "/twitter/_search")),
+        new BasicHttpResponse(HttpVersion.HTTP_1_1, 503, "Service Unavailable"));
+    final long attemptFinishMicros = mockTracer.finishedSpans().get(0).finishMicros();
+
+    // no other request comes in, the logical request ends once the retry window ran out
+    for (int i = 0; i < 500 && mockTracer.finishedSpans().size() < 2; i++) {
+      Thread.sleep(10);
+    }
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(2, finishedSpans.size());
+    MockSpan logical = finishedSpans.get(1);
+    assertEquals(Boolean.TRUE, logical.tags().get(Tags.ERROR.getKey()));
+    assertEquals(1, logical.tags().get(LogicalRequestTracker.RETRY_ATTEMPTS));
+    // finished when the attempt ended, not when the retry window ran out
+    assertTrue(logical.finishMicros() - attemptFinishMicros
+        < TimeUnit.NANOSECONDS.toMicros(LogicalRequestTracker.RETRY_WINDOW_NANOS) / 2);
+  }
+
+  @Test
+  public void separateRequestsAreSeparateLogicalRequests() throws Exception {
+    TracingHttpClientConfigCallback callback = new TracingHttpClientConfigCallback.Builder(
+        mockTracer)
+        .withRetrySpans(true)
+        .build();
+
+    execute(callback, HttpRequestWrapper.wrap(new BasicHttpRequest("GET", "/_search")), ok());
+    execute(callback, HttpRequestWrapper.wrap(new BasicHttpRequest("GET", "/_search")), ok());
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(4, finishedSpans.size());
+    assertEquals(1, finishedSpans.get(1).tags().get(LogicalRequestTracker.RETRY_ATTEMPTS));
+    assertEquals(1, finishedSpans.get(3).tags().get(LogicalRequestTracker.RETRY_ATTEMPTS));
+    assertTrue(finishedSpans.get(1).context().traceId()
+        != finishedSpans.get(3).context().traceId());
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.opentracing.mock.MockSpan;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.tag.Tags;
+import io.opentracing.util.ThreadLocalScopeManager;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.client.HttpAsyncResponseConsumerFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TracingResponseConsumerFactoryTest {
+
+  private static final MockTracer mockTracer = new MockTracer(new ThreadLocalScopeManager(),
+      MockTracer.Propagator.TEXT_MAP);
+
+  private final TracingResponseConsumerFactory factory = new TracingResponseConsumerFactory();
+
+  @Before
+  public void before() {
+    mockTracer.reset();
+  }
+
+  private static HttpResponse withBody() {
+    BasicHttpEntity entity = new BasicHttpEntity();
+    entity.setChunked(true);
+    HttpResponse response = TracingHttpClientConfigCallbackTest.ok();
+    response.setEntity(entity);
+    return response;
+  }
+
+  private static TracingHttpClientConfigCallback callback(boolean retrySpans) {
+    return new TracingHttpClientConfigCallback.Builder(mockTracer)
+        .withBodyTransferSpans(true)
+        .withRetrySpans(retrySpans)
+        .build();
+  }
+
+  @Test
+  public void finishesWhenBodyIsConsumed() throws Exception {
+    HttpResponse response = withBody();
+    TracingHttpClientConfigCallbackTest.execute(callback(false),
+        new BasicHttpRequest("GET", "/twitter/_search"), response);
+    assertEquals(0, mockTracer.finishedSpans().size());
+
+    HttpAsyncResponseConsumer<HttpResponse> consumer = factory.createHttpAsyncResponseConsumer();
+    consumer.responseReceived(response);
+    assertFalse(response.getEntity() instanceof TracingResponseConsumerFactory.DeferredSpanEntity);
+    consumer.consumeContent(new BytesDecoder(new byte[64], 64), null);
+    assertEquals(0, mockTracer.finishedSpans().size());
+    consumer.responseCompleted(new BasicHttpContext());
+    consumer.close();
+    assertNotNull(consumer.getResult());
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(1, finishedSpans.size());
+    MockSpan span = finishedSpans.get(0);
+    assertEquals(200, span.tags().get(Tags.HTTP_STATUS.getKey()));
+    assertTrue(span.tags().containsKey(TracingResponseConsumerFactory.BODY_TRANSFER_MS));
+    assertEquals(64L, span.tags().get(SpanDecorator.RESPONSE_CONTENT_LENGTH));
+    assertFalse(span.tags().containsKey(Tags.ERROR.getKey()));
+    assertEquals(TracingResponseConsumerFactory.TIME_TO_FIRST_BYTE,
+        span.logEntries().get(0).fields().get("event"));
+  }
+
+  @Test
+  public void callbackWrapsConsumersOfOtherFactories() throws Exception {
+    HttpResponse response = withBody();
+    TracingHttpClientConfigCallbackTest.execute(callback(false),
+        new BasicHttpRequest("GET", "/twitter/_search"), response);
+
+    // as the client built with the callback does for every request
+    HttpAsyncResponseConsumer<HttpResponse> consumer = TracingResponseConsumerFactory
+        .wrap(HttpAsyncResponseConsumerFactory.DEFAULT.createHttpAsyncResponseConsumer());
+    consumer.responseReceived(response);
+    consumer.responseCompleted(new BasicHttpContext());
+    consumer.close();
+
+    assertFalse(consumer.getResult().getEntity()
+        instanceof TracingResponseConsumerFactory.DeferredSpanEntity);
+    assertEquals(1, mockTracer.finishedSpans().size());
+    HttpAsyncResponseConsumer<HttpResponse> wrapped = factory.createHttpAsyncResponseConsumer();
+    assertSame(wrapped, TracingResponseConsumerFactory.wrap(wrapped));
+  }
+
+  @Test
+  public void failedBodyFinishesWithError() throws Exception {
+    HttpResponse response = withBody();
+    TracingHttpClientConfigCallbackTest.execute(callback(false),
+        new BasicHttpRequest("GET", "/twitter/_search"), response);
+
+    HttpAsyncResponseConsumer<HttpResponse> consumer = factory.createHttpAsyncResponseConsumer();
+    consumer.responseReceived(response);
+    consumer.failed(new IOException("Connection reset"));
+    consumer.close();
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(1, finishedSpans.size());
+    assertEquals(Boolean.TRUE, finishedSpans.get(0).tags().get(Tags.ERROR.getKey()));
+  }
+
+  @Test
+  public void responsesWithoutBodyFinishImmediately() throws Exception {
+    TracingHttpClientConfigCallbackTest.execute(callback(false),
+        new BasicHttpRequest("HEAD", "/twitter"), TracingHttpClientConfigCallbackTest.ok());
+
+    assertEquals(1, mockTracer.finishedSpans().size());
+  }
+
+  @Test
+  public void logicalRequestFinishesAfterBody() throws Exception {
+    HttpRequest request = new BasicHttpRequest("GET", "/twitter/_search");
+    HttpResponse response = withBody();
+    TracingHttpClientConfigCallbackTest.execute(callback(true), request, response);
+    assertEquals(0, mockTracer.finishedSpans().size());
+
+    HttpAsyncResponseConsumer<HttpResponse> consumer = factory.createHttpAsyncResponseConsumer();
+    consumer.responseReceived(response);
+    consumer.responseCompleted(new BasicHttpContext());
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(2, finishedSpans.size());
+    assertEquals(finishedSpans.get(1).context().spanId(), finishedSpans.get(0).parentId());
+    assertEquals(1, finishedSpans.get(1).tags().get(LogicalRequestTracker.RETRY_ATTEMPTS));
+  }
+
+  @Test
+  public void scansJsonBody() throws Exception {
+    byte[] body = ResponseBodyScannerTest.SEARCH.getBytes(StandardCharsets.UTF_8);
+    BasicHttpEntity entity = new BasicHttpEntity();
+    entity.setContentType("application/json; charset=UTF-8");
+    entity.setContentLength(body.length);
+    HttpResponse response = TracingHttpClientConfigCallbackTest.ok();
+    response.setEntity(entity);
+    TracingHttpClientConfigCallbackTest.execute(callback(false),
+        new BasicHttpRequest("GET", "/twitter/_search"), response);
+
+    HttpAsyncResponseConsumer<HttpResponse> consumer = new TracingResponseConsumerFactory(
+        HttpAsyncResponseConsumerFactory.DEFAULT, TracingResponseConsumerFactory.DEFAULT_SCAN_BYTES)
+        .createHttpAsyncResponseConsumer();
+    consumer.responseReceived(response);
+    consumer.consumeContent(new BytesDecoder(body, 10), null);
+    consumer.responseCompleted(new BasicHttpContext());
+
+    // the caller still gets the whole body
+    assertEquals(ResponseBodyScannerTest.SEARCH,
+        EntityUtils.toString(consumer.getResult().getEntity()));
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(1, finishedSpans.size());
+    Map<String, Object> tags = finishedSpans.get(0).tags();
+    assertEquals(12L, tags.get(SpanDecorator.TOOK_MS));
+    assertEquals(false, tags.get(TracingResponseConsumerFactory.TIMED_OUT));
+    assertEquals(1, tags.get(TracingResponseConsumerFactory.SHARDS_FAILED));
+    assertFalse(tags.containsKey(TracingResponseConsumerFactory.BULK_ERRORS));
+    assertTrue((Long) tags.get(SpanDecorator.CLIENT_OVERHEAD_MS) >= 0);
+  }
+
+  @Test
+  public void doesNotScanByDefault() throws Exception {
+    byte[] body = ResponseBodyScannerTest.BULK.getBytes(StandardCharsets.UTF_8);
+    BasicHttpEntity entity = new BasicHttpEntity();
+    entity.setContentType("application/json");
+    entity.setContentLength(body.length);
+    HttpResponse response = TracingHttpClientConfigCallbackTest.ok();
+    response.setEntity(entity);
+    TracingHttpClientConfigCallbackTest.execute(callback(false),
+        new BasicHttpRequest("POST", "/_bulk"), response);
+
+    HttpAsyncResponseConsumer<HttpResponse> consumer = factory.createHttpAsyncResponseConsumer();
+    consumer.responseReceived(response);
+    consumer.consumeContent(new BytesDecoder(body, body.length), null);
+    consumer.responseCompleted(new BasicHttpContext());
+
+    Map<String, Object> tags = mockTracer.finishedSpans().get(0).tags();
+    assertFalse(tags.containsKey(SpanDecorator.TOOK_MS));
+    assertFalse(tags.containsKey(TracingResponseConsumerFactory.BULK_ERRORS));
+  }
+
+  /**
+   * Decodes the given bytes, at most maxRead per read
+   */
+  static class BytesDecoder implements ContentDecoder {
+
+    private final ByteBuffer bytes;
+    private final int maxRead;
+
+    BytesDecoder(byte[] bytes, int maxRead) {
+      this.bytes = ByteBuffer.wrap(bytes);
+      this.maxRead = maxRead;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+      if (!bytes.hasRemaining()) {
+        return -1;
+      }
+      final int read = Math.min(maxRead, Math.min(bytes.remaining(), dst.remaining()));
+      ByteBuffer slice = bytes.slice();
+      slice.limit(read);
+      dst.put(slice);
+      bytes.position(bytes.position() + read);
+      return read;
+    }
+
+    @Override
+    public boolean isCompleted() {
+      return !bytes.hasRemaining();
+    }
+  }
+}
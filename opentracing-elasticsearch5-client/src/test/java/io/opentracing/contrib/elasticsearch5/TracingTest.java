@@ -15,39 +15,86 @@ package io.opentracing.contrib.elasticsearch5;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.contrib.elasticsearch.common.DescriptionPolicy;
+import io.opentracing.contrib.elasticsearch.common.DescriptionPolicy.Mode;
+import io.opentracing.contrib.elasticsearch.common.LatencyMetrics;
+import io.opentracing.contrib.elasticsearch.common.OpaqueIdFormat;
+import io.opentracing.contrib.elasticsearch.common.SearchProfiler;
 import io.opentracing.contrib.elasticsearch.common.SpanDecorator;
+import io.opentracing.contrib.elasticsearch.common.SpanTemplates;
 import io.opentracing.contrib.elasticsearch.common.TracingHttpClientConfigCallback;
 import io.opentracing.mock.MockSpan;
 import io.opentracing.mock.MockTracer;
 import io.opentracing.tag.Tags;
 import io.opentracing.util.ThreadLocalScopeManager;
 import java.net.InetAddress;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.nio.entity.NStringEntity;
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthAction;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateAction;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateRequest;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateResponse;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexAction;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.action.support.ActionFilterChain;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
 import org.elasticsearch.node.InternalSettingsPreparer;
 import org.elasticsearch.node.Node;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.Netty4Plugin;
+import org.elasticsearch.transport.client.PreBuiltTransportClient;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -77,7 +124,7 @@ public class TracingTest {
         .put("transport.tcp.port", HTTP_TRANSPORT_PORT)
         .put("network.host", "127.0.0.1")
         .build();
-    Collection plugins = Collections.singletonList(Netty4Plugin.class);
+    Collection plugins = Arrays.asList(Netty4Plugin.class, HeaderRecordingPlugin.class);
     node = new PluginConfigurableNode(settings, plugins);
     node.start();
   }
@@ -144,7 +191,9 @@ public class TracingTest {
     Settings settings = Settings.builder()
         .put("cluster.name", clusterName).build();
 
+    LatencyMetrics metrics = new LatencyMetrics();
     TransportClient client = new TracingPreBuiltTransportClient(mockTracer, settings)
+        .withMetrics(metrics)
         .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName("localhost"),
             Integer.parseInt(HTTP_TRANSPORT_PORT)));
 
@@ -179,9 +228,448 @@ public class TracingTest {
     List<MockSpan> finishedSpans = mockTracer.finishedSpans();
     assertEquals(2, finishedSpans.size());
     checkSpans(finishedSpans, "IndexRequest");
+    assertNotNull(finishedSpans.get(0).tags().get(TransportSpanDecorator.DESCRIPTION));
+    assertEquals(2, metrics.snapshot().get(IndexAction.NAME).getCount());
     assertNull(mockTracer.activeSpan());
   }
 
+  @Test
+  public void transportClientWithListenerExecutor() throws Exception {
+
+    Settings settings = Settings.builder()
+        .put("cluster.name", clusterName).build();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor(
+        runnable -> new Thread(runnable, "listener-executor"));
+    TransportClient client = new TracingPreBuiltTransportClient(mockTracer, settings)
+        .withListenerExecutor(executor)
+        .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName("localhost"),
+            Integer.parseInt(HTTP_TRANSPORT_PORT)));
+
+    IndexRequest indexRequest = new IndexRequest("twitter").type("tweet").id("1").
+        source(jsonBuilder()
+            .startObject()
+            .field("user", "kimchy")
+            .endObject()
+        );
+
+    final AtomicReference<String> listenerThread = new AtomicReference<>();
+    final AtomicReference<Span> activeSpan = new AtomicReference<>();
+    final AtomicInteger finishedSpanCount = new AtomicInteger();
+    // the client calls all other listeners on its own "listener" thread pool
+    PlainActionFuture<IndexResponse> future = new PlainActionFuture<IndexResponse>() {
+      @Override
+      public void onResponse(IndexResponse indexResponse) {
+        listenerThread.set(Thread.currentThread().getName());
+        activeSpan.set(mockTracer.activeSpan());
+        finishedSpanCount.set(mockTracer.finishedSpans().size());
+        super.onResponse(indexResponse);
+      }
+    };
+    client.index(indexRequest, future);
+
+    future.actionGet(30, TimeUnit.SECONDS);
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    client.close();
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(1, finishedSpans.size());
+    assertEquals("listener-executor", listenerThread.get());
+    assertEquals(finishedSpans.get(0).context(), activeSpan.get().context());
+    // the span ends with the response, before the listener is called
+    assertEquals(1, finishedSpanCount.get());
+  }
+
+  @Test
+  public void transportClientBulk() throws Exception {
+
+    Settings settings = Settings.builder()
+        .put("cluster.name", clusterName).build();
+
+    TransportClient client = new TracingPreBuiltTransportClient(mockTracer, settings)
+        .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName("localhost"),
+            Integer.parseInt(HTTP_TRANSPORT_PORT)));
+
+    BulkRequest bulkRequest = new BulkRequest()
+        .add(new IndexRequest("twitter", "tweet", "1").source("user", "kimchy"))
+        .add(new IndexRequest("twitter", "tweet", "2").source("user", "kimchy"))
+        .add(new UpdateRequest("twitter", "tweet", "missing").doc("user", "kimchy"))
+        .add(new DeleteRequest("bulk", "tweet", "1"));
+
+    BulkResponse bulkResponse = client.bulk(bulkRequest).actionGet();
+    assertNotNull(bulkResponse);
+    client.close();
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(1, finishedSpans.size());
+    checkSpans(finishedSpans, "BulkRequest");
+
+    Map<String, Object> tags = finishedSpans.get(0).tags();
+    assertEquals(4, tags.get(TransportSpanDecorator.BULK_ACTIONS));
+    assertEquals(bulkRequest.estimatedSizeInBytes(),
+        tags.get(TransportSpanDecorator.BULK_SIZE_BYTES));
+    assertEquals(2, tags.get(TransportSpanDecorator.BULK_OPS_PREFIX + "index"));
+    assertEquals(1, tags.get(TransportSpanDecorator.BULK_OPS_PREFIX + "update"));
+    assertEquals(1, tags.get(TransportSpanDecorator.BULK_OPS_PREFIX + "delete"));
+    assertEquals("twitter=3,bulk=1", tags.get(TransportSpanDecorator.BULK_INDICES));
+    assertEquals(bulkResponse.getTook().millis(), tags.get(SpanDecorator.TOOK_MS));
+    assertEquals(failedItems(bulkResponse), tags.get(TransportSpanDecorator.BULK_FAILED_ITEMS));
+    assertNotNull(tags.get(TransportSpanDecorator.BULK_FAILURES));
+    assertNull(mockTracer.activeSpan());
+  }
+
+  @Test
+  public void transportClientWithDescriptionPolicy() throws Exception {
+
+    Settings settings = Settings.builder()
+        .put("cluster.name", clusterName).build();
+
+    DescriptionPolicy policy = new DescriptionPolicy.Builder()
+        .withMode(Mode.SUMMARY)
+        .withMaxLength(64)
+        .disable(BulkAction.NAME)
+        .build();
+    TransportClient client = new TracingPreBuiltTransportClient(mockTracer, settings)
+        .withDescriptionPolicy(policy)
+        .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName("localhost"),
+            Integer.parseInt(HTTP_TRANSPORT_PORT)));
+
+    IndexRequest indexRequest = new IndexRequest("twitter", "tweet", "1")
+        .source("user", "kimchy");
+    assertNotNull(client.index(indexRequest).actionGet());
+    BulkRequest bulkRequest = new BulkRequest()
+        .add(new IndexRequest("twitter", "tweet", "2").source("user", "kimchy"));
+    assertNotNull(client.bulk(bulkRequest).actionGet());
+    client.close();
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(2, finishedSpans.size());
+    assertEquals("indices=twitter, type=tweet, source_bytes=" + indexRequest.source().length(),
+        finishedSpans.get(0).tags().get(TransportSpanDecorator.DESCRIPTION));
+    assertNull(finishedSpans.get(1).tags().get(TransportSpanDecorator.DESCRIPTION));
+  }
+
+  @Test
+  public void transportClientWithOperationName() throws Exception {
+
+    Settings settings = Settings.builder()
+        .put("cluster.name", clusterName).build();
+
+    TransportClient client = new TracingPreBuiltTransportClient(mockTracer, settings)
+        .withOperationName(IndexAction.NAME, "index")
+        .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName("localhost"),
+            Integer.parseInt(HTTP_TRANSPORT_PORT)));
+
+    assertNotNull(client.index(new IndexRequest("twitter", "tweet", "1")
+        .source("user", "kimchy")).actionGet());
+    assertNotNull(client.bulk(new BulkRequest()
+        .add(new IndexRequest("twitter", "tweet", "2").source("user", "kimchy"))).actionGet());
+    client.close();
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(2, finishedSpans.size());
+    checkSpans(finishedSpans.subList(0, 1), "index");
+    checkSpans(finishedSpans.subList(1, 2), "BulkRequest");
+    assertEquals(IndexAction.NAME, finishedSpans.get(0).tags().get(SpanTemplates.ACTION));
+  }
+
+  @Test
+  public void transportClientSearch() throws Exception {
+
+    Settings settings = Settings.builder()
+        .put("cluster.name", clusterName).build();
+
+    try (TransportClient plainClient = new PreBuiltTransportClient(settings)
+        .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName("localhost"),
+            Integer.parseInt(HTTP_TRANSPORT_PORT)))) {
+      plainClient.index(new IndexRequest("search", "tweet", "1").source("user", "kimchy")
+          .setRefreshPolicy(RefreshPolicy.IMMEDIATE)).actionGet();
+    }
+
+    TransportClient client = new TracingPreBuiltTransportClient(mockTracer, settings)
+        .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName("localhost"),
+            Integer.parseInt(HTTP_TRANSPORT_PORT)));
+
+    SearchResponse searchResponse = client.search(new SearchRequest("search")).actionGet();
+    client.close();
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    assertEquals(1, finishedSpans.size());
+    checkSpans(finishedSpans, "SearchRequest");
+
+    Map<String, Object> tags = finishedSpans.get(0).tags();
+    assertEquals(searchResponse.getTook().millis(),
+        tags.get(SpanDecorator.TOOK_MS));
+    assertEquals(searchResponse.getTotalShards(),
+        tags.get(TransportSpanDecorator.SEARCH_SHARDS_TOTAL));
+    assertEquals(searchResponse.getTotalShards(),
+        tags.get(TransportSpanDecorator.SEARCH_SHARDS_SUCCESSFUL));
+    assertEquals(0, tags.get(TransportSpanDecorator.SEARCH_SHARDS_SKIPPED));
+    assertEquals(0, tags.get(TransportSpanDecorator.SEARCH_SHARDS_FAILED));
+    assertEquals(false, tags.get(TransportSpanDecorator.SEARCH_TIMED_OUT));
+    assertNull(tags.get(TransportSpanDecorator.SEARCH_TERMINATED_EARLY));
+    assertEquals(1L, tags.get(TransportSpanDecorator.SEARCH_TOTAL_HITS));
+    long overhead = (Long) tags.get(SpanDecorator.CLIENT_OVERHEAD_MS);
+    assertTrue(overhead >= 0);
+    assertTrue(overhead <= TimeUnit.MICROSECONDS.toMillis(
+        finishedSpans.get(0).finishMicros() - finishedSpans.get(0).startMicros()));
+  }
+
+  @Test
+  public void transportClientWithSearchProfiler() throws Exception {
+
+    Settings settings = Settings.builder()
+        .put("cluster.name", clusterName).build();
+
+    try (TransportClient plainClient = new PreBuiltTransportClient(settings)
+        .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName("localhost"),
+            Integer.parseInt(HTTP_TRANSPORT_PORT)))) {
+      plainClient.index(new IndexRequest("profile", "tweet", "1").source("user", "kimchy")
+          .setRefreshPolicy(RefreshPolicy.IMMEDIATE)).actionGet();
+    }
+
+    TransportClient client = new TracingPreBuiltTransportClient(mockTracer, settings)
+        .withSearchProfiler(new SearchProfiler.Builder()
+            .withRate(1)
+            .withStripProfile(true)
+            .build())
+        .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName("localhost"),
+            Integer.parseInt(HTTP_TRANSPORT_PORT)));
+
+    SearchSourceBuilder source = new SearchSourceBuilder();
+    SearchRequest request = new SearchRequest("profile").source(source);
+    SearchResponse searchResponse = client.search(request).actionGet();
+    client.close();
+
+    // the profile is reported instead of returned, a copy of the request was profiled
+    assertTrue(searchResponse.getProfileResults().isEmpty());
+    assertSame(source, request.source());
+    assertFalse(source.profile());
+
+    List<MockSpan> finishedSpans = mockTracer.finishedSpans();
+    MockSpan searchSpan = finishedSpans.get(finishedSpans.size() - 1);
+    assertEquals("SearchRequest", searchSpan.operationName());
+    int shards = 0;
+    int queries = 0;
+    for (MockSpan span : finishedSpans.subList(0, finishedSpans.size() - 1)) {
+      Object type = span.tags().get(SearchProfiler.PROFILE_TYPE);
+      if (SearchProfiler.SHARD.equals(type)) {
+        assertEquals(searchSpan.context().spanId(), span.parentId());
+        shards++;
+      } else if (SearchProfiler.QUERY.equals(type)) {
+        queries++;
+      }
+    }
+    assertEquals(searchResponse.getSuccessfulShards(), shards);
+    assertTrue(queries >= shards);
+  }
+
+  @Test
+  public void transportClientWithOpaqueId() throws Exception {
+
+    Settings settings = Settings.builder()
+        .put("cluster.name", clusterName).build();
+
+    TransportClient client = new TracingPreBuiltTransportClient(mockTracer, settings)
+        .withOpaqueId(OpaqueIdFormat.TRACE_ID_SPAN_ID)
+        .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName("localhost"),
+            Integer.parseInt(HTTP_TRANSPORT_PORT)));
+
+    client.admin().cluster().health(new ClusterHealthRequest()).actionGet();
+    String opaqueId = HeaderRecordingPlugin.headers(ClusterHealthAction.NAME)
+        .get(OpaqueIdFormat.HEADER);
+
+    ThreadContext threadContext = client.threadPool().getThreadContext();
+    try (ThreadContext.StoredContext ignored = threadContext.stashContext()) {
+      threadContext.putHeader(OpaqueIdFormat.HEADER, "caller");
+      client.admin().cluster().health(new ClusterHealthRequest()).actionGet();
+    }
+    String callerOpaqueId = HeaderRecordingPlugin.headers(ClusterHealthAction.NAME)
+        .get(OpaqueIdFormat.HEADER);
+    // the header isn't left in the context of the caller
+    assertNull(threadContext.getHeader(OpaqueIdFormat.HEADER));
+    client.close();
+
+    MockSpan span = mockTracer.finishedSpans().get(0);
+    assertEquals(span.context().toTraceId() + "-" + span.context().toSpanId(), opaqueId);
+    assertEquals("caller", callerOpaqueId);
+  }
+
+  @Test
+  public void transportClientRequestFromListenerHasItsOwnOpaqueId() throws Exception {
+
+    Settings settings = Settings.builder()
+        .put("cluster.name", clusterName).build();
+
+    TransportClient client = new TracingPreBuiltTransportClient(mockTracer, settings)
+        .withOpaqueId(OpaqueIdFormat.TRACE_ID_SPAN_ID)
+        .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName("localhost"),
+            Integer.parseInt(HTTP_TRANSPORT_PORT)));
+
+    final CountDownLatch latch = new CountDownLatch(1);
+    client.admin().cluster().health(new ClusterHealthRequest(),
+        new ActionListener<ClusterHealthResponse>() {
+          @Override
+          public void onResponse(ClusterHealthResponse clusterHealthResponse) {
+            client.admin().cluster().state(new ClusterStateRequest(),
+                new ActionListener<ClusterStateResponse>() {
+                  @Override
+                  public void onResponse(ClusterStateResponse clusterStateResponse) {
+                    latch.countDown();
+                  }
+
+                  @Override
+                  public void onFailure(Exception e) {
+                    latch.countDown();
+                  }
+                });
+          }
+
+          @Override
+          public void onFailure(Exception e) {
+            latch.countDown();
+          }
+        });
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    String opaqueId = HeaderRecordingPlugin.headers(ClusterStateAction.NAME)
+        .get(OpaqueIdFormat.HEADER);
+    client.close();
+
+    for (int i = 0; i < 100 && mockTracer.finishedSpans().size() < 2; i++) {
+      Thread.sleep(10);
+    }
+    MockSpan span = mockTracer.finishedSpans().stream()
+        .filter(finished -> finished.operationName().equals("ClusterStateRequest"))
+        .findFirst().get();
+    assertEquals(span.context().toTraceId() + "-" + span.context().toSpanId(), opaqueId);
+  }
+
+  @Test
+  public void transportClientPropagatesContext() throws Exception {
+
+    Settings settings = Settings.builder()
+        .put("cluster.name", clusterName).build();
+
+    TransportClient client = new TracingPreBuiltTransportClient(mockTracer, settings)
+        .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName("localhost"),
+            Integer.parseInt(HTTP_TRANSPORT_PORT)));
+
+    Span parent = mockTracer.buildSpan("parent").start();
+    try (Scope ignored = mockTracer.activateSpan(parent)) {
+      client.admin().cluster().health(new ClusterHealthRequest()).actionGet();
+    }
+    Map<String, String> headers = HeaderRecordingPlugin.headers(ClusterHealthAction.NAME);
+    // the headers aren't left in the context of the caller
+    assertTrue(client.threadPool().getThreadContext().getHeaders().isEmpty());
+    client.close();
+
+    // the span is finished after the listener returns
+    for (int i = 0; i < 100 && mockTracer.finishedSpans().isEmpty(); i++) {
+      Thread.sleep(10);
+    }
+    MockSpan span = mockTracer.finishedSpans().get(0);
+    assertEquals("ClusterHealthRequest", span.operationName());
+    assertEquals(((MockSpan) parent).context().spanId(), span.parentId());
+    assertEquals(span.context().toTraceId(), headers.get("traceid"));
+    assertEquals(span.context().toSpanId(), headers.get("spanid"));
+  }
+
+  @Test
+  public void transportClientReplacesPropagationHeaders() throws Exception {
+
+    Settings settings = Settings.builder()
+        .put("cluster.name", clusterName).build();
+
+    TransportClient client = new TracingPreBuiltTransportClient(mockTracer, settings)
+        .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName("localhost"),
+            Integer.parseInt(HTTP_TRANSPORT_PORT)));
+
+    ThreadContext threadContext = client.threadPool().getThreadContext();
+    try (ThreadContext.StoredContext ignored = threadContext.stashContext()) {
+      // a stale context of the caller, which the thread context can't overwrite
+      threadContext.putHeader("traceid", "1");
+      threadContext.putHeader("spanid", "2");
+      threadContext.putHeader("X-B3-TraceId", "3");
+      threadContext.putHeader("application", "app");
+      client.admin().cluster().health(new ClusterHealthRequest()).actionGet();
+      // the context of the caller is left as it was
+      assertEquals("1", threadContext.getHeader("traceid"));
+      assertEquals("app", threadContext.getHeader("application"));
+    }
+    Map<String, String> headers = HeaderRecordingPlugin.headers(ClusterHealthAction.NAME);
+    client.close();
+
+    for (int i = 0; i < 100 && mockTracer.finishedSpans().isEmpty(); i++) {
+      Thread.sleep(10);
+    }
+    MockSpan span = mockTracer.finishedSpans().get(0);
+    assertEquals(span.context().toTraceId(), headers.get("traceid"));
+    assertEquals(span.context().toSpanId(), headers.get("spanid"));
+    assertFalse(headers.containsKey("X-B3-TraceId"));
+    assertEquals("app", headers.get("application"));
+  }
+
+  @Test
+  public void transportClientRequestFromListenerPropagatesItsContext() throws Exception {
+
+    Settings settings = Settings.builder()
+        .put("cluster.name", clusterName).build();
+
+    TransportClient client = new TracingPreBuiltTransportClient(mockTracer, settings)
+        .addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName("localhost"),
+            Integer.parseInt(HTTP_TRANSPORT_PORT)));
+
+    final CountDownLatch latch = new CountDownLatch(1);
+    client.admin().cluster().health(new ClusterHealthRequest(),
+        new ActionListener<ClusterHealthResponse>() {
+          @Override
+          public void onResponse(ClusterHealthResponse clusterHealthResponse) {
+            // sent in the context the client restored for the listener
+            client.admin().cluster().state(new ClusterStateRequest(),
+                new ActionListener<ClusterStateResponse>() {
+                  @Override
+                  public void onResponse(ClusterStateResponse clusterStateResponse) {
+                    latch.countDown();
+                  }
+
+                  @Override
+                  public void onFailure(Exception e) {
+                    latch.countDown();
+                  }
+                });
+          }
+
+          @Override
+          public void onFailure(Exception e) {
+            latch.countDown();
+          }
+        });
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    Map<String, String> headers = HeaderRecordingPlugin.headers(ClusterStateAction.NAME);
+    client.close();
+
+    // the spans are finished after the listeners return
+    for (int i = 0; i < 100 && mockTracer.finishedSpans().size() < 2; i++) {
+      Thread.sleep(10);
+    }
+    MockSpan span = mockTracer.finishedSpans().stream()
+        .filter(finished -> finished.operationName().equals("ClusterStateRequest"))
+        .findFirst().get();
+    assertEquals(span.context().toTraceId(), headers.get("traceid"));
+    assertEquals(span.context().toSpanId(), headers.get("spanid"));
+  }
+
+  private static int failedItems(BulkResponse bulkResponse) {
+    int failed = 0;
+    for (BulkItemResponse item : bulkResponse.getItems()) {
+      if (item.isFailed()) {
+        failed++;
+      }
+    }
+    return failed;
+  }
+
   private void checkSpans(List<MockSpan> mockSpans, String expectedOperationName) {
     for (MockSpan mockSpan : mockSpans) {
       assertEquals(Tags.SPAN_KIND_CLIENT, mockSpan.tags().get(Tags.SPAN_KIND.getKey()));
@@ -193,6 +681,46 @@ public class TracingTest {
     }
   }
 
+  /**
+   * Records the thread context headers of the actions the node executes
+   */
+  public static class HeaderRecordingPlugin extends Plugin implements ActionPlugin {
+
+    private static final Map<String, Map<String, String>> HEADERS = new ConcurrentHashMap<>();
+
+    static Map<String, String> headers(String action) {
+      return HEADERS.getOrDefault(action, Collections.emptyMap());
+    }
+
+    @Override
+    public List<Class<? extends ActionFilter>> getActionFilters() {
+      return Collections.singletonList(RecordingFilter.class);
+    }
+
+    public static class RecordingFilter implements ActionFilter {
+
+      private final ThreadPool threadPool;
+
+      @Inject
+      public RecordingFilter(ThreadPool threadPool) {
+        this.threadPool = threadPool;
+      }
+
+      @Override
+      public int order() {
+        return 0;
+      }
+
+      @Override
+      public <Request extends ActionRequest, Response extends ActionResponse> void apply(
+          Task task, String action, Request request, ActionListener<Response> listener,
+          ActionFilterChain<Request, Response> chain) {
+        HEADERS.put(action, new HashMap<>(threadPool.getThreadContext().getHeaders()));
+        chain.proceed(task, action, request, listener);
+      }
+    }
+  }
+
   private static class PluginConfigurableNode extends Node {
 
     public PluginConfigurableNode(Settings settings,
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch6;
+
+import io.opentracing.contrib.elasticsearch.common.SearchProfiler;
+import io.opentracing.contrib.elasticsearch.common.SearchProfiler.Node;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchResponseSections;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.profile.ProfileResult;
+import org.elasticsearch.search.profile.ProfileShardResult;
+import org.elasticsearch.search.profile.query.CollectorResult;
+import org.elasticsearch.search.profile.query.QueryProfileShardResult;
+
+/**
+ * Turns search requests into profiled ones and their profiles into SearchProfiler nodes
+ */
+final class ProfileResults {
+
+  private ProfileResults() {
+  }
+
+  /**
+   * @return a copy of the request with "profile": true, null if the request is profiled already.
+   * The source is copied shallowly, the queries and aggregations are shared with the request.
+   */
+  static SearchRequest profiled(SearchRequest request) {
+    final SearchSourceBuilder source = request.source();
+    if (source != null && source.profile()) {
+      return null;
+    }
+    final SearchRequest profiled = new SearchRequest(request);
+    profiled.source(
+        ((source != null) ? source.copyWithNewSlice(source.slice()) : new SearchSourceBuilder())
+            .profile(true));
+    return profiled;
+  }
+
+  static List<Node> toNodes(Map<String, ProfileShardResult> profileResults) {
+    if (profileResults == null || profileResults.isEmpty()) {
+      return Collections.emptyList();
+    }
+    final List<Node> shards = new ArrayList<>(profileResults.size());
+    for (Map.Entry<String, ProfileShardResult> shard : profileResults.entrySet()) {
+      final List<Node> children = new ArrayList<>();
+      for (QueryProfileShardResult search : shard.getValue().getQueryProfileResults()) {
+        children.addAll(toNodes(SearchProfiler.QUERY, search.getQueryResults()));
+        if (search.getRewriteTime() > 0) {
+          children.add(new Node(SearchProfiler.REWRITE, SearchProfiler.REWRITE, null,
+              search.getRewriteTime(), Collections.emptyList()));
+        }
+        if (search.getCollectorResult() != null) {
+          children.add(toNode(search.getCollectorResult()));
+        }
+      }
+      if (shard.getValue().getAggregationProfileResults() != null) {
+        children.addAll(toNodes(SearchProfiler.AGGREGATION,
+            shard.getValue().getAggregationProfileResults().getProfileResults()));
+      }
+      shards.add(new Node(SearchProfiler.SHARD, shard.getKey(), null, 0, children));
+    }
+    return shards;
+  }
+
+  private static List<Node> toNodes(String type, List<ProfileResult> results) {
+    final List<Node> nodes = new ArrayList<>(results.size());
+    for (ProfileResult result : results) {
+      nodes.add(new Node(type, result.getQueryName(), result.getLuceneDescription(),
+          result.getTime(), toNodes(type, result.getProfiledChildren())));
+    }
+    return nodes;
+  }
+
+  private static Node toNode(CollectorResult collector) {
+    final List<Node> children = new ArrayList<>(collector.getProfiledChildren().size());
+    for (CollectorResult child : collector.getProfiledChildren()) {
+      children.add(toNode(child));
+    }
+    return new Node(SearchProfiler.COLLECTOR, collector.getName(), collector.getReason(),
+        collector.getTime(), children);
+  }
+
+  /**
+   * @return a copy of the response without the profile
+   */
+  static SearchResponse strip(SearchResponse response) {
+    final SearchResponseSections sections = new SearchResponseSections(response.getHits(),
+        response.getAggregations(), response.getSuggest(), response.isTimedOut(),
+        response.isTerminatedEarly(), null, response.getNumReducePhases());
+    final SearchResponse stripped = new SearchResponse(sections, response.getScrollId(),
+        response.getTotalShards(), response.getSuccessfulShards(), response.getSkippedShards(),
+        response.getTook().millis(), response.getShardFailures(), response.getClusters());
+    stripped.remoteAddress(response.remoteAddress());
+    return stripped;
+  }
+}
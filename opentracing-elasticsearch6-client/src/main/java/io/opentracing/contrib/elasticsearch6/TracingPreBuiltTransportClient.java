@@ -14,17 +14,27 @@
 package io.opentracing.contrib.elasticsearch6;
 
 import io.opentracing.Span;
+import io.opentracing.SpanContext;
 import io.opentracing.Tracer;
-import io.opentracing.contrib.elasticsearch.common.SpanDecorator;
-import io.opentracing.tag.Tags;
+import io.opentracing.contrib.elasticsearch.common.DescriptionPolicy;
+import io.opentracing.contrib.elasticsearch.common.LatencyMetrics;
+import io.opentracing.contrib.elasticsearch.common.OpaqueIdFormat;
+import io.opentracing.contrib.elasticsearch.common.SearchProfiler;
+import io.opentracing.contrib.elasticsearch.common.SpanTemplates;
+import io.opentracing.propagation.Format.Builtin;
 import io.opentracing.util.GlobalTracer;
 import java.util.Collection;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 import org.elasticsearch.action.Action;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionRequestBuilder;
 import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.ThreadedActionListener;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.transport.client.PreBuiltTransportClient;
 
@@ -32,6 +42,12 @@ import org.elasticsearch.transport.client.PreBuiltTransportClient;
 public class TracingPreBuiltTransportClient extends PreBuiltTransportClient {
 
   private final Tracer tracer;
+  private volatile LatencyMetrics metrics;
+  private volatile Executor listenerExecutor;
+  private volatile DescriptionPolicy descriptionPolicy = DescriptionPolicy.FULL;
+  private volatile SpanTemplates spanTemplates = SpanTemplates.defaults();
+  private volatile SearchProfiler searchProfiler;
+  private volatile Function<SpanContext, String> opaqueIdFormat;
 
   @SafeVarargs
   public TracingPreBuiltTransportClient(Tracer tracer, Settings settings,
@@ -79,19 +95,118 @@ public class TracingPreBuiltTransportClient extends PreBuiltTransportClient {
     this(GlobalTracer.get(), settings, plugins, hostFailureListener);
   }
 
+  /**
+   * @param metrics records the latency of every request per action, may be null
+   * @return this client
+   */
+  public TracingPreBuiltTransportClient withMetrics(LatencyMetrics metrics) {
+    this.metrics = metrics;
+    return this;
+  }
+
+  /**
+   * @param listenerExecutor calls the listeners of requests the client doesn't call on its own
+   * "listener" thread pool (ActionFutures), with the finished span of the request active, instead
+   * of the thread which received the response. May be null.
+   * @return this client
+   */
+  public TracingPreBuiltTransportClient withListenerExecutor(Executor listenerExecutor) {
+    this.listenerExecutor = listenerExecutor;
+    return this;
+  }
+
+  /**
+   * @param descriptionPolicy decides how requests are described in the "description" tag,
+   * DescriptionPolicy.FULL by default
+   * @return this client
+   */
+  public TracingPreBuiltTransportClient withDescriptionPolicy(DescriptionPolicy descriptionPolicy) {
+    this.descriptionPolicy = descriptionPolicy;
+    return this;
+  }
+
+  /**
+   * @param action name of the action, e.g. SearchAction.NAME
+   * @param operationName operation name of the spans of the action, instead of the simple name of
+   * the request class
+   * @return this client
+   */
+  public synchronized TracingPreBuiltTransportClient withOperationName(String action,
+      String operationName) {
+    this.spanTemplates = spanTemplates.withOperationName(action, operationName);
+    return this;
+  }
+
+  /**
+   * @param searchProfiler profiles a fraction of the searches and reports their profiles as child
+   * spans of the search spans, may be null
+   * @return this client
+   */
+  public TracingPreBuiltTransportClient withSearchProfiler(SearchProfiler searchProfiler) {
+    this.searchProfiler = searchProfiler;
+    return this;
+  }
+
+  /**
+   * @param opaqueIdFormat formats the X-Opaque-Id thread context header of requests from their
+   * span context, e.g. OpaqueIdFormat.TRACE_ID_SPAN_ID. A header the caller put into its thread
+   * context is kept. The ids set here only live in the context the request is sent in, so requests
+   * sent from listeners get ids of their own. May be null, the default.
+   * @return this client
+   */
+  public TracingPreBuiltTransportClient withOpaqueId(Function<SpanContext, String> opaqueIdFormat) {
+    this.opaqueIdFormat = opaqueIdFormat;
+    return this;
+  }
+
   @Override
+  @SuppressWarnings("unchecked")
   protected <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
       Action<Request, Response, RequestBuilder> action, Request request,
       ActionListener<Response> listener) {
-    Tracer.SpanBuilder spanBuilder = tracer.buildSpan(request.getClass().getSimpleName())
-        .withTag("action", action.name())
-        .withTag("description", request.getDescription())
-        .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT);
-
+    final String actionName = action.name();
+    final Tracer.SpanBuilder spanBuilder = spanTemplates.get(request.getClass(), actionName)
+        .buildSpan(tracer);
+    final Span parent = tracer.activeSpan();
+    if (parent != null) {
+      spanBuilder.asChildOf(parent);
+    }
     Span span = spanBuilder.start();
-    SpanDecorator.onRequest(span);
+    TransportSpanDecorator.onDescription(descriptionPolicy, actionName, request, span);
+    TransportSpanDecorator.onRequest(request, span);
+
+    // the client calls all but ActionFutures on its listener pool itself, they aren't handed over
+    final Executor executor =
+        (listener instanceof ThreadedActionListener) ? null : listenerExecutor;
+    TracingResponseListener<Response> actionFuture = new TracingResponseListener<>(listener, span,
+        metrics, actionName, tracer, executor);
+
+    final SearchProfiler profiler = searchProfiler;
+    Request sent = request;
+    if (profiler != null && request instanceof SearchRequest && profiler.shouldProfile(span)) {
+      // a copy is profiled, the request of the caller is left as it is
+      final SearchRequest profiled = ProfileResults.profiled((SearchRequest) request);
+      if (profiled != null) {
+        actionFuture.withProfiler(profiler);
+        sent = (Request) profiled;
+      }
+    }
 
-    ActionListener<Response> actionFuture = new TracingResponseListener<>(listener, span);
-    super.doExecute(action, request, actionFuture);
+    final ThreadContext threadContext = threadPool().getThreadContext();
+    // the client restores the context the request was sent in to call the listener
+    actionFuture.withCallerContext(threadContext.newRestorableContext(true));
+    final ThreadContextInjectAdapter injectAdapter = new ThreadContextInjectAdapter(threadContext);
+    tracer.inject(span.context(), Builtin.HTTP_HEADERS, injectAdapter);
+    // the headers are sent with the request, the context of the caller is restored afterwards
+    try (ThreadContext.StoredContext ignored = injectAdapter.newStoredContext()) {
+      final Function<SpanContext, String> format = opaqueIdFormat;
+      if (format != null && threadContext.getHeader(OpaqueIdFormat.HEADER) == null) {
+        final String opaqueId = OpaqueIdFormat.format(format, span.context());
+        if (opaqueId != null) {
+          threadContext.putHeader(OpaqueIdFormat.HEADER, opaqueId);
+        }
+      }
+      super.doExecute(action, sent, actionFuture);
+    }
   }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch7;
+
+import io.opentracing.contrib.elasticsearch.common.NodeStats;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+
+/**
+ * Steers RestClient traffic away from nodes which are much slower or fail more often than the best
+ * one, e.g. because they are garbage collecting or hot. Nodes are scored by the NodeStats the
+ * TracingHttpClientConfigCallback records (see Builder.withNodeStats()).
+ *
+ * <p>A node is skipped if its score is more than maxScoreRatio times the best score and at least
+ * MIN_SCORE_DIFFERENCE_NANOS above it. Nodes without any recorded request are never skipped, and
+ * the best node always remains. A fraction probeRate of the requests may go to any node, so that
+ * the score of a recovered node catches up and it gets its share of traffic again.
+ */
+public class LatencyAwareNodeSelector implements NodeSelector {
+
+  public static final double DEFAULT_PROBE_RATE = 0.05;
+  public static final double DEFAULT_MAX_SCORE_RATIO = 2;
+  /**
+   * Keeps nodes which are only a little slower in absolute terms, e.g. 1ms vs. 3ms
+   */
+  public static final double MIN_SCORE_DIFFERENCE_NANOS = 5_000_000;
+
+  private final NodeStats nodeStats;
+  private final double probeRate;
+  private final double maxScoreRatio;
+
+  /**
+   * @param nodeStats stats the nodes are scored by
+   * @param probeRate fraction of the requests which may go to any node, between 0 and 1
+   * @param maxScoreRatio nodes with a score this many times the best one are skipped, at least 1
+   */
+  public LatencyAwareNodeSelector(NodeStats nodeStats, double probeRate, double maxScoreRatio) {
+    if (probeRate < 0 || probeRate > 1) {
+      throw new IllegalArgumentException("probeRate must be between 0 and 1");
+    }
+    if (maxScoreRatio < 1) {
+      throw new IllegalArgumentException("maxScoreRatio must be at least 1");
+    }
+    this.nodeStats = nodeStats;
+    this.probeRate = probeRate;
+    this.maxScoreRatio = maxScoreRatio;
+  }
+
+  /**
+   * DEFAULT_PROBE_RATE and DEFAULT_MAX_SCORE_RATIO are used
+   */
+  public LatencyAwareNodeSelector(NodeStats nodeStats) {
+    this(nodeStats, DEFAULT_PROBE_RATE, DEFAULT_MAX_SCORE_RATIO);
+  }
+
+  @Override
+  public void select(Iterable<Node> nodes) {
+    if (probeRate > 0 && ThreadLocalRandom.current().nextDouble() < probeRate) {
+      return;
+    }
+
+    double best = Double.POSITIVE_INFINITY;
+    for (Node node : nodes) {
+      final double score = nodeStats.getScore(node.getHost());
+      if (score < best) {
+        best = score;
+      }
+    }
+    if (best == Double.POSITIVE_INFINITY) {
+      return;
+    }
+
+    final double limit = Math.max(best * maxScoreRatio, best + MIN_SCORE_DIFFERENCE_NANOS);
+    for (Iterator<Node> iterator = nodes.iterator(); iterator.hasNext(); ) {
+      // NaN (no requests yet) is never above the limit
+      if (nodeStats.getScore(iterator.next().getHost()) > limit) {
+        iterator.remove();
+      }
+    }
+  }
+
+  public double getProbeRate() {
+    return probeRate;
+  }
+
+  @Override
+  public String toString() {
+    return "LATENCY_AWARE(probeRate=" + probeRate + ", maxScoreRatio=" + maxScoreRatio + ")";
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch7;
+
+import io.opentracing.contrib.elasticsearch.common.PropagationHeaders;
+import io.opentracing.propagation.TextMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+
+/**
+ * Injects into the headers of a new thread context, which are sent with the transport requests
+ * executed in it. A thread context can't overwrite its headers, so the propagation headers the
+ * context of the caller has (PropagationHeaders.KNOWN and the injected ones) are left out of the
+ * new one: the node gets the injected span context, not a stale or mixed one.
+ */
+public class ThreadContextInjectAdapter implements TextMap {
+
+  private final ThreadContext threadContext;
+  private final Map<String, String> headers = new HashMap<>();
+
+  public ThreadContextInjectAdapter(ThreadContext threadContext) {
+    this.threadContext = threadContext;
+  }
+
+  @Override
+  public Iterator<Map.Entry<String, String>> iterator() {
+    throw new UnsupportedOperationException("iterator should never be used with Tracer.inject()");
+  }
+
+  @Override
+  public void put(String key, String value) {
+    headers.put(key, value);
+  }
+
+  /**
+   * Switches to a new context with the injected headers and the other headers of the caller. Its
+   * transient headers are only kept if it had no propagation headers, a context without them has
+   * to start from an empty one.
+   *
+   * @return restores the context of the caller when closed
+   */
+  public ThreadContext.StoredContext newStoredContext() {
+    final Map<String, String> callerHeaders = threadContext.getHeaders();
+    boolean stale = false;
+    for (String name : callerHeaders.keySet()) {
+      if (isPropagationHeader(name)) {
+        stale = true;
+        break;
+      }
+    }
+
+    final ThreadContext.StoredContext callerContext;
+    if (stale) {
+      callerContext = threadContext.stashContext();
+      for (Map.Entry<String, String> header : callerHeaders.entrySet()) {
+        // the stashed context may keep some headers, e.g. X-Opaque-Id
+        if (!isPropagationHeader(header.getKey())
+            && threadContext.getHeader(header.getKey()) == null) {
+          threadContext.putHeader(header.getKey(), header.getValue());
+        }
+      }
+    } else {
+      callerContext = threadContext.newStoredContext(true);
+    }
+    threadContext.putHeader(headers);
+    return callerContext;
+  }
+
+  private boolean isPropagationHeader(String name) {
+    if (PropagationHeaders.KNOWN.matches(name)) {
+      return true;
+    }
+    for (String injected : headers.keySet()) {
+      if (injected.equalsIgnoreCase(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -13,25 +13,89 @@
  */
 package io.opentracing.contrib.elasticsearch7;
 
+import io.opentracing.Scope;
 import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.contrib.elasticsearch.common.LatencyMetrics;
+import io.opentracing.contrib.elasticsearch.common.SearchProfiler;
 import io.opentracing.contrib.elasticsearch.common.SpanDecorator;
 import io.opentracing.tag.Tags;
 import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
 
 public class TracingResponseListener<T extends ActionResponse> implements ActionListener<T> {
 
   private final ActionListener<T> listener;
   private final Span span;
+  private final LatencyMetrics metrics;
+  private final String action;
+  private final long startNanos;
+  private final Tracer tracer;
+  private final Executor executor;
+  private SearchProfiler profiler;
+  private Supplier<ThreadContext.StoredContext> callerContext;
 
   public TracingResponseListener(ActionListener<T> listener, Span span) {
+    this(listener, span, null, null);
+  }
+
+  /**
+   * @param metrics records the latency of the action from now until the response, may be null
+   * @param action name of the action the latency is recorded for
+   */
+  public TracingResponseListener(ActionListener<T> listener, Span span, LatencyMetrics metrics,
+      String action) {
+    this(listener, span, metrics, action, null, null);
+  }
+
+  /**
+   * @param metrics records the latency of the action from now until the response, may be null
+   * @param action name of the action the latency is recorded for
+   * @param tracer activates the span, as the parent of what the listener does, while the executor
+   * calls it
+   * @param executor calls the listener instead of the thread delivering the response, may be null
+   */
+  public TracingResponseListener(ActionListener<T> listener, Span span, LatencyMetrics metrics,
+      String action, Tracer tracer, Executor executor) {
     this.listener = listener;
     this.span = span;
+    this.metrics = metrics;
+    this.action = action;
+    this.startNanos = System.nanoTime();
+    this.tracer = tracer;
+    this.executor = executor;
+  }
+
+  /**
+   * Reports the profile of the search response as child spans of the span
+   */
+  TracingResponseListener<T> withProfiler(SearchProfiler profiler) {
+    this.profiler = profiler;
+    return this;
+  }
+
+  /**
+   * Calls the listener in the context of the caller rather than the one the request was sent in,
+   * so requests sent from the listener don't carry the headers of this request
+   *
+   * @param callerContext restores the context of the caller, e.g.
+   * ThreadContext.newRestorableContext(true)
+   */
+  TracingResponseListener<T> withCallerContext(
+      Supplier<ThreadContext.StoredContext> callerContext) {
+    this.callerContext = callerContext;
+    return this;
   }
 
   @Override
   public void onResponse(T t) {
+    final long elapsedNanos = recordLatency();
     if (t.remoteAddress() != null) {
       InetSocketAddress address = t.remoteAddress().address();
       if (address != null) {
@@ -40,21 +104,66 @@ public class TracingResponseListener<T extends ActionResponse> implements Action
       }
     }
 
-    try {
-      listener.onResponse(t);
-    } finally {
-      span.finish();
+    TransportSpanDecorator.onResponse(t, span, elapsedNanos);
+
+    final T response = (profiler != null) ? profile(t) : t;
+    // the span ends with the response, however long the listener waits and runs
+    span.finish();
+    dispatch(() -> listener.onResponse(response));
+  }
+
+  @SuppressWarnings("unchecked")
+  private T profile(T t) {
+    if (!(t instanceof SearchResponse)) {
+      return t;
     }
+    final SearchResponse searchResponse = (SearchResponse) t;
+    profiler.report(tracer, span, SearchProfiler.startMicros(startNanos),
+        ProfileResults.toNodes(searchResponse.getProfileResults()));
+    return profiler.isStripProfile() ? (T) ProfileResults.strip(searchResponse) : t;
   }
 
   @Override
   public void onFailure(Exception e) {
+    recordLatency();
     SpanDecorator.onError(e, span);
+    span.finish();
+
+    dispatch(() -> listener.onFailure(e));
+  }
 
+  private void dispatch(Runnable callback) {
+    if (executor == null) {
+      call(callback);
+      return;
+    }
     try {
-      listener.onFailure(e);
-    } finally {
-      span.finish();
+      executor.execute(() -> {
+        try (Scope ignored = tracer.activateSpan(span)) {
+          call(callback);
+        }
+      });
+    } catch (RejectedExecutionException rejected) {
+      // e.g. the executor is shut down, the listener still has to be called
+      call(callback);
+    }
+  }
+
+  private void call(Runnable callback) {
+    try (ThreadContext.StoredContext ignored =
+        (callerContext != null) ? callerContext.get() : null) {
+      callback.run();
+    }
+  }
+
+  /**
+   * @return nanoseconds since the request was sent
+   */
+  private long recordLatency() {
+    final long elapsedNanos = System.nanoTime() - startNanos;
+    if (metrics != null) {
+      metrics.record(action, elapsedNanos);
     }
+    return elapsedNanos;
   }
 }
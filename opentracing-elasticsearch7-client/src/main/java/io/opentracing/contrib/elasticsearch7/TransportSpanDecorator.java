@@ -0,0 +1,263 @@
+/*
+ * Copyright 2017-2019 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.elasticsearch7;
+
+import io.opentracing.Span;
+import io.opentracing.contrib.elasticsearch.common.DescriptionPolicy;
+import io.opentracing.contrib.elasticsearch.common.DescriptionPolicy.Mode;
+import io.opentracing.contrib.elasticsearch.common.SpanDecorator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.DocWriteRequest.OpType;
+import org.elasticsearch.action.IndicesRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+
+/**
+ * Adds request and response specific tags to transport client spans
+ */
+class TransportSpanDecorator {
+
+  static final String DESCRIPTION = "description";
+  static final String BULK_ACTIONS = "bulk.actions";
+  static final String BULK_SIZE_BYTES = "bulk.size_bytes";
+  static final String BULK_OPS_PREFIX = "bulk.ops.";
+  static final String BULK_INDICES = "bulk.indices";
+  static final String BULK_INGEST_TOOK_MS = "bulk.ingest_took_ms";
+  static final String BULK_FAILED_ITEMS = "bulk.failed_items";
+  static final String BULK_FAILURES = "bulk.failures";
+  static final String SEARCH_SHARDS_TOTAL = "search.shards.total";
+  static final String SEARCH_SHARDS_SUCCESSFUL = "search.shards.successful";
+  static final String SEARCH_SHARDS_SKIPPED = "search.shards.skipped";
+  static final String SEARCH_SHARDS_FAILED = "search.shards.failed";
+  static final String SEARCH_TIMED_OUT = "search.timed_out";
+  static final String SEARCH_TERMINATED_EARLY = "search.terminated_early";
+  static final String SEARCH_TOTAL_HITS = "search.total_hits";
+  static final String SEARCH_TOTAL_HITS_LOWER_BOUND = "search.total_hits_lower_bound";
+
+  // indices listed in the bulk.indices tag, the rest are counted as "_other"
+  static final int MAX_INDICES = 16;
+  // failure reasons sampled into the bulk.failures tag
+  static final int MAX_FAILURES = 3;
+  static final int MAX_FAILURE_LENGTH = 256;
+
+  private static final OpType[] OP_TYPES = OpType.values();
+
+  private TransportSpanDecorator() {
+  }
+
+  static void onRequest(Object request, Span span) {
+    if (request instanceof BulkRequest) {
+      onBulkRequest((BulkRequest) request, span);
+    }
+  }
+
+  /**
+   * Tags the description of the request, if the policy enables it for the span
+   */
+  static void onDescription(DescriptionPolicy policy, String action, ActionRequest request,
+      Span span) {
+    if (!policy.isEnabled(action, span)) {
+      return;
+    }
+    final String description = (policy.getMode() == Mode.SUMMARY) ? summary(request)
+        : request.getDescription();
+    if (description != null && !description.isEmpty()) {
+      span.setTag(DESCRIPTION, policy.truncate(description));
+    }
+  }
+
+  /**
+   * @return indices, type and source size of the request, as far as it has them, without
+   * rendering its source
+   */
+  static String summary(ActionRequest request) {
+    if (request instanceof BulkRequest) {
+      // the indices are tagged as bulk.indices
+      BulkRequest bulkRequest = (BulkRequest) request;
+      return "actions=" + bulkRequest.numberOfActions()
+          + ", source_bytes=" + bulkRequest.estimatedSizeInBytes();
+    }
+    StringBuilder summary = new StringBuilder();
+    if (request instanceof IndicesRequest) {
+      String[] indices = ((IndicesRequest) request).indices();
+      if (indices != null && indices.length > 0) {
+        summary.append("indices=").append(String.join(",", indices));
+      }
+    }
+    String type = null;
+    if (request instanceof DocWriteRequest) {
+      type = ((DocWriteRequest<?>) request).type();
+    } else if (request instanceof SearchRequest) {
+      String[] types = ((SearchRequest) request).types();
+      if (types != null && types.length > 0) {
+        type = String.join(",", types);
+      }
+    }
+    if (type != null) {
+      appendSeparator(summary).append("type=").append(type);
+    }
+    if (request instanceof IndexRequest) {
+      BytesReference source = ((IndexRequest) request).source();
+      if (source != null) {
+        appendSeparator(summary).append("source_bytes=").append(source.length());
+      }
+    }
+    return summary.toString();
+  }
+
+  private static StringBuilder appendSeparator(StringBuilder summary) {
+    return (summary.length() > 0) ? summary.append(", ") : summary;
+  }
+
+  /**
+   * @param elapsedNanos time from sending the request until receiving the response
+   */
+  static void onResponse(ActionResponse response, Span span, long elapsedNanos) {
+    if (response instanceof SearchResponse) {
+      SearchResponse searchResponse = (SearchResponse) response;
+      onSearchResponse(searchResponse, span);
+      onClientOverhead(elapsedNanos, searchResponse.getTook().millis(), span);
+    } else if (response instanceof BulkResponse) {
+      BulkResponse bulkResponse = (BulkResponse) response;
+      onBulkResponse(bulkResponse, span);
+      onClientOverhead(elapsedNanos, bulkResponse.getTook().millis(), span);
+    }
+  }
+
+  /**
+   * Tags took, the shard counts, whether the search timed out or terminated early and the total
+   * hits
+   */
+  static void onSearchResponse(SearchResponse response, Span span) {
+    span.setTag(SpanDecorator.TOOK_MS, response.getTook().millis());
+    span.setTag(SEARCH_SHARDS_TOTAL, response.getTotalShards());
+    span.setTag(SEARCH_SHARDS_SUCCESSFUL, response.getSuccessfulShards());
+    span.setTag(SEARCH_SHARDS_SKIPPED, response.getSkippedShards());
+    span.setTag(SEARCH_SHARDS_FAILED, response.getFailedShards());
+    span.setTag(SEARCH_TIMED_OUT, response.isTimedOut());
+    if (response.isTerminatedEarly() != null) {
+      // null unless the search asked to terminate after a number of documents
+      span.setTag(SEARCH_TERMINATED_EARLY, response.isTerminatedEarly());
+    }
+    final TotalHits totalHits =
+        (response.getHits() != null) ? response.getHits().getTotalHits() : null;
+    if (totalHits != null) {
+      span.setTag(SEARCH_TOTAL_HITS, totalHits.value);
+      if (totalHits.relation == TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO) {
+        span.setTag(SEARCH_TOTAL_HITS_LOWER_BOUND, true);
+      }
+    }
+  }
+
+  /**
+   * Tags the time spent outside of the cluster (network, queueing, (de)serialization): the time
+   * until the response minus the took time of the cluster
+   */
+  private static void onClientOverhead(long elapsedNanos, long tookMillis, Span span) {
+    span.setTag(SpanDecorator.CLIENT_OVERHEAD_MS,
+        Math.max(0, TimeUnit.NANOSECONDS.toMillis(elapsedNanos) - tookMillis));
+  }
+
+  /**
+   * Tags the number of actions, the estimated size and the actions per operation type and per
+   * index, counted in a single pass over the items
+   */
+  static void onBulkRequest(BulkRequest request, Span span) {
+    final int[] opCounts = new int[OP_TYPES.length];
+    final Map<String, int[]> indexCounts = new LinkedHashMap<>();
+    int otherIndices = 0;
+    for (DocWriteRequest<?> item : request.requests()) {
+      opCounts[item.opType().ordinal()]++;
+      int[] count = indexCounts.get(item.index());
+      if (count != null) {
+        count[0]++;
+      } else if (indexCounts.size() < MAX_INDICES) {
+        indexCounts.put(item.index(), new int[]{1});
+      } else {
+        otherIndices++;
+      }
+    }
+
+    span.setTag(BULK_ACTIONS, request.numberOfActions());
+    span.setTag(BULK_SIZE_BYTES, request.estimatedSizeInBytes());
+    for (OpType opType : OP_TYPES) {
+      if (opCounts[opType.ordinal()] > 0) {
+        span.setTag(BULK_OPS_PREFIX + opType.getLowercase(), opCounts[opType.ordinal()]);
+      }
+    }
+    if (!indexCounts.isEmpty()) {
+      StringBuilder indices = new StringBuilder();
+      for (Entry<String, int[]> entry : indexCounts.entrySet()) {
+        if (indices.length() > 0) {
+          indices.append(',');
+        }
+        indices.append(entry.getKey()).append('=').append(entry.getValue()[0]);
+      }
+      if (otherIndices > 0) {
+        indices.append(",_other=").append(otherIndices);
+      }
+      span.setTag(BULK_INDICES, indices.toString());
+    }
+  }
+
+  /**
+   * Tags took, ingest took, the number of failed items and the first few failure reasons,
+   * collected in a single pass over the items
+   */
+  static void onBulkResponse(BulkResponse response, Span span) {
+    span.setTag(SpanDecorator.TOOK_MS, response.getTook().millis());
+    if (response.getIngestTookInMillis() != BulkResponse.NO_INGEST_TOOK) {
+      span.setTag(BULK_INGEST_TOOK_MS, response.getIngestTookInMillis());
+    }
+
+    int failed = 0;
+    StringBuilder failures = null;
+    for (BulkItemResponse item : response.getItems()) {
+      if (!item.isFailed()) {
+        continue;
+      }
+      if (failed++ < MAX_FAILURES) {
+        failures = appendFailure(failures, item.getFailureMessage());
+      }
+    }
+    span.setTag(BULK_FAILED_ITEMS, failed);
+    if (failures != null) {
+      span.setTag(BULK_FAILURES, failures.toString());
+    }
+  }
+
+  private static StringBuilder appendFailure(StringBuilder failures, String message) {
+    if (failures == null) {
+      failures = new StringBuilder();
+    } else {
+      failures.append('\n');
+    }
+    if (message != null && message.length() > MAX_FAILURE_LENGTH) {
+      return failures.append(message, 0, MAX_FAILURE_LENGTH).append("...");
+    }
+    return failures.append(message);
+  }
+}